@@ -0,0 +1,108 @@
+package banca;
+
+/**
+ * Encode/decode cost and size of the binary MessageCodec against the ';'-separated text
+ * messages it replaces, for a DEPOSIT request and a 100-account SYNC_ACCOUNT batch.
+ *
+ * Run with: java -cp bin banca.CodecBenchmark
+ */
+public class CodecBenchmark {
+
+    private static final int ITERATIONS = 5_000_000;
+    private static final int BATCH = 100;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        String account = "RO12345678";
+        long amount = 1_234_56;
+
+        String text = account + ";" + Money.toDouble(amount);
+        byte[] binary = new MessageCodec.Writer().begin(MessageCodec.DEPOSIT).writeKey(account).writeLong(amount).toBytes();
+        System.out.printf("DEPOSIT bytes: text %d, binary %d%n", text.getBytes().length, binary.length);
+
+        String textBatch = textBatch();
+        byte[] binaryBatch = binaryBatch(new MessageCodec.Writer(), new StringBuilder());
+        System.out.printf("SYNC_ACCOUNT x%d bytes: text %d, binary %d%n", BATCH, textBatch.getBytes().length,
+                binaryBatch.length);
+
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("round %d%n", round);
+            report("  DEPOSIT text encode", () -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sink += (account + ";" + Money.toDouble(amount + i)).length();
+                }
+            });
+            MessageCodec.Writer writer = new MessageCodec.Writer();
+            report("  DEPOSIT binary encode", () -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sink += writer.begin(MessageCodec.DEPOSIT).writeKey(account).writeLong(amount + i).size();
+                }
+            });
+            report("  DEPOSIT text decode", () -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    String[] parts = text.split(";");
+                    sink += parts[0].length() + (long) Double.parseDouble(parts[1]);
+                }
+            });
+            MessageCodec.Reader reader = new MessageCodec.Reader();
+            StringBuilder key = new StringBuilder();
+            report("  DEPOSIT binary decode", () -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    reader.reset(binary);
+                    sink += reader.readKey(key).length() + reader.readLong();
+                }
+            });
+            report("  SYNC x100 text decode", () -> {
+                for (int i = 0; i < ITERATIONS / BATCH; i++) {
+                    for (String line : textBatch.split("\n")) {
+                        String[] parts = line.split(";");
+                        sink += parts[0].length() + (long) Double.parseDouble(parts[1]);
+                    }
+                }
+            }, ITERATIONS / BATCH);
+            report("  SYNC x100 binary decode", () -> {
+                for (int i = 0; i < ITERATIONS / BATCH; i++) {
+                    reader.reset(binaryBatch);
+                    long count = reader.readLong();
+                    for (long e = 0; e < count; e++) {
+                        sink += reader.readKey(key).length() + reader.readLong();
+                    }
+                }
+            }, ITERATIONS / BATCH);
+        }
+        System.out.println(sink == 42 ? "" : "done");
+    }
+
+    private static String textBatch() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BATCH; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append("RO").append(10_000_000 + i).append(';').append(Money.toDouble(i * 1_000L + 7));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] binaryBatch(MessageCodec.Writer writer, StringBuilder key) {
+        writer.begin(MessageCodec.SYNC_ACCOUNT).writeLong(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            key.setLength(0);
+            key.append("RO").append(10_000_000 + i);
+            writer.writeKey(key).writeLong(i * 1_000L + 7);
+        }
+        return writer.toBytes();
+    }
+
+    private static void report(String name, Runnable body) {
+        report(name, body, ITERATIONS);
+    }
+
+    private static void report(String name, Runnable body, int messages) {
+        long start = System.nanoTime();
+        body.run();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-28s %8.1f ns/message%n", name, (double) elapsed / messages);
+    }
+}
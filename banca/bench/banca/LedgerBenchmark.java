@@ -0,0 +1,96 @@
+package banca;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the Ledger with the HashMap<String, Double> it replaced in BankBranchAgent:
+ * retained heap per account and deposit/withdraw throughput.
+ *
+ * Run with: java -Xmx4g -cp bin banca.LedgerBenchmark [accounts]
+ */
+public class LedgerBenchmark {
+
+    private static final int OPS = 20_000_000;
+    private static final int HOT_KEYS = 1 << 16;
+
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.println("accounts: " + accounts);
+
+        long before = usedHeap();
+        Map<String, Double> map = new HashMap<>();
+        for (int i = 0; i < accounts; i++) {
+            map.put(accountId(i), 0.0);
+        }
+        long mapBytes = usedHeap() - before;
+
+        before = usedHeap();
+        Ledger ledger = new Ledger();
+        for (int i = 0; i < accounts; i++) {
+            ledger.open(accountId(i));
+        }
+        long ledgerBytes = usedHeap() - before;
+
+        System.out.printf("HashMap<String, Double>: %6.1f bytes/account%n", (double) mapBytes / accounts);
+        System.out.printf("Ledger:                  %6.1f bytes/account%n", (double) ledgerBytes / accounts);
+
+        String[] keys = new String[HOT_KEYS];
+        Random random = new Random(42);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = accountId(random.nextInt(accounts));
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long mapOps = runMap(map, keys);
+            long ledgerOps = runLedger(ledger, keys);
+            System.out.printf("round %d: HashMap %,d ops/s | Ledger %,d ops/s%n", round, mapOps, ledgerOps);
+        }
+    }
+
+    private static long runMap(Map<String, Double> map, String[] keys) {
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            String key = keys[i & (HOT_KEYS - 1)];
+            if (!map.containsKey(key)) {
+                continue;
+            }
+            double balance = map.get(key);
+            if ((i & 1) == 0) {
+                map.put(key, balance + 10.0);
+            } else if (balance >= 10.0) {
+                map.put(key, balance - 10.0);
+            }
+        }
+        return OPS * 1_000_000_000L / (System.nanoTime() - start);
+    }
+
+    private static long runLedger(Ledger ledger, String[] keys) {
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            int slot = ledger.find(keys[i & (HOT_KEYS - 1)]);
+            if (slot < 0) {
+                continue;
+            }
+            if ((i & 1) == 0) {
+                ledger.credit(slot, 1000);
+            } else {
+                ledger.debit(slot, 1000);
+            }
+        }
+        return OPS * 1_000_000_000L / (System.nanoTime() - start);
+    }
+
+    static String accountId(int i) {
+        return "RO" + (10_000_000 + i);
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,73 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the NotificationStore with the per-account ArrayList<String> it replaced in
+ * NotificationCenter: retained heap per account with full histories, and the cost of
+ * storing a transaction notification.
+ *
+ * Run with: java -Xmx8g -cp bin banca.NotificationBenchmark [accounts]
+ */
+public class NotificationBenchmark {
+
+    private static final int OPS = 5_000_000;
+    private static final int MAX_NOTIFICATIONS = NotificationStore.CAPACITY;
+
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        System.out.println("accounts: " + accounts + ", notifications per account: " + MAX_NOTIFICATIONS);
+
+        long before = LedgerBenchmark.usedHeap();
+        Map<String, List<String>> lists = new HashMap<>();
+        for (int i = 0; i < accounts * MAX_NOTIFICATIONS; i++) {
+            storeAsText(lists, LedgerBenchmark.accountId(i % accounts), i);
+        }
+        long listBytes = LedgerBenchmark.usedHeap() - before;
+
+        before = LedgerBenchmark.usedHeap();
+        NotificationStore store = new NotificationStore();
+        for (int i = 0; i < accounts * MAX_NOTIFICATIONS; i++) {
+            store.add(LedgerBenchmark.accountId(i % accounts), MessageCodec.DEPOSIT, 1000, i, i + 1000);
+        }
+        long storeBytes = LedgerBenchmark.usedHeap() - before;
+
+        System.out.printf("ArrayList<String>: %7.1f bytes/account%n", (double) listBytes / accounts);
+        System.out.printf("NotificationStore: %7.1f bytes/account (%.1f by its own count)%n",
+                (double) storeBytes / accounts, (double) store.memoryBytes() / accounts);
+
+        String[] keys = new String[1 << 16];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = LedgerBenchmark.accountId(i % accounts);
+        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < OPS; i++) {
+                storeAsText(lists, keys[i & (keys.length - 1)], i);
+            }
+            long listNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < OPS; i++) {
+                store.add(keys[i & (keys.length - 1)], MessageCodec.DEPOSIT, 1000, i, i + 1000);
+            }
+            long storeNanos = System.nanoTime() - start;
+            System.out.printf("round %d: ArrayList<String> %.0f ns/insert | NotificationStore %.0f ns/insert%n", round,
+                    (double) listNanos / OPS, (double) storeNanos / OPS);
+        }
+        System.out.println(store.render(keys[0]).get(0));
+    }
+
+    /** What NotificationAgent.storeNotification did before the store. */
+    private static void storeAsText(Map<String, List<String>> lists, String accountId, int i) {
+        List<String> notifications = lists.computeIfAbsent(accountId, k -> new ArrayList<>());
+        notifications.add(new Date() + ": Transaction completed: " + accountId + ";DEPOSIT;" + Money.format(1000) + ";"
+                + Money.format(i) + ";" + Money.format(i + 1000));
+        if (notifications.size() > MAX_NOTIFICATIONS) {
+            notifications.remove(0);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package banca;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this module and checks them against a stored baseline, so a
+ * regression in the agents' logic fails the run. The benchmarks run with the fork, warmup
+ * and measurement settings of their annotations; each one is scored by the median of its
+ * measured iterations in ns/op, named like "BranchBenchmark.deposit", and compared with
+ * banca/jmh/baseline.properties. A benchmark slower than its baseline by more than
+ * bench.tolerance (default 0.25) is reported as a regression and the suite exits with
+ * status 1. Baselines are machine specific, refresh them with --update-baseline on the
+ * machine that runs the comparison.
+ *
+ * Run from banca/ after mvn package with:
+ *   java -cp jmh/target/benchmarks.jar banca.BenchmarkSuite [--update-baseline] [regexp]
+ * where regexp selects benchmarks the way JMH's include does.
+ */
+public class BenchmarkSuite {
+
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("bench.tolerance", "0.25"));
+    private static final Path BASELINE = Paths.get(System.getProperty("bench.baseline", "jmh/baseline.properties"));
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        boolean update = false;
+        String include = BenchmarkSuite.class.getPackage().getName() + "\\.";
+        for (String arg : args) {
+            if ("--update-baseline".equals(arg)) {
+                update = true;
+            } else {
+                include = arg;
+            }
+        }
+
+        Properties baseline = new Properties();
+        if (Files.exists(BASELINE)) {
+            try (Reader in = Files.newBufferedReader(BASELINE, StandardCharsets.UTF_8)) {
+                baseline.load(in);
+            }
+        }
+
+        TreeMap<String, Double> results = new TreeMap<>();
+        for (RunResult run : new Runner(new OptionsBuilder().include(include).build()).run()) {
+            String benchmark = run.getParams().getBenchmark();
+            String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+            results.put(name, run.getPrimaryResult().getStatistics().getPercentile(50));
+        }
+
+        int regressions = 0;
+        System.out.println();
+        for (String name : results.keySet()) {
+            double nsPerOp = results.get(name);
+            String expected = baseline.getProperty(name);
+            if (expected == null) {
+                System.out.printf("%-40s %10.1f ns/op   (no baseline)%n", name, nsPerOp);
+                continue;
+            }
+            double base = Double.parseDouble(expected);
+            double change = nsPerOp / base - 1;
+            boolean regressed = change > TOLERANCE;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-40s %10.1f ns/op   baseline %10.1f   %+6.1f%%%s%n", name, nsPerOp, base,
+                    change * 100, regressed ? "   REGRESSION" : "");
+        }
+
+        if (update) {
+            for (String name : results.keySet()) {
+                baseline.setProperty(name, String.format(Locale.ROOT, "%.1f", results.get(name)));
+            }
+            writeBaseline(baseline);
+            System.out.println("baseline written to " + BASELINE);
+        } else if (regressions > 0) {
+            System.out.printf("%d benchmark(s) slower than baseline by more than %.0f%%%n", regressions,
+                    TOLERANCE * 100);
+            System.exit(1);
+        }
+    }
+
+    private static void writeBaseline(Properties baseline) throws IOException {
+        Path parent = BASELINE.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        // sorted and without the timestamp comment Properties.store adds, so diffs stay small
+        StringBuilder sb = new StringBuilder("# median ns/op per JMH benchmark, written by BenchmarkSuite --update-baseline\n");
+        for (String name : new TreeSet<>(baseline.stringPropertyNames())) {
+            sb.append(name).append('=').append(baseline.getProperty(name)).append('\n');
+        }
+        try (Writer out = Files.newBufferedWriter(BASELINE, StandardCharsets.UTF_8)) {
+            out.write(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package banca;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ledger path behind BankBranchAgent's DEPOSIT, WITHDRAW and OPEN_ACCOUNT handlers:
+ * decode the binary request, find the account's slot and update it. Fixed seeds, so
+ * every run sees the same accounts and order.
+ *
+ * Run with: java -jar jmh/target/benchmarks.jar BranchBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class BranchBenchmark {
+
+    private static final int ACCOUNTS = 1 << 16;
+    private static final int OPENED = 100_000;
+
+    private final Ledger ledger = new Ledger(ACCOUNTS);
+    private final byte[][] deposits = new byte[ACCOUNTS][];
+    private final byte[][] withdrawals = new byte[ACCOUNTS][];
+    private final int[] order = new int[ACCOUNTS];
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private final StringBuilder key = new StringBuilder(32);
+    private int next;
+
+    @Setup
+    public void setup() {
+        ledger.setLocalOrigin("bench");
+        MessageCodec.Writer writer = new MessageCodec.Writer();
+        Random random = new Random(42);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String account = "RO" + (10_000_000 + i);
+            ledger.open(account);
+            long amount = 1 + random.nextInt(100_000);
+            deposits[i] = writer.begin(MessageCodec.DEPOSIT).writeKey(account).writeLong(amount).toBytes();
+            withdrawals[i] = writer.begin(MessageCodec.WITHDRAW).writeKey(account).writeLong(amount).toBytes();
+        }
+        for (int i = 0; i < ACCOUNTS; i++) {
+            order[i] = random.nextInt(ACCOUNTS);
+        }
+    }
+
+    @Benchmark
+    public long deposit() {
+        reader.reset(deposits[order[next++ & (ACCOUNTS - 1)]]);
+        int slot = ledger.find(reader.readKey(key));
+        return ledger.credit(slot, reader.readLong());
+    }
+
+    @Benchmark
+    public boolean withdraw() {
+        reader.reset(withdrawals[order[next++ & (ACCOUNTS - 1)]]);
+        int slot = ledger.find(reader.readKey(key));
+        return ledger.debit(slot, reader.readLong());
+    }
+
+    /** Opens OPENED accounts in a fresh ledger, growing it from the default size. */
+    @Benchmark
+    @OperationsPerInvocation(OPENED)
+    public int openAccount() {
+        Ledger fresh = new Ledger();
+        fresh.setLocalOrigin("bench");
+        for (int i = 0; i < OPENED; i++) {
+            key.setLength(0);
+            key.append("RO").append(20_000_000 + i);
+            fresh.open(key);
+        }
+        return fresh.size();
+    }
+}
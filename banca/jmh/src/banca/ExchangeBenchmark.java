@@ -0,0 +1,77 @@
+package banca;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CurrencyExchangeAgent's rate update and GUI formatting, and the rate history it
+ * records every tick, on rates seeded the same way every run. The query runs against a
+ * day of ticks recorded in setup.
+ *
+ * Run with: java -jar jmh/target/benchmarks.jar ExchangeBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class ExchangeBenchmark {
+
+    private static final long DAY = 86_400_000L;
+
+    private ExchangeRates rates;
+    private RateHistory history;
+    private RateHistory filled;
+    private String dayQuery;
+    private long time = 1_700_000_000_000L;
+
+    @Setup
+    public void setup() {
+        rates = new ExchangeRates(new Random(42));
+        history = new RateHistory(rates.snapshot(), new File("bench-data/rates"));
+        // a day of ticks 5 seconds apart, with the rates moving every tick
+        filled = new RateHistory(rates.snapshot(), new File("bench-data/rates"));
+        long end = time + DAY;
+        for (long t = time; t < end; t += 5000) {
+            rates.update();
+            filled.record(t, rates.snapshot());
+        }
+        dayQuery = "RON;EUR;" + time + ";" + end;
+    }
+
+    @Benchmark
+    public ExchangeRates updateExchangeRates() {
+        rates.update();
+        return rates;
+    }
+
+    @Benchmark
+    public String formatRatesForGUI() {
+        return rates.formatForGUI();
+    }
+
+    @Benchmark
+    public long recordHistory() {
+        time += 5000;
+        history.record(time, rates.snapshot());
+        return history.size();
+    }
+
+    @Benchmark
+    public String rateHistoryQuery() {
+        return filled.query(dayQuery);
+    }
+}
@@ -0,0 +1,78 @@
+package banca;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NotificationAgent's notification store, low-balance check and alert rules over 1024
+ * accounts, one in eight with its own threshold. Fixed seeds, so every run sees the same
+ * balances.
+ *
+ * Run with: java -jar jmh/target/benchmarks.jar NotifierBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class NotifierBenchmark {
+
+    private static final int ACCOUNTS = 1024;
+
+    private final NotificationCenter center = new NotificationCenter();
+    private final AlertRuleEngine rules = new AlertRuleEngine(AlertRuleEngine.DEFAULT_RULES);
+    private final String[] accounts = new String[ACCOUNTS];
+    private final double[] balances = new double[ACCOUNTS];
+    private long alerts;
+    private final NotificationCenter.AlertSink sink = (accountId, rule, notification) -> alerts += notification.length();
+    private int next;
+    private long clock;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts[i] = "RO" + (10_000_000 + i);
+            balances[i] = random.nextInt(4) == 0 ? 0.0 : random.nextInt(1_000);
+            if (i % 8 == 0) {
+                center.setThreshold(accounts[i], 500.0);
+            }
+        }
+    }
+
+    @Benchmark
+    public long storeNotification() {
+        int i = next++;
+        center.transaction(accounts[i & (ACCOUNTS - 1)], MessageCodec.DEPOSIT, 1000, i, i + 1000, sink);
+        return center.size();
+    }
+
+    @Benchmark
+    public long checkAndNotify() {
+        int a = next++ & (ACCOUNTS - 1);
+        center.checkBalance(accounts[a], balances[a], sink);
+        return alerts;
+    }
+
+    @Benchmark
+    public long alertRules() {
+        int i = next++;
+        int a = i & (ACCOUNTS - 1);
+        long balance = Money.fromDouble(balances[a]);
+        rules.transaction(accounts[a], (i & 1) == 0 ? MessageCodec.DEPOSIT : MessageCodec.WITHDRAW, 2500,
+                balance, balance - 2500, clock++, sink);
+        return alerts;
+    }
+}
@@ -0,0 +1,185 @@
+package banca;
+
+import java.util.Arrays;
+
+/**
+ * Merkle tree over the accounts of a {@link Ledger}, kept up to date as the ledger
+ * changes. Accounts are placed in LEAVES ranges by the hash of their ID, the same on
+ * every branch, and the tree has FANOUT children per node. The digest of an account
+ * covers its ID and every origin's sequence and contribution; leaf and inner digests are
+ * the XOR of the account digests below them, so a change is applied by XOR-ing the old
+ * and new account digest into one node per level instead of rehashing anything.
+ *
+ * Each leaf also keeps a linked list of its slots, so the accounts of a differing range
+ * are found without scanning the ledger.
+ */
+public class AccountDigestTree implements Ledger.Observer {
+
+    static final int FANOUT_BITS = 4;
+    static final int FANOUT = 1 << FANOUT_BITS;
+    /** Levels below the root; level LEAF_LEVEL holds the leaves. */
+    static final int LEAF_LEVEL = 3;
+    static final int LEAVES = 1 << (FANOUT_BITS * LEAF_LEVEL);
+
+    private final Ledger ledger;
+    private final long[][] nodes = new long[LEAF_LEVEL + 1][];
+    private final StringBuilder key = new StringBuilder(32);
+    private long[] originHashes = new long[0];
+
+    // per slot: ID hash, current account digest, and the leaf list links
+    private long[] keyHashes = new long[1024];
+    private long[] digests = new long[1024];
+    private int[] next = new int[1024];
+    private int[] prev = new int[1024];
+    private final int[] heads = new int[LEAVES];
+    private int tracked;
+
+    public AccountDigestTree(Ledger ledger) {
+        this.ledger = ledger;
+        for (int level = 0; level <= LEAF_LEVEL; level++) {
+            nodes[level] = new long[1 << (FANOUT_BITS * level)];
+        }
+        rebuild();
+    }
+
+    /** Recomputes everything from the ledger, e.g. after recovery. */
+    public void rebuild() {
+        for (long[] level : nodes) {
+            Arrays.fill(level, 0);
+        }
+        Arrays.fill(heads, -1);
+        tracked = 0;
+        for (int slot = 0; slot < ledger.size(); slot++) {
+            changed(slot);
+        }
+    }
+
+    public long digest(int level, int node) {
+        return nodes[level][node];
+    }
+
+    public long root() {
+        return nodes[0][0];
+    }
+
+    /** First slot of the leaf's list, or -1; continue with {@link #nextInLeaf(int)}. */
+    public int firstInLeaf(int leaf) {
+        return heads[leaf];
+    }
+
+    public int nextInLeaf(int slot) {
+        return next[slot];
+    }
+
+    public void changed(int slot) {
+        if (slot >= tracked) {
+            // a new account, always the last slot of the ledger
+            ensureCapacity(slot + 1);
+            key.setLength(0);
+            ledger.appendAccountId(slot, key);
+            keyHashes[slot] = ShardRing.hash(key, 0, key.length());
+            digests[slot] = 0;
+            link(slot, leafOf(slot));
+            tracked = slot + 1;
+        }
+        long digest = accountDigest(slot);
+        apply(leafOf(slot), digests[slot] ^ digest);
+        digests[slot] = digest;
+    }
+
+    public void removed(int slot, int moved) {
+        int leaf = leafOf(slot);
+        apply(leaf, digests[slot]);
+        unlink(slot, leaf);
+        if (moved >= 0) {
+            // the account from the last slot now lives at slot
+            keyHashes[slot] = keyHashes[moved];
+            digests[slot] = digests[moved];
+            next[slot] = next[moved];
+            prev[slot] = prev[moved];
+            if (prev[slot] >= 0) {
+                next[prev[slot]] = slot;
+            } else {
+                heads[leafOf(slot)] = slot;
+            }
+            if (next[slot] >= 0) {
+                prev[next[slot]] = slot;
+            }
+        }
+        tracked--;
+    }
+
+    public int leafOf(int slot) {
+        return (int) (keyHashes[slot] >>> (64 - FANOUT_BITS * LEAF_LEVEL));
+    }
+
+    private void apply(int leaf, long delta) {
+        for (int level = LEAF_LEVEL; level >= 0; level--) {
+            nodes[level][leaf >>> (FANOUT_BITS * (LEAF_LEVEL - level))] ^= delta;
+        }
+    }
+
+    /** Order-independent over origins, since origin columns are numbered differently per ledger. */
+    private long accountDigest(int slot) {
+        int origins = ledger.originCount();
+        if (originHashes.length < origins) {
+            originHashes = Arrays.copyOf(originHashes, origins);
+            for (int o = 0; o < origins; o++) {
+                String name = ledger.originName(o);
+                originHashes[o] = ShardRing.hash(name, 0, name.length());
+            }
+        }
+        long sum = keyHashes[slot];
+        boolean columns = false;
+        for (int o = 0; o < origins; o++) {
+            long seq = ledger.sequence(slot, o);
+            if (seq > 0) {
+                sum += mix(originHashes[o] ^ mix(seq ^ mix(ledger.contribution(slot, o))));
+                columns = true;
+            }
+        }
+        if (!columns) {
+            sum += mix(ledger.balance(slot));
+        }
+        return mix(sum);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void link(int slot, int leaf) {
+        prev[slot] = -1;
+        next[slot] = heads[leaf];
+        if (heads[leaf] >= 0) {
+            prev[heads[leaf]] = slot;
+        }
+        heads[leaf] = slot;
+    }
+
+    private void unlink(int slot, int leaf) {
+        if (prev[slot] >= 0) {
+            next[prev[slot]] = next[slot];
+        } else {
+            heads[leaf] = next[slot];
+        }
+        if (next[slot] >= 0) {
+            prev[next[slot]] = prev[slot];
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > keyHashes.length) {
+            int capacity = Math.max(size, keyHashes.length * 2);
+            keyHashes = Arrays.copyOf(keyHashes, capacity);
+            digests = Arrays.copyOf(digests, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+    }
+}
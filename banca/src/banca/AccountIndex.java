@@ -0,0 +1,246 @@
+package banca;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing index from account IDs to dense slots 0..size()-1.
+ * Keys are copied into one shared char pool, so an entry costs a few ints instead of a
+ * String plus a map node, and lookups by any CharSequence range do not allocate.
+ */
+public class AccountIndex {
+
+    private static final int MAX_KEY_LENGTH = Character.MAX_VALUE;
+
+    private int[] table;          // slot + 1, 0 marks an empty bucket
+    private int[] hashes;         // per slot
+    private int[] keyOffsets;     // per slot, into keyPool
+    private char[] keyLengths;    // per slot
+    private char[] keyPool;
+    private int poolSize;
+    private int garbageChars;
+    private int size;
+    private int mask;
+
+    public AccountIndex() {
+        this(1024);
+    }
+
+    public AccountIndex(int expectedSize) {
+        int buckets = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        table = new int[buckets];
+        mask = buckets - 1;
+        int slots = Math.max(16, expectedSize);
+        hashes = new int[slots];
+        keyOffsets = new int[slots];
+        keyLengths = new char[slots];
+        keyPool = new char[slots * 8];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Slot capacity; per-slot arrays of callers should be at least this long. */
+    public int capacity() {
+        return hashes.length;
+    }
+
+    public int find(CharSequence key) {
+        return find(key, 0, key.length());
+    }
+
+    /** Returns the slot of key[from, to), or -1 if it is not indexed. */
+    public int find(CharSequence key, int from, int to) {
+        int hash = hash(key, from, to);
+        int bucket = hash & mask;
+        while (true) {
+            int entry = table[bucket];
+            if (entry == 0) {
+                return -1;
+            }
+            int slot = entry - 1;
+            if (hashes[slot] == hash && keyEquals(slot, key, from, to)) {
+                return slot;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    public int add(CharSequence key) {
+        return add(key, 0, key.length());
+    }
+
+    /**
+     * Indexes key[from, to) with a single probe sequence. Returns the new slot, or
+     * -(slot + 1) when the key was already present.
+     */
+    public int add(CharSequence key, int from, int to) {
+        int length = to - from;
+        if (length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Account ID too long: " + length);
+        }
+        int hash = hash(key, from, to);
+        int bucket = hash & mask;
+        while (true) {
+            int entry = table[bucket];
+            if (entry == 0) {
+                break;
+            }
+            int slot = entry - 1;
+            if (hashes[slot] == hash && keyEquals(slot, key, from, to)) {
+                return -entry;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+
+        int slot = size;
+        ensureSlotCapacity(slot + 1);
+        ensurePoolCapacity(poolSize + length);
+        for (int i = from; i < to; i++) {
+            keyPool[poolSize++] = key.charAt(i);
+        }
+        hashes[slot] = hash;
+        keyOffsets[slot] = poolSize - length;
+        keyLengths[slot] = (char) length;
+        table[bucket] = slot + 1;
+        size++;
+
+        if (size * 2 > table.length) {
+            rehash(table.length << 1);
+        }
+        return slot;
+    }
+
+    /**
+     * Removes a slot. The last slot is moved into its place to keep slots dense; returns
+     * the old index of the moved slot, or -1 if the removed slot was the last one.
+     */
+    public int remove(int slot) {
+        deleteBucket(bucketOf(slot));
+        garbageChars += keyLengths[slot];
+
+        int last = size - 1;
+        int moved = -1;
+        if (slot != last) {
+            table[bucketOf(last)] = slot + 1;
+            hashes[slot] = hashes[last];
+            keyOffsets[slot] = keyOffsets[last];
+            keyLengths[slot] = keyLengths[last];
+            moved = last;
+        }
+        size--;
+
+        if (garbageChars > poolSize / 2) {
+            compactPool();
+        }
+        return moved;
+    }
+
+    public String key(int slot) {
+        return new String(keyPool, keyOffsets[slot], keyLengths[slot]);
+    }
+
+    public void appendKey(int slot, StringBuilder sb) {
+        sb.append(keyPool, keyOffsets[slot], keyLengths[slot]);
+    }
+
+    public boolean keyEquals(int slot, CharSequence key, int from, int to) {
+        int length = keyLengths[slot];
+        if (length != to - from) {
+            return false;
+        }
+        int offset = keyOffsets[slot];
+        for (int i = 0; i < length; i++) {
+            if (keyPool[offset + i] != key.charAt(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Approximate heap used by the index arrays. */
+    public long memoryBytes() {
+        return 4L * table.length + 4L * hashes.length + 4L * keyOffsets.length + 2L * keyLengths.length
+                + 2L * keyPool.length;
+    }
+
+    private void ensureSlotCapacity(int needed) {
+        if (needed <= hashes.length) {
+            return;
+        }
+        int capacity = Math.max(needed, hashes.length + (hashes.length >> 1));
+        hashes = Arrays.copyOf(hashes, capacity);
+        keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+        keyLengths = Arrays.copyOf(keyLengths, capacity);
+    }
+
+    private void ensurePoolCapacity(int needed) {
+        if (needed <= keyPool.length) {
+            return;
+        }
+        keyPool = Arrays.copyOf(keyPool, Math.max(needed, keyPool.length + (keyPool.length >> 1)));
+    }
+
+    private int bucketOf(int slot) {
+        int bucket = hashes[slot] & mask;
+        while (table[bucket] != slot + 1) {
+            bucket = (bucket + 1) & mask;
+        }
+        return bucket;
+    }
+
+    /** Backward-shift deletion, so linear probing needs no tombstones. */
+    private void deleteBucket(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            int entry = table[i];
+            if (entry == 0) {
+                break;
+            }
+            int ideal = hashes[entry - 1] & mask;
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                table[hole] = entry;
+                hole = i;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void compactPool() {
+        char[] pool = new char[Math.max(16, poolSize - garbageChars)];
+        int position = 0;
+        for (int slot = 0; slot < size; slot++) {
+            System.arraycopy(keyPool, keyOffsets[slot], pool, position, keyLengths[slot]);
+            keyOffsets[slot] = position;
+            position += keyLengths[slot];
+        }
+        keyPool = pool;
+        poolSize = position;
+        garbageChars = 0;
+    }
+
+    private void rehash(int buckets) {
+        table = new int[buckets];
+        mask = buckets - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int bucket = hashes[slot] & mask;
+            while (table[bucket] != 0) {
+                bucket = (bucket + 1) & mask;
+            }
+            table[bucket] = slot + 1;
+        }
+    }
+
+    static int hash(CharSequence key, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        // spread the bits, linear probing is sensitive to clustered String hashes
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,331 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Collects balance changes and replicates them as batched SYNC_DELTA messages.
+ * Accounts are tracked by ledger slot and their state is read at flush time, so only
+ * the latest state of an account is sent, and a flush happens
+ * when the batch is full or when the window elapses, whichever comes first.
+ *
+ * Each account is sent with its per-origin contributions and sequence numbers (see
+ * {@link Ledger#merge}), which receivers apply idempotently and in any order, so
+ * batches may be reordered, duplicated or retried. The balance is included for
+ * observers such as the notification agent. Branches no longer accept the older absolute
+ * SYNC_ACCOUNT messages: an absolute balance cannot be told apart by origin, so applying
+ * it would count the changes of other branches twice.
+ *
+ * The replicators of a striped branch leave their flushes to the rounds of a
+ * {@link StripedReplication}, which sends the changes of all stripes together; a full
+ * batch starts a round early instead of being sent on its own.
+ */
+public class AccountReplicator {
+
+    public static final long DEFAULT_WINDOW_MS = Long.getLong("banca.sync.windowMs", 50);
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("banca.sync.batchSize", 500);
+    private static final long REPORT_INTERVAL_MS = 10000;
+
+    private final Agent agent;
+    private final DirectoryCache directory;
+    private final Ledger ledger;
+    private final AgentMetrics metrics;
+    private final long windowMs;
+    private final int batchSize;
+    private int[] dirtySlots = new int[64];
+    private boolean[] dirtyFlags = new boolean[1024];
+    private int dirtyCount;
+    private final MessageCodec.Writer writer = new MessageCodec.Writer();
+    private final StringBuilder keyBuffer = new StringBuilder(32);
+    private ShardRing ring;
+    private int[] replicaBuffer = new int[16];
+    private int[][] memberSlots = new int[0][];
+    private int[] memberCounts = new int[0];
+    private long firstDirtyNanos;
+    private long pendingUpdates;
+    private StripedReplication rounds;
+    private int[] originIds = new int[8];
+    private int originsMapped;
+
+    private long updates;
+    private long flushes;
+    private long entriesSent;
+    private long messagesSent;
+    private long messagesSaved;
+    private long totalFlushLatencyNanos;
+    private long maxFlushLatencyNanos;
+    private long lastReport = System.currentTimeMillis();
+
+    public AccountReplicator(Agent agent, DirectoryCache directory, Ledger ledger) {
+        this(agent, directory, ledger, DEFAULT_WINDOW_MS, DEFAULT_BATCH_SIZE);
+    }
+
+    public AccountReplicator(Agent agent, DirectoryCache directory, Ledger ledger, long windowMs, int batchSize) {
+        this.agent = agent;
+        this.directory = directory;
+        this.ledger = ledger;
+        this.metrics = AgentMetrics.of(agent);
+        this.windowMs = windowMs;
+        this.batchSize = batchSize;
+    }
+
+    public void start() {
+        agent.addBehaviour(new TickerBehaviour(agent, windowMs) {
+            protected void onTick() {
+                tick();
+            }
+        });
+    }
+
+    /**
+     * Flushes and prints the periodic report; called every window by {@link #start()}, or
+     * by the owner of the ledger when the ledger is not used from the agent's thread.
+     */
+    public void tick() {
+        if (rounds == null) {
+            flush();
+        }
+        if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL_MS) {
+            lastReport = System.currentTimeMillis();
+            if (flushes > 0) {
+                System.out.println(agent.getLocalName() + " " + report());
+            }
+        }
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    /** Leaves the window flushes to the rounds; call before the ledger is used. */
+    void joinRounds(StripedReplication rounds) {
+        this.rounds = rounds;
+    }
+
+    public void markDirty(int slot) {
+        updates++;
+        pendingUpdates++;
+        if (slot >= dirtyFlags.length) {
+            dirtyFlags = Arrays.copyOf(dirtyFlags, Math.max(slot + 1, dirtyFlags.length * 2));
+        }
+        if (dirtyFlags[slot]) {
+            return;
+        }
+        if (dirtyCount == 0) {
+            firstDirtyNanos = System.nanoTime();
+        }
+        if (dirtyCount == dirtySlots.length) {
+            dirtySlots = Arrays.copyOf(dirtySlots, dirtyCount * 2);
+        }
+        dirtyFlags[slot] = true;
+        dirtySlots[dirtyCount++] = slot;
+        if (dirtyCount >= batchSize) {
+            if (rounds != null) {
+                rounds.flush();   // the batch leaves with the round, after the group commit
+            } else {
+                flush();
+            }
+        }
+    }
+
+    public void flush() {
+        if (dirtyCount == 0) {
+            return;
+        }
+
+        List<AID> branches = directory.get("bank-branch");
+        List<AID> notifiers = directory.get("notification");
+        int peers = branches.size() + notifiers.size();
+
+        if (ring == null) {
+            List<AID> receivers = new ArrayList<>(branches);
+            receivers.addAll(notifiers);
+            send(receivers, dirtySlots, dirtyCount);
+        } else {
+            // notifiers see every change, branches only the accounts they replicate
+            send(notifiers, dirtySlots, dirtyCount);
+            routeToReplicas();
+        }
+
+        long latency = System.nanoTime() - firstDirtyNanos;
+        flushes++;
+        entriesSent += dirtyCount;
+        messagesSent += peers;
+        // one message per update and peer is what unbatched replication would have cost
+        messagesSaved += (pendingUpdates - 1) * peers;
+        totalFlushLatencyNanos += latency;
+        maxFlushLatencyNanos = Math.max(maxFlushLatencyNanos, latency);
+        metrics.record("replication.flushLatency", latency);
+        pendingUpdates = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            dirtyFlags[dirtySlots[i]] = false;
+        }
+        dirtyCount = 0;
+    }
+
+    /**
+     * Moves the dirty accounts into this stripe's part of a round, grouped by receiver
+     * as flush would send them, with the origin IDs shared by the stripes.
+     */
+    void collect(StripedReplication.Part part) {
+        if (dirtyCount == 0) {
+            return;
+        }
+        for (int o = originsMapped; o < ledger.originCount(); o++) {
+            if (o == originIds.length) {
+                originIds = Arrays.copyOf(originIds, o * 2);
+            }
+            originIds[o] = rounds.originId(ledger.originName(o));
+        }
+        originsMapped = ledger.originCount();
+
+        if (ring == null) {
+            for (int i = 0; i < dirtyCount; i++) {
+                add(part.everyone, dirtySlots[i]);
+            }
+        } else {
+            int self = ring.indexOf(agent.getLocalName());
+            for (int i = 0; i < dirtyCount; i++) {
+                int slot = dirtySlots[i];
+                add(part.notifiers, slot);
+                keyBuffer.setLength(0);
+                ledger.appendAccountId(slot, keyBuffer);
+                int count = ring.replicas(keyBuffer, 0, keyBuffer.length(), replicaBuffer);
+                for (int r = 0; r < count; r++) {
+                    if (replicaBuffer[r] != self) {
+                        add(part.member(ring.member(replicaBuffer[r])), slot);
+                    }
+                }
+            }
+        }
+
+        long latency = System.nanoTime() - firstDirtyNanos;
+        flushes++;
+        entriesSent += dirtyCount;
+        totalFlushLatencyNanos += latency;
+        maxFlushLatencyNanos = Math.max(maxFlushLatencyNanos, latency);
+        metrics.record("replication.flushLatency", latency);
+        pendingUpdates = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            dirtyFlags[dirtySlots[i]] = false;
+        }
+        dirtyCount = 0;
+    }
+
+    private void add(StripedReplication.Entries entries, int slot) {
+        writeEntry(entries.writer, slot, originIds);
+        entries.count++;
+    }
+
+    /** Encodes the slots as one SYNC_DELTA batch and sends it to all receivers. */
+    public void send(List<AID> receivers, int[] slots, int count) {
+        send(receivers, slots, count, "SYNC_DELTA");
+    }
+
+    /** Same as {@link #send(List, int[], int)} under another conversation; returns the message size. */
+    public int send(List<AID> receivers, int[] slots, int count, String conversationId) {
+        if (receivers.isEmpty() || count == 0) {
+            return 0;
+        }
+        int origins = ledger.originCount();
+        writer.begin(MessageCodec.SYNC_DELTA).writeLong(origins);
+        for (int o = 0; o < origins; o++) {
+            writer.writeKey(ledger.originName(o));
+        }
+        writer.writeLong(count);
+        for (int i = 0; i < count; i++) {
+            writeEntry(writer, slots[i], null);
+        }
+
+        byte[] content = writer.toBytes();
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId(conversationId);
+        msg.setByteSequenceContent(content);
+        for (AID aid : receivers) {
+            msg.addReceiver(aid);
+        }
+        agent.send(msg);
+        metrics.record("replication.fanout", receivers.size());
+        metrics.record("replication.batch", count);
+        return content.length;
+    }
+
+    /** Writes an account with its columns, numbering origins by originIds if given. */
+    private void writeEntry(MessageCodec.Writer out, int slot, int[] originIds) {
+        int origins = ledger.originCount();
+        keyBuffer.setLength(0);
+        ledger.appendAccountId(slot, keyBuffer);
+        out.writeKey(keyBuffer).writeLong(ledger.balance(slot));
+        int columns = 0;
+        for (int o = 0; o < origins; o++) {
+            if (ledger.sequence(slot, o) > 0) {
+                columns++;
+            }
+        }
+        out.writeLong(columns);
+        for (int o = 0; o < origins; o++) {
+            long seq = ledger.sequence(slot, o);
+            if (seq > 0) {
+                out.writeLong(originIds == null ? o : originIds[o]).writeLong(seq).writeLong(ledger.contribution(slot, o));
+            }
+        }
+    }
+
+    /** Switches from broadcasting to sending each account only to its other replicas. */
+    public void setRing(ShardRing ring) {
+        this.ring = ring;
+        if (ring != null && replicaBuffer.length < ring.replicationFactor()) {
+            replicaBuffer = new int[ring.replicationFactor()];
+        }
+    }
+
+    private void routeToReplicas() {
+        int members = ring.size();
+        if (memberSlots.length < members) {
+            memberSlots = Arrays.copyOf(memberSlots, members);
+            memberCounts = new int[members];
+        }
+        int self = ring.indexOf(agent.getLocalName());
+        for (int i = 0; i < dirtyCount; i++) {
+            int slot = dirtySlots[i];
+            keyBuffer.setLength(0);
+            ledger.appendAccountId(slot, keyBuffer);
+            int count = ring.replicas(keyBuffer, 0, keyBuffer.length(), replicaBuffer);
+            for (int r = 0; r < count; r++) {
+                int member = replicaBuffer[r];
+                if (member == self) {
+                    continue;
+                }
+                if (memberSlots[member] == null || memberCounts[member] == memberSlots[member].length) {
+                    memberSlots[member] = memberSlots[member] == null ? new int[64]
+                            : Arrays.copyOf(memberSlots[member], memberCounts[member] * 2);
+                }
+                memberSlots[member][memberCounts[member]++] = slot;
+            }
+        }
+        for (int member = 0; member < members; member++) {
+            if (memberCounts[member] > 0) {
+                send(Collections.singletonList(new AID(ring.member(member), AID.ISLOCALNAME)),
+                        memberSlots[member], memberCounts[member]);
+                memberCounts[member] = 0;
+            }
+        }
+    }
+
+    public String report() {
+        // in rounds the messages leave for all stripes together; see the replication.batch metric
+        String messages = rounds == null ? String.format("%d messages sent, %d saved", messagesSent, messagesSaved)
+                : "sent in rounds";
+        return String.format("replication: %d updates, %d flushes, avg batch %.1f, %s, "
+                + "flush latency avg %.2f ms max %.2f ms",
+                updates, flushes, flushes == 0 ? 0.0 : (double) entriesSent / flushes, messages,
+                flushes == 0 ? 0.0 : totalFlushLatencyNanos / 1e6 / flushes, maxFlushLatencyNanos / 1e6);
+    }
+}
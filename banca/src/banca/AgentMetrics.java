@@ -0,0 +1,260 @@
+package banca;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Runtime metrics of one agent: message counts and handler latency per conversation ID,
+ * mailbox depth, and named counters, distributions and gauges recorded by the agent and
+ * its helpers (DF lookups, replication fan-out, notification store sizes).
+ *
+ * Recording uses LongAdder and atomic arrays only, and looks recorders up by name in a
+ * ConcurrentHashMap, so after a name's first use it neither locks nor allocates.
+ * Latencies are in nanoseconds. Once started, the metrics are published as the MXBean
+ * banca:type=Agent,name=&lt;local name&gt; and a METRICS request is answered with one
+ * "name value" line per metric, routed by the agent's {@link MessageDispatcher}.
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    public static final String CONVERSATION_ID = "METRICS";
+    /** Conversation IDs tracked separately; further ones are counted under "other". */
+    private static final int MAX_CONVERSATIONS = 256;
+
+    private static final Map<Agent, AgentMetrics> REGISTRY = new ConcurrentHashMap<>();
+
+    private final Agent agent;
+    private final Map<String, Distribution> handlers = new ConcurrentHashMap<>();
+    private final Map<String, Distribution> distributions = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final AtomicLong maxMailboxDepth = new AtomicLong();
+    private ObjectName objectName;
+
+    private AgentMetrics(Agent agent) {
+        this.agent = agent;
+        gauge("mailbox.depth", this::getMailboxDepth);
+        gauge("mailbox.max", maxMailboxDepth::get);
+    }
+
+    /** The agent's metrics, created on first use so helpers can record before the agent starts them. */
+    public static AgentMetrics of(Agent agent) {
+        return REGISTRY.computeIfAbsent(agent, AgentMetrics::new);
+    }
+
+    /** Registers the MXBean and the handler answering METRICS requests. */
+    public void start() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("banca:type=Agent,name=" + ObjectName.quote(agent.getLocalName()));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.err.println(agent.getLocalName() + " could not register metrics MBean: " + e.getMessage());
+            objectName = null;
+        }
+
+        MessageDispatcher.of(agent).on(CONVERSATION_ID, msg -> {
+            long start = System.nanoTime();
+            ACLMessage reply = msg.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setContent(render());
+            agent.send(reply);
+            recordMessage(CONVERSATION_ID, System.nanoTime() - start);
+        });
+    }
+
+    public void close() {
+        REGISTRY.remove(agent);
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already gone
+            }
+            objectName = null;
+        }
+    }
+
+    /** Counts a handled message and its handler time, and samples the mailbox depth. */
+    public void recordMessage(String conversationId, long nanos) {
+        String key = conversationId == null ? "none" : conversationId;
+        Distribution handler = handlers.get(key);
+        if (handler == null) {
+            handler = handlers.size() < MAX_CONVERSATIONS ? handlers.computeIfAbsent(key, k -> new Distribution())
+                    : handlers.computeIfAbsent("other", k -> new Distribution());
+        }
+        handler.record(nanos);
+
+        long depth = agent.getCurQueueSize();
+        long max = maxMailboxDepth.get();
+        while (depth > max && !maxMailboxDepth.compareAndSet(max, depth)) {
+            max = maxMailboxDepth.get();
+        }
+    }
+
+    public void record(String name, long value) {
+        Distribution distribution = distributions.get(name);
+        if (distribution == null) {
+            distribution = distributions.computeIfAbsent(name, k -> new Distribution());
+        }
+        distribution.record(value);
+    }
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, k -> new LongAdder());
+        }
+        counter.add(delta);
+    }
+
+    /** A value computed when metrics are read, e.g. a collection size owned by the agent. */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public String getAgentName() {
+        return agent.getLocalName();
+    }
+
+    public long getMailboxDepth() {
+        return agent.getCurQueueSize();
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new TreeMap<>();
+        for (Map.Entry<String, Distribution> entry : handlers.entrySet()) {
+            entry.getValue().snapshot("handler." + entry.getKey(), metrics);
+        }
+        for (Map.Entry<String, Distribution> entry : distributions.entrySet()) {
+            entry.getValue().snapshot(entry.getKey(), metrics);
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return metrics;
+    }
+
+    public void reset() {
+        for (Distribution distribution : handlers.values()) {
+            distribution.reset();
+        }
+        for (Distribution distribution : distributions.values()) {
+            distribution.reset();
+        }
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        maxMailboxDepth.set(0);
+    }
+
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Metrics for ").append(agent.getLocalName()).append(":\n");
+        for (Map.Entry<String, Long> entry : getMetrics().entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Count, sum, max and a log-scale histogram with four buckets per power of two, so
+     * percentiles are within 25% of the recorded values.
+     */
+    static final class Distribution {
+        private static final int BUCKETS = 64 * 4;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            count.increment();
+            sum.add(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+            buckets.incrementAndGet(bucket(value));
+        }
+
+        long percentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void snapshot(String prefix, Map<String, Long> into) {
+            into.put(prefix + ".count", count.sum());
+            into.put(prefix + ".sum", sum.sum());
+            into.put(prefix + ".max", max.get());
+            into.put(prefix + ".p50", percentile(50));
+            into.put(prefix + ".p99", percentile(99));
+        }
+
+        void reset() {
+            count.reset();
+            sum.reset();
+            max.set(0);
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        private static int bucket(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int log = 63 - Long.numberOfLeadingZeros(value);
+            return log * 4 + (int) ((value >>> (log - 2)) & 3);
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int log = bucket / 4;
+            long sub = bucket % 4;
+            return ((5 + sub) << (log - 2)) - 1;
+        }
+    }
+}
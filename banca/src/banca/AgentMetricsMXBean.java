@@ -0,0 +1,15 @@
+package banca;
+
+import java.util.Map;
+
+/** JMX view of {@link AgentMetrics}; metric names map to their current values. */
+public interface AgentMetricsMXBean {
+
+    String getAgentName();
+
+    long getMailboxDepth();
+
+    Map<String, Long> getMetrics();
+
+    void reset();
+}
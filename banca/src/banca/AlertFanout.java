@@ -0,0 +1,229 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Pushes the NotificationAgent's alerts to the GUIs that subscribed to them. A GUI sends
+ * SUBSCRIBE on the SUBSCRIBE_ALERTS conversation with one account ID per line, or "*" for
+ * every account, and CANCEL to unsubscribe; subscribers that leave the DF are dropped.
+ *
+ * Alerts are not sent one message each. Every WINDOW_MS the alerts collected per
+ * subscriber leave as one NOTIFICATION_ALERT message with a line per account and rule,
+ * where a rule that fired several times for an account in the window appears once, with
+ * its latest alert; alerts of different rules never hide each other. Each subscriber has
+ * a token bucket of RATE_PER_SEC messages a second with bursts of BURST; while it is
+ * empty alerts keep coalescing, and beyond MAX_PENDING accounts and rules new ones are
+ * dropped. Coalesced and dropped alerts are counted in the agent metrics, so
+ * a spike of alerts costs a bounded number of messages.
+ */
+public class AlertFanout implements NotificationCenter.AlertSink {
+
+    public static final String CONVERSATION_ID = "SUBSCRIBE_ALERTS";
+    public static final String ALERT_CONVERSATION_ID = "NOTIFICATION_ALERT";
+    public static final long WINDOW_MS = Long.getLong("banca.alerts.windowMs", 250);
+    public static final double RATE_PER_SEC = Double.parseDouble(System.getProperty("banca.alerts.ratePerSec", "4"));
+    public static final int BURST = Integer.getInteger("banca.alerts.burst", 8);
+    public static final int MAX_PENDING = Integer.getInteger("banca.alerts.maxPending", 1000);
+
+    private static final String ALL_ACCOUNTS = "*";
+
+    private final Agent agent;
+    private final AgentMetrics metrics;
+    private final Map<String, Subscriber> subscribers = new HashMap<>();
+    private final Map<String, List<Subscriber>> byAccount = new HashMap<>();
+    private final List<Subscriber> everyAccount = new ArrayList<>();
+
+    public AlertFanout(Agent agent) {
+        this.agent = agent;
+        this.metrics = AgentMetrics.of(agent);
+    }
+
+    /** Starts the flush ticker; directory is used to drop subscribers that left. */
+    public void start(DirectoryCache directory, String subscriberType) {
+        directory.addListener((type, providers) -> {
+            if (subscriberType.equals(type)) {
+                retain(providers);
+            }
+        });
+        agent.addBehaviour(new TickerBehaviour(agent, WINDOW_MS) {
+            protected void onTick() {
+                flush();
+            }
+        });
+        metrics.gauge("alerts.subscribers", subscribers::size);
+    }
+
+    /** Lets the alert be skipped, and not even rendered, when nobody listens to the account. */
+    public boolean wants(String accountId) {
+        return !everyAccount.isEmpty() || byAccount.containsKey(accountId);
+    }
+
+    public void alert(String accountId, String rule, String notification) {
+        String key = accountId + '\n' + rule;   // account IDs are single lines, see SUBSCRIBE
+        for (Subscriber subscriber : everyAccount) {
+            subscriber.add(key, notification);
+        }
+        List<Subscriber> interested = byAccount.get(accountId);
+        if (interested != null) {
+            for (Subscriber subscriber : interested) {
+                if (!subscriber.all) {
+                    subscriber.add(key, notification);
+                }
+            }
+        }
+    }
+
+    /** Handles SUBSCRIBE and CANCEL requests of the SUBSCRIBE_ALERTS conversation. */
+    public void handle(ACLMessage msg) {
+        AID sender = msg.getSender();
+        ACLMessage reply = msg.createReply();
+        if (msg.getPerformative() == ACLMessage.CANCEL) {
+            remove(sender.getName());
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setContent("Unsubscribed from alerts");
+        } else if (msg.getPerformative() == ACLMessage.SUBSCRIBE) {
+            Subscriber subscriber = subscribers.get(sender.getName());
+            if (subscriber == null) {
+                subscriber = new Subscriber(sender);
+                subscribers.put(sender.getName(), subscriber);
+            }
+            int added = 0;
+            String content = msg.getContent() == null ? "" : msg.getContent();
+            for (String line : content.split("\n")) {
+                String account = line.trim();
+                if (account.equals(ALL_ACCOUNTS)) {
+                    if (!subscriber.all) {
+                        subscriber.all = true;
+                        everyAccount.add(subscriber);
+                        added++;
+                    }
+                } else if (!account.isEmpty() && subscriber.accounts.add(account)) {
+                    byAccount.computeIfAbsent(account, k -> new ArrayList<>(1)).add(subscriber);
+                    added++;
+                }
+            }
+            reply.setPerformative(ACLMessage.AGREE);
+            reply.setContent("Subscribed to alerts for " + (subscriber.all ? "all accounts"
+                    : subscriber.accounts.size() + " accounts") + " (" + added + " new)");
+        } else {
+            reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+            reply.setContent("Expected SUBSCRIBE or CANCEL");
+        }
+        agent.send(reply);
+    }
+
+    /** Sends every subscriber's pending alerts that its rate limit allows. */
+    void flush() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.refill(now);
+            if (subscriber.pending.isEmpty() || subscriber.tokens < 1) {
+                continue;
+            }
+            subscriber.tokens--;
+            StringBuilder content = new StringBuilder(64 * subscriber.pending.size());
+            for (Pending alert : subscriber.pending.values()) {
+                content.append(alert.notification);
+                if (alert.count > 1) {
+                    content.append(" (").append(alert.count).append(" alerts)");
+                }
+                content.append('\n');
+            }
+            if (subscriber.dropped > 0) {
+                content.append(subscriber.dropped).append(" more alerts dropped\n");
+            }
+            metrics.record("alerts.batch", subscriber.pending.size());
+            metrics.increment("alerts.messages");
+            subscriber.pending.clear();
+            subscriber.dropped = 0;
+
+            ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+            msg.setConversationId(ALERT_CONVERSATION_ID);
+            msg.addReceiver(subscriber.aid);
+            msg.setContent(content.toString());
+            agent.send(msg);
+        }
+    }
+
+    private void retain(List<AID> providers) {
+        List<String> present = new ArrayList<>(providers.size());
+        for (AID aid : providers) {
+            present.add(aid.getName());
+        }
+        for (String name : new ArrayList<>(subscribers.keySet())) {
+            if (!present.contains(name)) {
+                remove(name);
+            }
+        }
+    }
+
+    private void remove(String name) {
+        Subscriber subscriber = subscribers.remove(name);
+        if (subscriber == null) {
+            return;
+        }
+        everyAccount.remove(subscriber);
+        for (String account : subscriber.accounts) {
+            List<Subscriber> list = byAccount.get(account);
+            list.remove(subscriber);
+            if (list.isEmpty()) {
+                byAccount.remove(account);
+            }
+        }
+    }
+
+    private final class Subscriber {
+        final AID aid;
+        final Set<String> accounts = new HashSet<>();
+        final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+        boolean all;
+        double tokens = BURST;
+        long refilled = System.nanoTime();
+        int dropped;
+
+        Subscriber(AID aid) {
+            this.aid = aid;
+        }
+
+        /** Adds an alert, coalescing it with a pending one of the same account and rule. */
+        void add(String key, String notification) {
+            metrics.increment("alerts.raised");
+            Pending alert = pending.get(key);
+            if (alert != null) {
+                alert.notification = notification;
+                alert.count++;
+                metrics.increment("alerts.coalesced");
+            } else if (pending.size() < MAX_PENDING) {
+                pending.put(key, new Pending(notification));
+            } else {
+                dropped++;
+                metrics.increment("alerts.dropped");
+            }
+        }
+
+        void refill(long now) {
+            tokens = Math.min(BURST, tokens + (now - refilled) * RATE_PER_SEC / 1e9);
+            refilled = now;
+        }
+    }
+
+    private static final class Pending {
+        String notification;
+        int count = 1;
+
+        Pending(String notification) {
+            this.notification = notification;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Alert rules over sliding windows of each account's activity, evaluated on every
+ * balance and transaction event NotificationAgent sees. Rules are compiled once from
+ * banca.alerts.rules, a ';' separated list of "metric >= value [in window]" where the
+ * metric is one of
+ *
+ *   large       the amount of a single deposit or withdrawal
+ *   withdrawals the number of withdrawals in the window
+ *   withdrawn   the amount withdrawn in the window
+ *   drop        the balance drop in percent from the highest balance in the window
+ *
+ * and the window is a number followed by s, m or h, e.g. "withdrawals >= 5 in 10m".
+ *
+ * Every distinct window keeps, per account, a ring of BUCKETS time buckets with the
+ * withdrawal count, amount withdrawn and highest balance seen in each; an event updates
+ * one bucket and a rule reads the BUCKETS buckets of its window, so the cost per event is
+ * constant and history is never rescanned. Windows are therefore exact to one bucket.
+ * A rule fires on the event that makes it true and then stays quiet for the account
+ * until its window has passed.
+ */
+public class AlertRuleEngine {
+
+    public static final String DEFAULT_RULES =
+            "large >= 10000 ; withdrawals >= 5 in 10m ; withdrawn >= 5000 in 10m ; drop >= 50% in 60m";
+    static final int BUCKETS = 8;
+
+    private static final int LARGE = 0;
+    private static final int WITHDRAWALS = 1;
+    private static final int WITHDRAWN = 2;
+    private static final int DROP = 3;
+    private static final String[] METRICS = { "large", "withdrawals", "withdrawn", "drop" };
+
+    private final Rule[] rules;
+    private final Window[] windows;
+    private final AccountIndex index = new AccountIndex();
+    private long[] quietUntil = new long[0];   // per slot and rule
+
+    public AlertRuleEngine() {
+        this(System.getProperty("banca.alerts.rules", DEFAULT_RULES));
+    }
+
+    public AlertRuleEngine(String spec) {
+        List<Rule> compiled = new ArrayList<>();
+        List<Window> distinct = new ArrayList<>();
+        for (String part : spec.split(";")) {
+            if (!part.trim().isEmpty()) {
+                compiled.add(compile(part.trim(), distinct));
+            }
+        }
+        rules = compiled.toArray(new Rule[0]);
+        windows = distinct.toArray(new Window[0]);
+        ensureSlotCapacity(index.capacity());
+    }
+
+    public int ruleCount() {
+        return rules.length;
+    }
+
+    /** A completed deposit or withdrawal, given by its MessageCodec type. */
+    public void transaction(CharSequence accountId, byte type, long amount, long oldBalance, long newBalance, long now,
+                            NotificationCenter.AlertSink sink) {
+        if (rules.length == 0) {
+            return;
+        }
+        int slot = slotOf(accountId);
+        boolean withdrawal = type == MessageCodec.WITHDRAW;
+        for (Window window : windows) {
+            int cell = window.cell(slot, now);
+            if (withdrawal) {
+                window.withdrawals[cell]++;
+                window.withdrawn[cell] += amount;
+            }
+            window.maxBalance[cell] = Math.max(window.maxBalance[cell], Math.max(oldBalance, newBalance));
+        }
+        evaluate(slot, accountId, amount, newBalance, now, withdrawal, sink);
+    }
+
+    /** A balance seen through replication, without the transaction behind it. */
+    public void balance(CharSequence accountId, long balance, long now, NotificationCenter.AlertSink sink) {
+        if (rules.length == 0) {
+            return;
+        }
+        int slot = slotOf(accountId);
+        for (Window window : windows) {
+            int cell = window.cell(slot, now);
+            window.maxBalance[cell] = Math.max(window.maxBalance[cell], balance);
+        }
+        evaluate(slot, accountId, -1, balance, now, true, sink);
+    }
+
+    /**
+     * Checks the rules after an event. A deposit can only trip LARGE: it adds no
+     * withdrawal, and it raises the balance, so the drop from the window's highest balance
+     * cannot grow; the window rules are skipped for it.
+     */
+    private void evaluate(int slot, CharSequence accountId, long amount, long balance, long now,
+                          boolean windowed, NotificationCenter.AlertSink sink) {
+        int quiet = slot * rules.length;
+        for (int r = 0; r < rules.length; r++) {
+            Rule rule = rules[r];
+            if (!windowed && rule.metric != LARGE) {
+                continue;
+            }
+            long value;
+            switch (rule.metric) {
+            case LARGE:
+                value = amount;
+                break;
+            case WITHDRAWALS:
+                value = rule.window.sum(rule.window.withdrawals, slot, now);
+                break;
+            case WITHDRAWN:
+                value = rule.window.sum(rule.window.withdrawn, slot, now);
+                break;
+            default:
+                long max = rule.window.max(slot, now);
+                value = max > 0 && balance < max ? (max - balance) * 100 / max : 0;
+                break;
+            }
+            if (value < rule.threshold || now < quietUntil[quiet + r]) {
+                continue;
+            }
+            quietUntil[quiet + r] = now + (rule.window == null ? 0 : rule.window.millis);
+            String id = accountId.toString();
+            if (sink.wants(id)) {
+                sink.alert(id, rule.text, rule.describe(id, value));
+            }
+        }
+    }
+
+    private int slotOf(CharSequence accountId) {
+        int slot = index.find(accountId);
+        if (slot < 0) {
+            slot = index.add(accountId);
+            ensureSlotCapacity(index.capacity());
+        }
+        return slot;
+    }
+
+    private void ensureSlotCapacity(int slots) {
+        if (slots * rules.length > quietUntil.length) {
+            quietUntil = Arrays.copyOf(quietUntil, slots * rules.length);
+        }
+        for (Window window : windows) {
+            window.grow(slots);
+        }
+    }
+
+    private static Rule compile(String text, List<Window> windows) {
+        String[] tokens = text.toLowerCase(Locale.ROOT).split("\\s+");
+        if ((tokens.length != 3 && tokens.length != 5) || !tokens[1].equals(">=")
+                || (tokens.length == 5 && !tokens[3].equals("in"))) {
+            throw new IllegalArgumentException("Alert rule must be \"metric >= value [in window]\": " + text);
+        }
+        int metric = Arrays.asList(METRICS).indexOf(tokens[0]);
+        if (metric < 0) {
+            throw new IllegalArgumentException("Unknown alert metric " + tokens[0] + " in " + text);
+        }
+        long threshold;
+        if (metric == DROP) {
+            threshold = Long.parseLong(tokens[2].endsWith("%") ? tokens[2].substring(0, tokens[2].length() - 1)
+                    : tokens[2]);
+        } else if (metric == WITHDRAWALS) {
+            threshold = Long.parseLong(tokens[2]);
+        } else {
+            threshold = Money.parse(tokens[2]);
+        }
+        Window window = null;
+        if (metric != LARGE) {
+            if (tokens.length != 5) {
+                throw new IllegalArgumentException("Alert rule needs a window: " + text);
+            }
+            long millis = parseDuration(tokens[4]);
+            for (Window existing : windows) {
+                if (existing.millis == millis) {
+                    window = existing;
+                }
+            }
+            if (window == null) {
+                window = new Window(millis);
+                windows.add(window);
+            }
+        }
+        return new Rule(text, metric, threshold, window);
+    }
+
+    private static long parseDuration(String text) {
+        long unit;
+        switch (text.charAt(text.length() - 1)) {
+        case 's':
+            unit = 1000;
+            break;
+        case 'm':
+            unit = 60_000;
+            break;
+        case 'h':
+            unit = 3_600_000;
+            break;
+        default:
+            throw new IllegalArgumentException("Window must end in s, m or h: " + text);
+        }
+        long millis = Long.parseLong(text.substring(0, text.length() - 1)) * unit;
+        if (millis < BUCKETS) {
+            throw new IllegalArgumentException("Window too short: " + text);
+        }
+        return millis;
+    }
+
+    private static final class Rule {
+        final String text;
+        final int metric;
+        final long threshold;
+        final Window window;
+
+        Rule(String text, int metric, long threshold, Window window) {
+            this.text = text;
+            this.metric = metric;
+            this.threshold = threshold;
+            this.window = window;
+        }
+
+        String describe(String accountId, long value) {
+            StringBuilder sb = new StringBuilder(96);
+            switch (metric) {
+            case LARGE:
+                sb.append("Large transaction on account ").append(accountId).append(": ");
+                Money.append(sb, value);
+                break;
+            case WITHDRAWALS:
+                sb.append("Withdrawal velocity alert for account ").append(accountId).append(": ").append(value)
+                        .append(" withdrawals");
+                break;
+            case WITHDRAWN:
+                sb.append("Withdrawal volume alert for account ").append(accountId).append(": ");
+                Money.append(sb, value).append(" withdrawn");
+                break;
+            default:
+                sb.append("Balance drop alert for account ").append(accountId).append(": down ").append(value)
+                        .append('%');
+                break;
+            }
+            return sb.append(" (rule: ").append(text).append(')').toString();
+        }
+    }
+
+    /** Per-account time buckets of one window length. */
+    private static final class Window {
+        final long millis;
+        final long bucketMillis;
+        long[] epochs = new long[0];     // per slot and bucket: bucket number held, 0 if unused
+        long[] withdrawals = new long[0];
+        long[] withdrawn = new long[0];
+        long[] maxBalance = new long[0];
+        // the bucket of the last event and the time range it covers, to skip the division
+        private long bucket;
+        private long bucketStart = 1;
+        private long bucketEnd;
+
+        Window(long millis) {
+            this.millis = millis;
+            this.bucketMillis = millis / BUCKETS;
+        }
+
+        /** The slot's cell for now, cleared if it held an older bucket. */
+        int cell(int slot, long now) {
+            long bucket = bucket(now);
+            int cell = slot * BUCKETS + (int) (bucket % BUCKETS);
+            if (epochs[cell] != bucket) {
+                epochs[cell] = bucket;
+                withdrawals[cell] = 0;
+                withdrawn[cell] = 0;
+                maxBalance[cell] = Long.MIN_VALUE;
+            }
+            return cell;
+        }
+
+        long sum(long[] values, int slot, long now) {
+            long oldest = bucket(now) - BUCKETS;
+            long sum = 0;
+            for (int cell = slot * BUCKETS; cell < (slot + 1) * BUCKETS; cell++) {
+                if (epochs[cell] > oldest) {
+                    sum += values[cell];
+                }
+            }
+            return sum;
+        }
+
+        long max(int slot, long now) {
+            long oldest = bucket(now) - BUCKETS;
+            long max = Long.MIN_VALUE;
+            for (int cell = slot * BUCKETS; cell < (slot + 1) * BUCKETS; cell++) {
+                if (epochs[cell] > oldest) {
+                    max = Math.max(max, maxBalance[cell]);
+                }
+            }
+            return max;
+        }
+
+        private long bucket(long now) {
+            if (now < bucketStart || now >= bucketEnd) {
+                bucket = now / bucketMillis + 1;
+                bucketStart = (bucket - 1) * bucketMillis;
+                bucketEnd = bucketStart + bucketMillis;
+            }
+            return bucket;
+        }
+
+        void grow(int slots) {
+            if (slots * BUCKETS <= epochs.length) {
+                return;
+            }
+            epochs = Arrays.copyOf(epochs, slots * BUCKETS);
+            withdrawals = Arrays.copyOf(withdrawals, slots * BUCKETS);
+            withdrawn = Arrays.copyOf(withdrawn, slots * BUCKETS);
+            maxBalance = Arrays.copyOf(maxBalance, slots * BUCKETS);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package banca;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Brings a branch and a peer back in step by comparing their {@link AccountDigestTree}s,
+ * so a new or restarted branch catches up on everything it missed and not only on the
+ * accounts that change after it joins.
+ *
+ * Of each pair of branches the one with the smaller name starts a session, when the peer
+ * appears and every INTERVAL_MS after. The sides take turns: each compares the digests it
+ * received with its own and answers with the children of the nodes that differ, one
+ * level further down. The side that reaches differing leaves streams its accounts in
+ * them as SYNC_DELTA chunks and then pulls the peer's accounts in the same leaves; the
+ * peer streams those and ends the session. Chunks are merged like any SYNC_DELTA, so
+ * both sides end up with the newest contribution of every origin, and the work grows
+ * with the number of differing leaves rather than with the number of accounts.
+ *
+ * All messages use the ANTI_ENTROPY conversation. Each finished session is counted in
+ * the agent metrics, and printed when anything differed.
+ */
+public class AntiEntropy {
+
+    /** The accounts of a branch, as seen by anti-entropy. */
+    public interface Replica {
+        /** XORs the branch's digests of the given {@link AccountDigestTree} nodes into the array. */
+        void digests(int level, int[] nodes, int count, long[] into);
+
+        /** Sends the accounts in the given leaves to the peer as SYNC_DELTA chunks; returns {accounts, bytes}. */
+        long[] stream(AID peer, int[] leaves, int count, String conversationId);
+
+        /** Merges a received chunk; returns the number of changes taken. */
+        int merge(byte[] chunk);
+    }
+
+    public static final String CONVERSATION_ID = "ANTI_ENTROPY";
+    public static final long INTERVAL_MS = Long.getLong("banca.antiEntropy.intervalMs", 30000);
+
+    private final Agent agent;
+    private final DirectoryCache directory;
+    private final Replica replica;
+    private final AgentMetrics metrics;
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private final MessageCodec.Writer writer = new MessageCodec.Writer();
+    private final StringBuilder scratch = new StringBuilder(32);
+    private final Map<String, Session> sessions = new HashMap<>();
+    private long nextSession = 1;
+
+    private int[] nodes = new int[AccountDigestTree.FANOUT];
+    private long[] remote = new long[AccountDigestTree.FANOUT];
+    private long[] local = new long[AccountDigestTree.FANOUT];
+
+    public AntiEntropy(Agent agent, DirectoryCache directory, Replica replica) {
+        this.agent = agent;
+        this.directory = directory;
+        this.replica = replica;
+        this.metrics = AgentMetrics.of(agent);
+    }
+
+    public void start() {
+        directory.addListener((type, providers) -> {
+            if ("bank-branch".equals(type)) {
+                startSessions(providers);
+            }
+        });
+        agent.addBehaviour(new TickerBehaviour(agent, INTERVAL_MS) {
+            protected void onTick() {
+                startSessions(directory.get("bank-branch"));
+            }
+        });
+    }
+
+    /** Starts a session with every peer this branch leads that has none running, or a stale one. */
+    private void startSessions(List<AID> peers) {
+        long now = System.nanoTime();
+        for (AID peer : peers) {
+            String name = peer.getLocalName();
+            if (agent.getLocalName().compareTo(name) >= 0) {
+                continue;
+            }
+            Session running = sessions.get(name);
+            if (running != null && now - running.started < INTERVAL_MS * 1_000_000L) {
+                continue;
+            }
+            Session session = new Session(nextSession++, peer);
+            sessions.put(name, session);
+            nodes[0] = 0;
+            sendDigests(session, 0, nodes, 1);
+        }
+    }
+
+    public void handle(ACLMessage msg) {
+        byte[] content = msg.getByteSequenceContent();
+        int type = reader.reset(content);
+        String peer = msg.getSender().getLocalName();
+
+        if (type == MessageCodec.SYNC_DELTA) {
+            // chunks are idempotent, merge them even if their session is gone
+            long origins = reader.readLong();
+            for (long o = 0; o < origins; o++) {
+                reader.readKey(scratch);
+            }
+            long accounts = reader.readLong();
+            int merged = replica.merge(content);
+            Session session = sessions.get(peer);
+            if (session != null) {
+                session.accountsReceived += accounts;
+                session.bytesReceived += content.length;
+                session.merged += merged;
+            }
+            return;
+        }
+
+        long id = reader.readLong();
+        Session session = sessions.get(peer);
+        if (session == null || session.id != id) {
+            if (type != MessageCodec.AE_DIGESTS || agent.getLocalName().compareTo(peer) < 0) {
+                return;   // left over from an abandoned session
+            }
+            session = new Session(id, msg.getSender());
+            sessions.put(peer, session);
+        }
+
+        switch (type) {
+        case MessageCodec.AE_DIGESTS:
+            session.digestMessages++;
+            session.digestBytes += content.length;
+            compare(session);
+            break;
+        case MessageCodec.AE_PULL:
+            int leaves = (int) reader.readLong();
+            for (int i = 0; i < leaves; i++) {
+                addNode(i, (int) reader.readLong());
+            }
+            session.leaves = leaves;
+            stream(session, leaves);
+            writer.begin(MessageCodec.AE_DONE).writeLong(session.id);
+            send(session, writer.toBytes());
+            finish(session);
+            break;
+        case MessageCodec.AE_DONE:
+            finish(session);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** Checks a level of the peer's digests against this branch's and takes the next step. */
+    private void compare(Session session) {
+        int level = (int) reader.readLong();
+        int count = (int) reader.readLong();
+        session.levels = Math.max(session.levels, level + 1);
+        for (int i = 0; i < count; i++) {
+            addNode(i, (int) reader.readLong());
+            remote[i] = reader.readLong();
+        }
+        Arrays.fill(local, 0, count, 0);
+        replica.digests(level, nodes, count, local);
+        int differing = 0;
+        for (int i = 0; i < count; i++) {
+            if (remote[i] != local[i]) {
+                nodes[differing++] = nodes[i];
+            }
+        }
+
+        if (differing == 0) {
+            writer.begin(MessageCodec.AE_DONE).writeLong(session.id);
+            send(session, writer.toBytes());
+            finish(session);
+        } else if (level == AccountDigestTree.LEAF_LEVEL) {
+            session.leaves = differing;
+            stream(session, differing);
+            writer.begin(MessageCodec.AE_PULL).writeLong(session.id).writeLong(differing);
+            for (int i = 0; i < differing; i++) {
+                writer.writeLong(nodes[i]);
+            }
+            send(session, writer.toBytes());
+        } else {
+            int children = 0;
+            int[] parents = Arrays.copyOf(nodes, differing);
+            for (int parent : parents) {
+                for (int c = 0; c < AccountDigestTree.FANOUT; c++) {
+                    addNode(children++, parent * AccountDigestTree.FANOUT + c);
+                }
+            }
+            sendDigests(session, level + 1, nodes, children);
+        }
+    }
+
+    private void sendDigests(Session session, int level, int[] nodeIds, int count) {
+        Arrays.fill(local, 0, count, 0);
+        replica.digests(level, nodeIds, count, local);
+        writer.begin(MessageCodec.AE_DIGESTS).writeLong(session.id).writeLong(level).writeLong(count);
+        for (int i = 0; i < count; i++) {
+            writer.writeLong(nodeIds[i]).writeLong(local[i]);
+        }
+        byte[] bytes = writer.toBytes();
+        session.digestMessages++;
+        session.digestBytes += bytes.length;
+        send(session, bytes);
+    }
+
+    /** Sends this branch's accounts in the first count leaves of nodes. */
+    private void stream(Session session, int count) {
+        long[] sent = replica.stream(session.peer, nodes, count, CONVERSATION_ID);
+        session.accountsSent += sent[0];
+        session.bytesSent += sent[1];
+    }
+
+    private void send(Session session, byte[] content) {
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId(CONVERSATION_ID);
+        msg.setByteSequenceContent(content);
+        msg.addReceiver(session.peer);
+        agent.send(msg);
+    }
+
+    private void addNode(int index, int node) {
+        if (index == nodes.length) {
+            nodes = Arrays.copyOf(nodes, index * 2);
+            remote = Arrays.copyOf(remote, index * 2);
+            local = Arrays.copyOf(local, index * 2);
+        }
+        nodes[index] = node;
+    }
+
+    private void finish(Session session) {
+        sessions.remove(session.peer.getLocalName());
+        long nanos = System.nanoTime() - session.started;
+        metrics.increment("antiEntropy.sessions");
+        metrics.record("antiEntropy.duration", nanos);
+        metrics.add("antiEntropy.digestBytes", session.digestBytes);
+        metrics.add("antiEntropy.leaves", session.leaves);
+        metrics.add("antiEntropy.accountsSent", session.accountsSent);
+        metrics.add("antiEntropy.accountsReceived", session.accountsReceived);
+        metrics.add("antiEntropy.bytesSent", session.bytesSent);
+        metrics.add("antiEntropy.bytesReceived", session.bytesReceived);
+        metrics.add("antiEntropy.merged", session.merged);
+        if (session.leaves > 0) {
+            System.out.println(agent.getLocalName() + " " + session.report(nanos));
+        }
+    }
+
+    private static final class Session {
+        final long id;
+        final AID peer;
+        final long started = System.nanoTime();
+        int levels;
+        int digestMessages;
+        long digestBytes;
+        int leaves;
+        long accountsSent;
+        long accountsReceived;
+        long bytesSent;
+        long bytesReceived;
+        long merged;
+
+        Session(long id, AID peer) {
+            this.id = id;
+            this.peer = peer;
+        }
+
+        String report(long nanos) {
+            return String.format("anti-entropy with %s: %d levels, %d digest messages (%d bytes), %d differing "
+                    + "leaves, sent %d accounts (%d bytes), received %d accounts (%d bytes, %d changes merged) in %.1f ms",
+                    peer.getLocalName(), levels, digestMessages, digestBytes, leaves, accountsSent, bytesSent,
+                    accountsReceived, bytesReceived, merged, nanos / 1e6);
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package banca;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Consumer;
 
 import jade.core.AID;
 import jade.core.Agent;
-import jade.core.behaviours.CyclicBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
@@ -15,23 +15,113 @@ import jade.lang.acl.ACLMessage;
 
 public class BankBranchAgent extends Agent{
     
-    private Map<String, Double> accounts = new HashMap<>();
+    private BranchEngine engine;
+    private DirectoryCache directory;
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private final StringBuilder requestAccount = new StringBuilder(32);
+    private ShardRing ring;
+    private static final String FORWARDED_BY = "X-Forwarded-By";
+    private AgentMetrics metrics;
+    private AntiEntropy antiEntropy;
+    private MessageDispatcher dispatcher;
+    private RateFeed rates;
+    private AID exchangeAgent;
+    private TrafficRecorder recorder;
     
     protected void setup() {
         System.out.println(getLocalName() + " started.");
 
+        directory = new DirectoryCache(this, "bank-branch", "notification", "currency-exchange");
+        engine = new BranchEngine(this, directory, BranchEngine.STRIPES);
+        try {
+            engine.recover();
+        } catch (IOException e) {
+            System.err.println(getLocalName() + " could not recover ledger: " + e.getMessage());
+            e.printStackTrace();
+        }
+
         registerToDF();
 
-        addBehaviour(new CyclicBehaviour() {
-            public void action() {
-                ACLMessage msg = receive();
-                if (msg != null) {
-                    handleMessage(msg);
-                } else {
-                    block();
-                }
+        metrics = AgentMetrics.of(this);
+        metrics.start();
+        metrics.gauge("ledger.accounts", engine::size);
+
+        // amounts in other currencies are converted with the rates the exchange agent pushes
+        rates = new RateFeed(this);
+        engine.setRates(rates);
+        directory.addListener((type, providers) -> {
+            if ("currency-exchange".equals(type) && !providers.isEmpty() && !providers.get(0).equals(exchangeAgent)) {
+                exchangeAgent = providers.get(0);
+                rates.subscribe(exchangeAgent);
             }
         });
+        directory.start();
+
+        engine.start(!ShardRing.ENABLED);
+        recorder = TrafficRecorder.get();
+        if (recorder != null) {
+            // a replay of the recording checks that it ends with these balances
+            recorder.onFinish(getLocalName(), engine::balances);
+        }
+        if (ShardRing.ENABLED) {
+            // until peers show up this branch owns everything it recovered
+            ring = new ShardRing(Collections.singletonList(getLocalName()));
+            engine.setRing(ring);
+            directory.addListener((type, providers) -> {
+                if ("bank-branch".equals(type)) {
+                    membershipChanged(providers);
+                }
+            });
+        } else {
+            // every branch holds every account, so peers can be compared range by range
+            antiEntropy = new AntiEntropy(this, directory, engine);
+            antiEntropy.start();
+            // but a transfer still credits its destination at one home branch, picked by a ring
+            engine.setHomes(ringWith(Collections.emptyList()));
+            directory.addListener((type, providers) -> {
+                if ("bank-branch".equals(type)) {
+                    engine.setHomes(ringWith(providers));
+                }
+            });
+        }
+
+        // ledger work runs on the engine's stripes, the agent thread only routes requests
+        dispatcher = MessageDispatcher.of(this)
+                .on("OPEN_ACCOUNT", this::openAccount)
+                .on("DEPOSIT", msg -> {
+                    if (readAccount(msg)) {
+                        execute(msg, stripe -> stripe.deposit(msg));
+                    }
+                })
+                .on("WITHDRAW", msg -> {
+                    if (readAccount(msg)) {
+                        execute(msg, stripe -> stripe.withdraw(msg));
+                    }
+                })
+                .on("BALANCE", this::balance)
+                .on("TRANSFER", this::transfer)
+                .on("BATCH", this::batch)
+                .on(TransferProtocol.CONVERSATION_ID, engine::transferSteps)
+                .on("SYNC_DELTA", engine::syncDelta)
+                .on(RateStream.UPDATE_CONVERSATION_ID, rates::handle);
+        if (antiEntropy != null) {
+            dispatcher.on(AntiEntropy.CONVERSATION_ID, msg -> {
+                long start = System.nanoTime();
+                antiEntropy.handle(msg);
+                metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
+            });
+        }
+    }
+
+    protected void takeDown() {
+        rates.cancel();
+        if (recorder != null) {
+            recorder.finish(getLocalName());
+        }
+        engine.stop();
+        dispatcher.close();
+        metrics.close();
+        System.out.println(getLocalName() + " stopped.");
     }
 
     
@@ -53,207 +143,166 @@ public class BankBranchAgent extends Agent{
         }
     }
     
-    private List<AID> findOtherBranches() {
-        List<AID> agents = new ArrayList<>();
-
-        DFAgentDescription template = new DFAgentDescription();
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType("bank-branch");
-        template.addServices(sd);
-
-        try {
-            DFAgentDescription[] results =
-                    DFService.search(this, template);
-
-            for (DFAgentDescription dfd : results) {
-                AID aid = dfd.getName();
-                if (!aid.equals(getAID())) {
-                    agents.add(aid);
-                }
-            }
-        } catch (FIPAException e) {
-            e.printStackTrace();
+    private void openAccount(ACLMessage msg) {
+        String content = msg.getContent();
+        String accountId = content == null ? "" : content.trim();
+        if (accountId.isEmpty()) {
+            replyFailure(msg, "Expected accountId, got: " + content);
+            return;
         }
-        return agents;
+        requestAccount.setLength(0);
+        requestAccount.append(accountId);
+        execute(msg, stripe -> stripe.openAccount(msg, accountId));
     }
 
-    
-    private void handleMessage(ACLMessage msg) {
-        String cid = msg.getConversationId();
-        String content = msg.getContent();
-
-        switch (cid) {
-        case "OPEN_ACCOUNT":
-            if (accounts.containsKey(content)) {
-                reply(msg, "Account " + content + " already exists");
-                break;
-            }
-            
-            accounts.put(content, 0.0);
-            syncAccount(content, 0.0);
-            sendAccountOpenedNotification(content);
-            reply(msg, "Account " + content + " opened with balance 0.0");
-            break;
-
-        case "DEPOSIT":
-            String[] d = content.split(";");
-            String acc = d[0];
-            double amount_d = Double.parseDouble(d[1]);
-
-            if (!accounts.containsKey(acc)) {
-                reply(msg, "Account " + acc + " doesn't exist. Open account first.");
-                break;
+    private void balance(ACLMessage msg) {
+        if (isBinary(msg)) {
+            try {
+                reader.reset(msg.getByteSequenceContent());
+                reader.readKey(requestAccount);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                replyFailure(msg, "Truncated BALANCE request");
+                return;
             }
-            
-            if (amount_d <= 0) {
-                reply(msg, "Deposit amount must be positive");
-                break;
+        } else {
+            String content = msg.getContent();
+            if (content == null || content.trim().isEmpty()) {
+                replyFailure(msg, "Expected accountId, got: " + content);
+                return;
             }
-            
-            double oldBalanceDeposit = accounts.get(acc);
-            accounts.put(acc, oldBalanceDeposit + amount_d);
-            syncAccount(acc, accounts.get(acc));
-            
-            sendTransactionNotification(acc, "DEPOSIT", amount_d, oldBalanceDeposit, accounts.get(acc));
-            
-            reply(msg, "Deposit successful. New balance: " + accounts.get(acc));
-            break;
-                    
-        case "WITHDRAW":
-            String[] w = content.split(";");
-            String account = w[0];
-            double amount_w = Double.parseDouble(w[1]);
-            
-            if (!accounts.containsKey(account)) {
-                reply(msg, "Account " + account + " doesn't exist. Open account first.");
-                break;
-            }
-            
-            if (amount_w <= 0) {
-                reply(msg, "Withdraw amount must be positive");
-                break;
+            requestAccount.setLength(0);
+            requestAccount.append(content.trim());
+        }
+        String accountId = requestAccount.toString();
+        execute(msg, stripe -> stripe.balance(msg, accountId));
+    }
+
+    private void transfer(ACLMessage msg) {
+        if (isBinary(msg)) {
+            try {
+                reader.reset(msg.getByteSequenceContent());
+                reader.readKey(requestAccount);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                replyFailure(msg, "Truncated TRANSFER request");
+                return;
             }
-            
-            double balance = accounts.get(account);
-            
-            if (balance < amount_w) {
-                reply(msg, "Insufficient funds. Balance: " + balance);
-                break;
+        } else {
+            String content = msg.getContent();
+            if (content == null || content.trim().isEmpty()) {
+                replyFailure(msg, "Expected sourceAccount;destinationAccount;amount, got: " + content);
+                return;
             }
-            
-            double oldBalanceWithdraw = balance;
-            accounts.put(account, balance - amount_w);
-            syncAccount(account, accounts.get(account));
-            
-            sendTransactionNotification(account, "WITHDRAW", amount_w, oldBalanceWithdraw, accounts.get(account));
-            
-            reply(msg, "Withdraw successful. New balance: " + accounts.get(account));
-            break;
-
-            case "SYNC_ACCOUNT":
-                String[] s = content.split(";");
-                String accountId = s[0];
-                double newBalance = Double.parseDouble(s[1]);
-                accounts.put(accountId, newBalance);
-                System.out.println(getLocalName() + " synced account " + accountId + " = " + newBalance);
-                break;
+            requestAccount.setLength(0);
+            requestAccount.append(content.split(";")[0].trim());
         }
+        execute(msg, stripe -> stripe.transfer(msg));
     }
 
-    private void syncAccount(String accountId, double balance) {
-        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
-        msg.setConversationId("SYNC_ACCOUNT");
-        msg.setContent(accountId + ";" + balance);
-
-        List<AID> otherBranches = findOtherBranches();
-        for (AID aid : otherBranches) {
-            msg.addReceiver(aid);
+    private void batch(ACLMessage msg) {
+        if (isBinary(msg)) {
+            reader.reset(msg.getByteSequenceContent());
+            engine.batch(msg, null, (int) reader.readLong());
+            return;
         }
-        
-        try {
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("notification");
-            template.addServices(sd);
-
-            DFAgentDescription[] results = DFService.search(this, template);
-            for (DFAgentDescription dfd : results) {
-                AID aid = dfd.getName();
-                msg.addReceiver(aid);
+        // text fallback, one "ACTION;accountId[;amount]" line per operation
+        List<String> lines = new ArrayList<>();
+        for (String line : msg.getContent().split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
             }
-        } catch (Exception e) {
-            //notification agent might not be registered yet
         }
-        
-        send(msg);
+        engine.batch(msg, lines.toArray(new String[0]), lines.size());
     }
 
-    private void reply(ACLMessage msg, String text) {
-        ACLMessage reply = msg.createReply();
-        reply.setPerformative(ACLMessage.INFORM);
-        reply.setContent(text);
-        send(reply);
+    /**
+     * Passes a request for requestAccount on to its owner, or queues it on the account's
+     * stripe, which times it. Only the forwarding is timed on this thread.
+     */
+    private void execute(ACLMessage msg, Consumer<BranchStripe> operation) {
+        long start = System.nanoTime();
+        if (forwardToOwner(msg, requestAccount)) {
+            metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
+            return;
+        }
+        int index = engine.stripeOf(requestAccount);
+        BranchStripe stripe = engine.stripe(index);
+        engine.execute(index, msg, () -> operation.accept(stripe));
     }
-    
-    private void sendTransactionNotification(String accountId, String transactionType, 
-                                            double amount, double oldBalance, double newBalance) {
-        ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
-        notification.setConversationId("TRANSACTION_COMPLETE");
-        notification.setContent(accountId + ";" + transactionType + ";" + 
-                              amount + ";" + oldBalance + ";" + newBalance);
-        
-        List<AID> otherAgents = findOtherAgents("notification");
-        for (AID aid : otherAgents) {
-            notification.addReceiver(aid);
+
+    /**
+     * In sharding mode, passes a request for an account owned by another branch on to
+     * that branch, which replies straight to the original sender. A request is forwarded
+     * at most once, so branches with momentarily different rings cannot bounce it.
+     */
+    private boolean forwardToOwner(ACLMessage msg, CharSequence accountId) {
+        if (ring == null || msg.getUserDefinedParameter(FORWARDED_BY) != null) {
+            return false;
         }
-        
-        if (!otherAgents.isEmpty()) {
-            send(notification);
+        String owner = ring.primaryName(accountId);
+        if (owner == null || owner.equals(getLocalName())) {
+            return false;
         }
+        ACLMessage forward = (ACLMessage) msg.clone();
+        forward.clearAllReceiver();
+        forward.addReceiver(new AID(owner, AID.ISLOCALNAME));
+        forward.addReplyTo(msg.getSender());
+        forward.addUserDefinedParameter(FORWARDED_BY, getLocalName());
+        send(forward);
+        return true;
     }
 
-    private List<AID> findOtherAgents(String agentType) {
-        List<AID> agents = new ArrayList<>();
-        
-        try {
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType(agentType);
-            template.addServices(sd);
-
-            DFAgentDescription[] results = DFService.search(this, template);
-            
-            for (DFAgentDescription dfd : results) {
-                AID aid = dfd.getName();
-                if (!aid.equals(getAID())) {
-                    agents.add(aid);
-                }
-            }
-        } catch (Exception e) {
-            // ignore - agent might not exist yet
+    private void membershipChanged(List<AID> otherBranches) {
+        ShardRing previous = ring;
+        ring = ringWith(otherBranches);
+        for (String summary : engine.rebalance(previous, ring)) {
+            System.out.println(getLocalName() + " " + summary);
         }
-        
-        return agents;
     }
 
-    
-    private void sendAccountOpenedNotification(String accountId) {
-        try {
-            DFAgentDescription template = new DFAgentDescription();
-            ServiceDescription sd = new ServiceDescription();
-            sd.setType("notification");
-            template.addServices(sd);
+    /** A ring over this branch and the other branches. */
+    private ShardRing ringWith(List<AID> otherBranches) {
+        List<String> members = new ArrayList<>();
+        members.add(getLocalName());
+        for (AID aid : otherBranches) {
+            members.add(aid.getLocalName());
+        }
+        return new ShardRing(members);
+    }
 
-            DFAgentDescription[] results = DFService.search(this, template);
-            for (DFAgentDescription dfd : results) {
-                ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
-                notification.addReceiver(dfd.getName());
-                notification.setConversationId("ACCOUNT_OPENED");
-                notification.setContent(accountId);
-                send(notification);
+    /**
+     * Decodes the account of an "account, amount" request into requestAccount, or replies
+     * FAILURE and returns false if the request has no account.
+     */
+    private boolean readAccount(ACLMessage msg) {
+        if (isBinary(msg)) {
+            try {
+                reader.reset(msg.getByteSequenceContent());
+                reader.readKey(requestAccount);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                replyFailure(msg, "Truncated " + msg.getConversationId() + " request");
+                return false;
             }
-        } catch (Exception e) {
-            //notification agent might not be registered yet
+            return true;
+        }
+        String content = msg.getContent();
+        int sep = content == null ? -1 : content.indexOf(';');
+        if (sep <= 0) {
+            replyFailure(msg, "Expected accountId;amount, got: " + content);
+            return false;
         }
+        requestAccount.setLength(0);
+        requestAccount.append(content, 0, sep);
+        return true;
+    }
+
+    private void replyFailure(ACLMessage msg, String text) {
+        ACLMessage reply = msg.createReply();
+        reply.setPerformative(ACLMessage.FAILURE);
+        reply.setContent(text);
+        send(reply);
+    }
+
+    private static boolean isBinary(ACLMessage msg) {
+        return msg.hasByteSequenceContent() && MessageCodec.isBinary(msg.getByteSequenceContent());
     }
 }
\ No newline at end of file
@@ -4,7 +4,11 @@ import java.awt.BorderLayout;
 import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import javax.swing.*;
 
 public class BankGUI extends JFrame implements BankGUIUpdater {
@@ -13,9 +17,9 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
     private JComboBox<String> branchBox;
     private JTextField accountField;
     private JTextField amountField;
-    private JTextArea output;
+    private LogView output;
     private JLabel exchangeRateLabel;
-    private JTextArea notificationArea;
+    private LogView notificationArea;
     private JButton viewNotificationsBtn;
     private JButton clearNotificationsBtn;
     private JButton setThresholdBtn;
@@ -59,7 +63,7 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         accountField = new JTextField();
         topPanel.add(accountField);
 
-        topPanel.add(new JLabel("Amount:"));
+        topPanel.add(new JLabel("Amount (e.g. 100 or 100 EUR):"));
         amountField = new JTextField();
         amountField.setText("0.0");
         topPanel.add(amountField);
@@ -73,6 +77,7 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         JButton withdrawBtn = new JButton("Withdraw");
         JButton refreshRatesBtn = new JButton("Refresh Rates");
         JButton refreshBranchesBtn = new JButton("Refresh Branches");
+        JButton batchBtn = new JButton("Load Batch...");
         
         Dimension buttonSize = new Dimension(120, 30);
         openBtn.setPreferredSize(buttonSize);
@@ -80,12 +85,14 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         withdrawBtn.setPreferredSize(buttonSize);
         refreshRatesBtn.setPreferredSize(buttonSize);
         refreshBranchesBtn.setPreferredSize(new Dimension(140, 30));
+        batchBtn.setPreferredSize(new Dimension(140, 30));
 
         buttonPanel.add(openBtn);
         buttonPanel.add(depositBtn);
         buttonPanel.add(withdrawBtn);
         buttonPanel.add(refreshRatesBtn);
         buttonPanel.add(refreshBranchesBtn);
+        buttonPanel.add(batchBtn);
         
         mainBankingPanel.add(buttonPanel, BorderLayout.CENTER);
 
@@ -101,15 +108,10 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         JPanel outputPanel = new JPanel(new BorderLayout());
         outputPanel.setBorder(BorderFactory.createTitledBorder("Transaction Log"));
         
-        output = new JTextArea();
-        output.setEditable(false);
-        output.setLineWrap(true);
-        output.setWrapStyleWord(true);
+        output = new LogView();
+        output.setPreferredSize(new Dimension(500, 150));
         
-        JScrollPane outputScrollPane = new JScrollPane(output);
-        outputScrollPane.setPreferredSize(new Dimension(500, 150));
-        
-        outputPanel.add(outputScrollPane, BorderLayout.CENTER);
+        outputPanel.add(output, BorderLayout.CENTER);
         
         bankingPanel.add(mainBankingPanel, BorderLayout.NORTH);
         bankingPanel.add(outputPanel, BorderLayout.CENTER);
@@ -119,6 +121,7 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         withdrawBtn.addActionListener(e -> withdraw());
         refreshRatesBtn.addActionListener(e -> agent.requestExchangeRates());
         refreshBranchesBtn.addActionListener(e -> agent.refreshBranches());
+        batchBtn.addActionListener(e -> loadBatch());
 
         return bankingPanel;
     }
@@ -154,15 +157,10 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         JPanel displayPanel = new JPanel(new BorderLayout());
         displayPanel.setBorder(BorderFactory.createTitledBorder("Notifications"));
         
-        notificationArea = new JTextArea();
-        notificationArea.setEditable(false);
-        notificationArea.setLineWrap(true);
-        notificationArea.setWrapStyleWord(true);
-        
-        JScrollPane scrollPane = new JScrollPane(notificationArea);
-        scrollPane.setPreferredSize(new Dimension(500, 300));
+        notificationArea = new LogView();
+        notificationArea.setPreferredSize(new Dimension(500, 300));
         
-        displayPanel.add(scrollPane, BorderLayout.CENTER);
+        displayPanel.add(notificationArea, BorderLayout.CENTER);
         notificationsPanel.add(displayPanel, BorderLayout.CENTER);
         
         viewNotificationsBtn.addActionListener(e -> {
@@ -182,7 +180,7 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
                 try {
                     Double.parseDouble(threshold);
                     agent.setLowBalanceThreshold(accountId, threshold);
-                    notificationArea.append("\nSet threshold for " + accountId + " to " + threshold);
+                    notificationArea.append("Set threshold for " + accountId + " to " + threshold);
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Please enter a valid number for threshold");
                 }
@@ -206,17 +204,12 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
 
     @Override
     public void showNotification(String notification) {
-        SwingUtilities.invokeLater(() -> {
-            notificationArea.append(notification + "\n");
-            notificationArea.setCaretPosition(notificationArea.getDocument().getLength());
-        });
+        notificationArea.append(notification);
     }
 
     @Override
     public void updateNotificationArea(String text) {
-        SwingUtilities.invokeLater(() -> {
-            notificationArea.setText(text);
-        });
+        notificationArea.setText(text);
     }
 
     private void openAccount() {
@@ -242,8 +235,7 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         }
 
         try {
-            Double.parseDouble(amount);
-            agent.sendRequest(branch, "DEPOSIT", account + ";" + amount);
+            agent.sendRequest(branch, "DEPOSIT", account + ";" + amountRequest(amount));
         } catch (NumberFormatException e) {
             JOptionPane.showMessageDialog(this, "Please enter a valid number for amount");
         }
@@ -260,16 +252,59 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
         }
 
         try {
-            Double.parseDouble(amount);
-            agent.sendRequest(branch, "WITHDRAW", account + ";" + amount);
+            agent.sendRequest(branch, "WITHDRAW", account + ";" + amountRequest(amount));
         } catch (NumberFormatException e) {
             JOptionPane.showMessageDialog(this, "Please enter a valid number for amount");
         }
     }
 
+    /** "100" or "100 EUR" as "amount[;currency]"; amounts without a currency are in the account's. */
+    private static String amountRequest(String amount) {
+        String[] parts = amount.split("\\s+");
+        if (parts.length > 2) {
+            throw new NumberFormatException(amount);
+        }
+        Double.parseDouble(parts[0]);
+        return parts.length == 2 ? parts[0] + ";" + parts[1].toUpperCase() : parts[0];
+    }
+
+    private void loadBatch() {
+        String branch = (String) branchBox.getSelectedItem();
+        if (branch == null || branch.equals("Loading branches...")) {
+            JOptionPane.showMessageDialog(this, "Please select a valid branch");
+            return;
+        }
+
+        // one "ACTION;accountId[;amount]" operation per line, e.g. DEPOSIT;RO123;2500
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        // a large file would freeze the window while it is read and encoded
+        new SwingWorker<Integer, Void>() {
+            protected Integer doInBackground() throws IOException {
+                List<String> operations = Files.readAllLines(file.toPath());
+                agent.sendBatch(branch, operations);
+                return operations.size();
+            }
+
+            protected void done() {
+                try {
+                    appendOutput("Sent batch of " + get() + " lines from " + file.getName());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    JOptionPane.showMessageDialog(BankGUI.this, "Could not read batch file: " + ex.getCause().getMessage());
+                }
+            }
+        }.execute();
+    }
+
     @Override
     public void updateBranchesList(List<String> branches) {
-        SwingUtilities.invokeLater(() -> {
+        onEdt(() -> {
+            Object selected = branchBox.getSelectedItem();
             branchBox.removeAllItems();
             if (branches.isEmpty()) {
                 branchBox.addItem("No branches found");
@@ -277,25 +312,36 @@ public class BankGUI extends JFrame implements BankGUIUpdater {
                 for (String branch : branches) {
                     branchBox.addItem(branch);
                 }
-                branchBox.setSelectedIndex(0);
+                // keep the user's branch if it is still there
+                if (branches.contains(selected)) {
+                    branchBox.setSelectedItem(selected);
+                } else {
+                    branchBox.setSelectedIndex(0);
+                }
             }
         });
     }
 
     @Override
     public void updateExchangeRates(String ratesText) {
-        SwingUtilities.invokeLater(() -> {
+        onEdt(() -> {
             exchangeRateLabel.setText("<html>" + ratesText.replace("\n", "<br>") + "</html>");
         });
     }
 
     @Override
     public void appendOutput(String text) {
-        SwingUtilities.invokeLater(() -> {
-            if (output != null) {
-                output.append(text + "\n");
-                output.setCaretPosition(output.getDocument().getLength());
-            }
-        });
+        if (output != null) {
+            output.append(text);
+        }
+    }
+
+    /** Runs the update now when already on the EDT, as CoalescingGUIUpdater calls it. */
+    private static void onEdt(Runnable update) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            update.run();
+        } else {
+            SwingUtilities.invokeLater(update);
+        }
     }
 }
\ No newline at end of file
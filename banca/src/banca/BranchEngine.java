@@ -0,0 +1,350 @@
+package banca;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Runs a branch's ledger operations on banca.branch.stripes workers (one per core by
+ * default) instead of the agent's single behaviour thread. Every account belongs to one
+ * {@link BranchStripe} by the hash of its ID; the agent thread only decodes enough of a
+ * request to pick the stripe and queues it there, so requests for one account are handled
+ * strictly in arrival order while other accounts proceed in parallel. Replies and
+ * notifications are sent by the workers, and replication once per window for all of
+ * them ({@link StripedReplication}).
+ *
+ * Messages that touch many accounts (BATCH, SYNC_DELTA, TRANSFER_2PC) are
+ * split by stripe on the agent thread ({@link StripeSplitter}), and each stripe with
+ * accounts in one gets just its part; a BATCH is answered once those stripes are done.
+ * A TRANSFER is coordinated by the stripe of its source account.
+ * Anti-entropy and rebalancing, which need the whole ledger, ask all stripes and wait.
+ *
+ * Stripe 0 journals to the agent's usual data directory and stripe i to "name-i". If the
+ * stripe count changed since the last run, recovered accounts are moved to their new
+ * stripes before the workers start.
+ */
+public class BranchEngine implements AntiEntropy.Replica {
+
+    public static final int STRIPES = Integer.getInteger("banca.branch.stripes",
+            Runtime.getRuntime().availableProcessors());
+
+    private final Agent agent;
+    private final AgentMetrics metrics;
+    private final BranchStripe[] stripes;
+    private final StripeSplitter splitter;
+    private final StripedReplication replication;
+
+    public BranchEngine(Agent agent, DirectoryCache directory, int count) {
+        this.agent = agent;
+        this.metrics = AgentMetrics.of(agent);
+        stripes = new BranchStripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new BranchStripe(agent, directory, i, count, journalName(i));
+            metrics.gauge("stripe." + i + ".queue", stripes[i]::queueSize);
+            metrics.gauge("stripe." + i + ".transfersInFlight", stripes[i]::transfersInFlight);
+            metrics.gauge("stripe." + i + ".journalFailed", stripes[i]::journalFailed);
+        }
+        splitter = new StripeSplitter(count);
+        replication = new StripedReplication(agent, directory, stripes, AccountReplicator.DEFAULT_WINDOW_MS);
+    }
+
+    public static int stripeOf(CharSequence accountId, int stripes) {
+        return (int) ((ShardRing.hash(accountId, 0, accountId.length()) >>> 1) % stripes);
+    }
+
+    public int stripeOf(CharSequence accountId) {
+        return stripeOf(accountId, stripes.length);
+    }
+
+    public BranchStripe stripe(int index) {
+        return stripes[index];
+    }
+
+    /** Recovers every stripe's journal and moves accounts that now belong to another stripe. */
+    public void recover() throws IOException {
+        String name = agent.getLocalName();
+        long start = System.currentTimeMillis();
+        long replayed = 0;
+        for (BranchStripe stripe : stripes) {
+            replayed += stripe.journal.recover();
+        }
+
+        int moved = 0;
+        if (stripes[0].journal.getDurability() != LedgerJournal.Durability.OFF) {
+            // journals of stripes that no longer exist
+            for (int i = stripes.length; LedgerJournal.dataDir(journalName(i)).isDirectory(); i++) {
+                Ledger retired = new Ledger();
+                LedgerJournal journal = LedgerJournal.forAgent(journalName(i), retired);
+                replayed += journal.recover();
+                for (int slot = 0; slot < retired.size(); slot++) {
+                    adopt(retired, slot);
+                    moved++;
+                }
+                journal.discard();
+            }
+        }
+        for (int s = 0; s < stripes.length; s++) {
+            Ledger ledger = stripes[s].ledger;
+            StringBuilder key = new StringBuilder(32);
+            for (int slot = ledger.size() - 1; slot >= 0; slot--) {
+                key.setLength(0);
+                ledger.appendAccountId(slot, key);
+                if (stripeOf(key) != s) {
+                    for (Ledger.Hold hold : adopt(ledger, slot)) {
+                        stripes[s].journal.appendRelease(hold);
+                    }
+                    stripes[s].journal.appendRemoval(slot);
+                    ledger.remove(slot);
+                    moved++;
+                }
+            }
+        }
+        for (BranchStripe stripe : stripes) {
+            stripe.journal.commit();
+        }
+
+        System.out.println(name + " recovered " + size() + " accounts in " + stripes.length + " stripes ("
+                + replayed + " log records replayed, " + moved + " accounts restriped) in "
+                + (System.currentTimeMillis() - start) + " ms, durability " + stripes[0].journal.getDurability());
+    }
+
+    /** Gives the stripes the rates pushed by the exchange agent; call before start. */
+    public void setRates(RateFeed rates) {
+        for (BranchStripe stripe : stripes) {
+            stripe.setRates(rates);
+        }
+    }
+
+    /** Starts the workers; with anti-entropy the stripes keep digest trees, otherwise rebalancers. */
+    public void start(boolean antiEntropy) {
+        for (BranchStripe stripe : stripes) {
+            stripe.start(antiEntropy, replication);
+        }
+        replication.start();
+    }
+
+    public void stop() {
+        for (BranchStripe stripe : stripes) {
+            stripe.stop();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (BranchStripe stripe : stripes) {
+            size += stripe.ledger.size();
+        }
+        return size;
+    }
+
+    /** Every account's balance, read on the stripes. */
+    public Map<String, Long> balances() {
+        Map<String, Long> balances = new TreeMap<>();
+        for (Map<String, Long> part : callAll(stripe -> {
+            Map<String, Long> accounts = new HashMap<>();
+            for (int slot = 0; slot < stripe.ledger.size(); slot++) {
+                accounts.put(stripe.ledger.accountId(slot), stripe.ledger.balance(slot));
+            }
+            return accounts;
+        })) {
+            balances.putAll(part);
+        }
+        return balances;
+    }
+
+    /** Queues a request on the stripe of its account and times it as a handled message. */
+    public void execute(int stripe, ACLMessage msg, Runnable handler) {
+        String cid = msg.getConversationId();
+        stripes[stripe].execute(() -> {
+            long start = System.nanoTime();
+            handler.run();
+            metrics.recordMessage(cid, System.nanoTime() - start);
+        });
+    }
+
+    public void syncDelta(ACLMessage msg) {
+        dispatch(msg, splitter.syncDelta(msg.getByteSequenceContent()), BranchStripe::applyDeltas);
+    }
+
+    public void transferSteps(ACLMessage msg) {
+        String peer = msg.getSender().getLocalName();
+        dispatch(msg, splitter.transferSteps(msg.getByteSequenceContent()),
+                (stripe, part) -> stripe.handleTransferSteps(peer, part));
+    }
+
+    /** A BATCH request with the given lines if it is text, or null if it is binary. */
+    public void batch(ACLMessage msg, String[] lines, int operations) {
+        Batch batch = new Batch(agent, msg, operations);
+        byte[][] parts = splitter.batch(lines == null ? msg.getByteSequenceContent() : null, lines, batch);
+        int expected = 0;
+        for (byte[] part : parts) {
+            if (part != null) {
+                expected++;
+            }
+        }
+        batch.expect(expected);
+        dispatch(msg, parts, (stripe, part) -> stripe.batch(batch, part));
+    }
+
+    /** Queues each part on its stripe; stripes without a part do nothing. */
+    private void dispatch(ACLMessage msg, byte[][] parts, BiConsumer<BranchStripe, byte[]> handler) {
+        for (int i = 0; i < stripes.length; i++) {
+            if (parts[i] != null) {
+                BranchStripe stripe = stripes[i];
+                byte[] part = parts[i];
+                execute(i, msg, () -> handler.accept(stripe, part));
+            }
+        }
+    }
+
+    /** Runs the call on every stripe and waits for all the results, in stripe order. */
+    public <T> List<T> callAll(Function<BranchStripe, T> call) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(stripes.length);
+        for (BranchStripe stripe : stripes) {
+            futures.add(stripe.submit(() -> call.apply(stripe)));
+        }
+        List<T> results = new ArrayList<>(stripes.length);
+        for (CompletableFuture<T> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /** The ring of all branches that picks a transfer's destination branch when not sharding. */
+    public void setHomes(ShardRing homes) {
+        for (BranchStripe stripe : stripes) {
+            stripe.setHomes(homes);
+        }
+    }
+
+    public void setRing(ShardRing ring) {
+        callAll(stripe -> {
+            stripe.setRing(ring);
+            return null;
+        });
+    }
+
+    /** Rebalances every stripe for the new ring; returns one summary line per stripe. */
+    public List<String> rebalance(ShardRing previous, ShardRing next) {
+        return callAll(stripe -> {
+            stripe.setRing(next);
+            return stripe.rebalancer.rebalance(previous, next);
+        });
+    }
+
+    public void digests(int level, int[] nodes, int count, long[] into) {
+        for (long[] digests : callAll(stripe -> {
+            long[] own = new long[count];
+            stripe.digests(level, nodes, count, own);
+            return own;
+        })) {
+            for (int i = 0; i < count; i++) {
+                into[i] ^= digests[i];
+            }
+        }
+    }
+
+    public long[] stream(AID peer, int[] leaves, int count, String conversationId) {
+        long[] sent = new long[2];
+        for (long[] part : callAll(stripe -> stripe.stream(peer, leaves, count, conversationId))) {
+            sent[0] += part[0];
+            sent[1] += part[1];
+        }
+        return sent;
+    }
+
+    public int merge(byte[] chunk) {
+        byte[][] parts = splitter.syncDelta(chunk);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            if (parts[i] != null) {
+                BranchStripe stripe = stripes[i];
+                byte[] part = parts[i];
+                futures.add(stripe.submit(() -> stripe.applyDeltas(part)));
+            }
+        }
+        int merged = 0;
+        for (CompletableFuture<Integer> future : futures) {
+            merged += future.join();
+        }
+        return merged;
+    }
+
+    private List<Ledger.Hold> adopt(Ledger from, int slot) {
+        StringBuilder key = new StringBuilder(32);
+        from.appendAccountId(slot, key);
+        return stripes[stripeOf(key)].adopt(from, slot);
+    }
+
+    private String journalName(int stripe) {
+        return stripe == 0 ? agent.getLocalName() : agent.getLocalName() + "-" + stripe;
+    }
+
+    /**
+     * A BATCH request split over the stripes. Each stripe fills in the results of its
+     * operations; the stripe finishing last sends the single reply, in operation order.
+     */
+    static final class Batch {
+        final ACLMessage request;
+        private final Agent agent;
+        private final String[] results;
+        private final boolean[] succeeded;
+        private final AtomicInteger pendingParts = new AtomicInteger();
+
+        Batch(Agent agent, ACLMessage request, int operations) {
+            this.agent = agent;
+            this.request = request;
+            this.results = new String[operations];
+            this.succeeded = new boolean[operations];
+        }
+
+        void result(int index, String text, boolean ok) {
+            results[index] = text;
+            succeeded[index] = ok;
+        }
+
+        /** Sets the number of stripes with operations; call before queueing them. Replies now if none. */
+        void expect(int parts) {
+            if (parts == 0) {
+                reply();
+            } else {
+                pendingParts.set(parts);
+            }
+        }
+
+        void partDone() {
+            if (pendingParts.decrementAndGet() > 0) {
+                return;
+            }
+            reply();
+        }
+
+        private void reply() {
+            StringBuilder text = new StringBuilder();
+            int ok = 0;
+            for (int i = 0; i < results.length; i++) {
+                if (succeeded[i]) {
+                    ok++;
+                }
+                text.append(i + 1).append(succeeded[i] ? ";OK;" : ";ERROR;")
+                        .append(results[i] == null ? "Not handled" : results[i]).append('\n');
+            }
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setContent("Batch of " + results.length + " operations: " + ok + " ok, "
+                    + (results.length - ok) + " failed\n" + text);
+            agent.send(reply);
+        }
+    }
+}
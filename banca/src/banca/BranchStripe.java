@@ -0,0 +1,731 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * One stripe of a branch's accounts together with everything that reads or writes them:
+ * ledger, journal, replicator, digest tree and rebalancer, plus the worker thread that
+ * owns them. {@link BranchEngine} assigns every account to one stripe by hash and queues
+ * each operation on that stripe, so operations on an account run strictly in order
+ * while different stripes run in parallel, and none of this state needs locking.
+ *
+ * The worker runs the tasks that queued up while it was busy as one group and commits
+ * the journal once for the group, after which the group's replies go out (group commit,
+ * as the agent's own loop used to do). Between groups it times out transfers and, with
+ * ASYNC durability, forces the journal on their usual intervals; replication is flushed
+ * by the rounds of the engine's {@link StripedReplication}.
+ *
+ * Once the journal has failed the stripe fails closed: changes are refused, replies
+ * still waiting for the failed commit go out as FAILURE, and nothing is replicated.
+ */
+public class BranchStripe implements Runnable {
+
+    private static final int MAX_TASKS_PER_COMMIT = 1000;
+    static final String JOURNAL_FAILED = "Ledger journal failed, no changes are accepted until the branch restarts";
+
+    private final Agent agent;
+    private final DirectoryCache directory;
+    private final AgentMetrics metrics;
+    private final int index;
+    private final int stripes;
+    final Ledger ledger = new Ledger();
+    final LedgerJournal journal;
+    AccountReplicator replicator;
+    AccountDigestTree tree;
+    ShardRebalancer rebalancer;
+    TransferProtocol transfers;
+    private volatile ShardRing ring;
+    private volatile ShardRing homes;
+
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    private final List<Runnable> group = new ArrayList<>();
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    private Thread thread;
+    private volatile boolean running;
+
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private final MessageCodec.Writer writer = new MessageCodec.Writer();
+    private final MessageCodec.Writer batchEvents = new MessageCodec.Writer();
+    private final StringBuilder key = new StringBuilder(32);
+    private final StringBuilder currency = new StringBuilder(8);
+    private RateFeed rates;
+    private RateSnapshot fxRates;     // rates the current DEPOSIT or WITHDRAW was converted with
+    private int fxCurrency;
+    private long fxAmount;
+    private long converted;
+    private int[] originColumns = new int[8];
+    private int[] slots = new int[64];
+    private boolean lastSucceeded;
+
+    BranchStripe(Agent agent, DirectoryCache directory, int index, int stripes, String journalName) {
+        this.agent = agent;
+        this.directory = directory;
+        this.metrics = AgentMetrics.of(agent);
+        this.index = index;
+        this.stripes = stripes;
+        // this branch's own changes go to its column, see Ledger#merge
+        ledger.setLocalOrigin(agent.getLocalName());
+        journal = LedgerJournal.forAgent(journalName, ledger);
+    }
+
+    /** Creates the helpers over the recovered ledger and starts the worker. */
+    void start(boolean antiEntropy, StripedReplication replication) {
+        replicator = new AccountReplicator(agent, directory, ledger);
+        replicator.joinRounds(replication);
+        if (antiEntropy) {
+            tree = new AccountDigestTree(ledger);
+            ledger.setObserver(tree);
+        } else {
+            rebalancer = new ShardRebalancer(agent.getLocalName(), ledger, journal, replicator);
+        }
+        transfers = new TransferProtocol(this, agent, ledger, journal, index);
+        transfers.recover();
+        running = true;
+        thread = new Thread(this, agent.getLocalName() + "-stripe-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops the worker after the tasks already queued, then flushes and closes. */
+    void stop() {
+        if (thread == null) {
+            return;
+        }
+        execute(() -> running = false);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replicator.flush();
+        journal.close();
+    }
+
+    public void execute(Runnable task) {
+        queue.add(task);
+    }
+
+    /** Runs the task on this stripe's worker and completes with its result. */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(task.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    /** Read by the metrics thread, so an estimate. */
+    public int transfersInFlight() {
+        TransferProtocol protocol = transfers;
+        return protocol == null ? 0 : protocol.inFlight();
+    }
+
+    /** 1 once the journal failed and the stripe refuses changes, otherwise 0. */
+    public int journalFailed() {
+        return journal.isFailed() ? 1 : 0;
+    }
+
+    public void run() {
+        long flushEvery = replicator.getWindowMs();
+        long nextFlush = System.currentTimeMillis() + flushEvery;
+        long nextCommit = System.currentTimeMillis() + LedgerJournal.FLUSH_INTERVAL_MS;
+        boolean async = journal.getDurability() == LedgerJournal.Durability.ASYNC;
+        while (running) {
+            long now = System.currentTimeMillis();
+            Runnable task;
+            try {
+                task = queue.poll(Math.max(0, nextFlush - now), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (task != null) {
+                group.add(task);
+                queue.drainTo(group, MAX_TASKS_PER_COMMIT - 1);
+                for (Runnable queued : group) {
+                    try {
+                        queued.run();
+                    } catch (RuntimeException e) {
+                        System.err.println(thread.getName() + " task failed: " + e);
+                        e.printStackTrace();
+                    }
+                }
+                group.clear();
+                endGroup();
+            }
+
+            now = System.currentTimeMillis();
+            if (now >= nextFlush) {
+                replicator.tick();
+                transfers.tick();
+                endGroup();
+                nextFlush = now + flushEvery;
+            }
+            if (async && now >= nextCommit) {
+                journal.commit();
+                nextCommit = now + LedgerJournal.FLUSH_INTERVAL_MS;
+            }
+        }
+    }
+
+    /**
+     * Makes the group durable, then lets out what depended on it: replies and transfer
+     * steps. A snapshot that came due during the group starts only after that.
+     */
+    private void endGroup() {
+        if (journal.getDurability() == LedgerJournal.Durability.SYNC) {
+            journal.commit();
+        }
+        runAfterCommit();
+        transfers.flush();
+        journal.snapshotIfDue();
+    }
+
+    /** Rates for DEPOSIT and WITHDRAW amounts in other currencies; set before start. */
+    void setRates(RateFeed rates) {
+        this.rates = rates;
+    }
+
+    void setRing(ShardRing ring) {
+        this.ring = ring;
+        replicator.setRing(ring);
+    }
+
+    ShardRing ring() {
+        return ring;
+    }
+
+    void setHomes(ShardRing homes) {
+        this.homes = homes;
+    }
+
+    ShardRing homes() {
+        return homes;
+    }
+
+    boolean owns(CharSequence accountId) {
+        return BranchEngine.stripeOf(accountId, stripes) == index;
+    }
+
+    public void transfer(ACLMessage msg) {
+        transfers.begin(msg);
+    }
+
+    public void handleTransferSteps(String peer, byte[] part) {
+        transfers.handle(peer, part);
+    }
+
+    public void openAccount(ACLMessage msg, String accountId) {
+        replyOutcome(msg, openAccount(accountId, null));
+    }
+
+    public void deposit(ACLMessage msg) {
+        String error = readAndConvert(msg);
+        replyOutcome(msg, error != null ? error : conversionNote(deposit(key, converted, null)));
+        fxRates = null;
+    }
+
+    public void withdraw(ACLMessage msg) {
+        String error = readAndConvert(msg);
+        replyOutcome(msg, error != null ? error : conversionNote(withdraw(key, converted, null)));
+        fxRates = null;
+    }
+
+    /** Reads and converts a DEPOSIT or WITHDRAW request; returns why it cannot be carried out, or null. */
+    private String readAndConvert(ACLMessage msg) {
+        long amount;
+        try {
+            amount = readRequest(msg);
+        } catch (IllegalArgumentException e) {
+            fxRates = null;
+            lastSucceeded = false;
+            return "Malformed " + msg.getConversationId() + " request: " + e.getMessage();
+        }
+        return convert(amount);
+    }
+
+    /**
+     * Converts a request amount in currency, if one was given, into the account currency,
+     * which is the base currency of the rates, with the snapshot last pushed by the
+     * exchange agent; no request to it is needed. Leaves the result in converted and
+     * returns null, or returns why it could not convert.
+     */
+    private String convert(long amount) {
+        fxRates = null;
+        converted = amount;
+        if (currency.length() == 0) {
+            return null;
+        }
+        RateSnapshot snapshot = rates == null ? null : rates.snapshot();
+        int ordinal = snapshot == null ? -1 : snapshot.ordinal(currency);
+        if (ordinal < 0) {
+            lastSucceeded = false;
+            return snapshot == null ? "Exchange rates are not available yet" : "Unknown currency " + currency;
+        }
+        if (ordinal > 0) {
+            double value = amount * snapshot.rate(ordinal, 0);
+            if (!(Math.abs(value) <= Money.MAX)) {
+                lastSucceeded = false;
+                return "Amount out of range in the account currency";
+            }
+            fxRates = snapshot;
+            fxCurrency = ordinal;
+            fxAmount = amount;
+            converted = Math.round(value);
+            metrics.increment("fx.converted");
+        }
+        return null;
+    }
+
+    /** Adds the original amount, rate and rates version to the reply of a converted operation. */
+    private String conversionNote(String text) {
+        if (fxRates == null || !lastSucceeded) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 64).append(text).append(" (");
+        Money.append(sb, fxAmount).append(' ').append(fxRates.currency(fxCurrency)).append(" at ");
+        RateSnapshot.appendRate(sb, fxRates.rate(fxCurrency, 0)).append(", rates version ")
+                .append(fxRates.version()).append(')');
+        return sb.toString();
+    }
+
+    public void balance(ACLMessage msg, String accountId) {
+        int slot = ledger.find(accountId);
+        lastSucceeded = slot >= 0;
+        if (slot < 0) {
+            replyOutcome(msg, "Account " + accountId + " doesn't exist. Open account first.");
+        } else {
+            replyOutcome(msg, "Balance of " + accountId + ": " + Money.format(ledger.balance(slot)));
+        }
+    }
+
+    /**
+     * Ledger operations shared by the single requests and BATCH. Each returns the reply
+     * text and sets lastSucceeded. Notification events go into the events writer when
+     * one is given, or out as a message of their own otherwise.
+     */
+    private String openAccount(CharSequence accountId, MessageCodec.Writer events) {
+        lastSucceeded = false;
+        if (journal.isFailed()) {
+            return JOURNAL_FAILED;
+        }
+        int opened = ledger.open(accountId);
+        if (opened < 0) {
+            return "Account " + accountId + " already exists";
+        }
+
+        journal.append(opened);
+        replicator.markDirty(opened);
+        if (events != null) {
+            events.writeByte(MessageCodec.ACCOUNT_OPENED).writeKey(accountId);
+        } else {
+            sendAccountOpenedNotification(accountId);
+        }
+        lastSucceeded = true;
+        return "Account " + accountId + " opened with balance " + Money.format(0);
+    }
+
+    private String deposit(CharSequence accountId, long amount, MessageCodec.Writer events) {
+        lastSucceeded = false;
+        if (journal.isFailed()) {
+            return JOURNAL_FAILED;
+        }
+        int accSlot = ledger.find(accountId);
+
+        if (accSlot < 0) {
+            return "Account " + accountId + " doesn't exist. Open account first.";
+        }
+
+        if (amount <= 0) {
+            return "Deposit amount must be positive";
+        }
+
+        long oldBalance = ledger.balance(accSlot);
+        long newBalance;
+        try {
+            newBalance = ledger.credit(accSlot, amount);
+        } catch (ArithmeticException e) {
+            return "Deposit would overflow the balance of " + accountId;
+        }
+        journal.append(accSlot, ledger.localOrigin());
+        replicator.markDirty(accSlot);
+
+        transactionEvent(events, accountId, MessageCodec.DEPOSIT, amount, oldBalance, newBalance);
+
+        lastSucceeded = true;
+        return "Deposit successful. New balance: " + Money.format(newBalance);
+    }
+
+    private String withdraw(CharSequence accountId, long amount, MessageCodec.Writer events) {
+        lastSucceeded = false;
+        if (journal.isFailed()) {
+            return JOURNAL_FAILED;
+        }
+        int accountSlot = ledger.find(accountId);
+
+        if (accountSlot < 0) {
+            return "Account " + accountId + " doesn't exist. Open account first.";
+        }
+
+        if (amount <= 0) {
+            return "Withdraw amount must be positive";
+        }
+
+        long oldBalance = ledger.balance(accountSlot);
+
+        if (!ledger.debit(accountSlot, amount)) {
+            return "Insufficient funds. Balance: " + Money.format(oldBalance);
+        }
+
+        long newBalance = ledger.balance(accountSlot);
+        journal.append(accountSlot, ledger.localOrigin());
+        replicator.markDirty(accountSlot);
+
+        transactionEvent(events, accountId, MessageCodec.WITHDRAW, amount, oldBalance, newBalance);
+
+        lastSucceeded = true;
+        return "Withdraw successful. New balance: " + Money.format(newBalance);
+    }
+
+    private void transactionEvent(MessageCodec.Writer events, CharSequence accountId, byte type,
+                                  long amount, long oldBalance, long newBalance) {
+        if (events != null) {
+            events.writeByte(type).writeKey(accountId).writeLong(amount).writeLong(oldBalance).writeLong(newBalance);
+        } else {
+            sendTransactionNotification(accountId, type, amount, oldBalance, newBalance);
+        }
+    }
+
+    /**
+     * Applies this stripe's part of a BATCH request, see {@link StripeSplitter}. The reply
+     * goes out when every stripe has done its part; the notification events of this
+     * stripe leave as one TRANSACTION_BATCH message.
+     */
+    public void batch(BranchEngine.Batch batch, byte[] part) {
+        MessageCodec.Writer events = batchEvents.begin(MessageCodec.TRANSACTION_BATCH);
+        int[] done = new int[8];
+        int succeeded = 0;
+        reader.reset(part);
+        while (reader.hasRemaining()) {
+            int i = (int) reader.readLong();
+            int type = reader.readByte();
+            reader.readKey(key);
+            long amount = type == MessageCodec.OPEN_ACCOUNT ? 0 : reader.readLong();
+            batch.result(i, batchOperation(type, key, amount, events), lastSucceeded);
+            if (lastSucceeded) {
+                if (succeeded == done.length) {
+                    done = Arrays.copyOf(done, succeeded * 2);
+                }
+                done[succeeded++] = i;
+            }
+        }
+
+        if (events.size() > 3) {
+            List<AID> notifiers = directory.get("notification");
+            if (!notifiers.isEmpty()) {
+                ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
+                notification.setConversationId("TRANSACTION_BATCH");
+                notification.setByteSequenceContent(events.toBytes());
+                for (AID aid : notifiers) {
+                    notification.addReceiver(aid);
+                }
+                agent.send(notification);
+            }
+        }
+        int[] operations = done;
+        int count = succeeded;
+        afterCommit(() -> {
+            if (journal.isFailed()) {
+                // the commit these operations waited for failed
+                for (int k = 0; k < count; k++) {
+                    batch.result(operations[k], JOURNAL_FAILED, false);
+                }
+            }
+            batch.partDone();
+        });
+    }
+
+    private String batchOperation(int type, CharSequence accountId, long amount, MessageCodec.Writer events) {
+        ShardRing current = ring;
+        String owner = current == null ? null : current.primaryName(accountId);
+        if (owner != null && !owner.equals(agent.getLocalName())) {
+            lastSucceeded = false;
+            return "Account " + accountId + " belongs to branch " + owner;
+        } else if (type == MessageCodec.OPEN_ACCOUNT) {
+            return openAccount(accountId, events);
+        } else if (type == MessageCodec.DEPOSIT) {
+            return deposit(accountId, amount, events);
+        } else if (type == MessageCodec.WITHDRAW) {
+            return withdraw(accountId, amount, events);
+        }
+        lastSucceeded = false;
+        return "Unsupported operation " + type;
+    }
+
+    /**
+     * Merges this stripe's part of a SYNC_DELTA batch, see {@link StripeSplitter}.
+     * Contributions are taken only if newer than the ones held, so repeated, reordered or
+     * retried batches are harmless, and changes made to the same account at other
+     * branches add up with the local ones. Returns the number of columns merged.
+     */
+    public int applyDeltas(byte[] content) {
+        if (journal.isFailed()) {
+            metrics.increment("sync.refused");
+            return 0;
+        }
+        reader.reset(content);
+        int origins = (int) reader.readLong();
+        if (originColumns.length < origins) {
+            originColumns = new int[origins];
+        }
+        for (int o = 0; o < origins; o++) {
+            originColumns[o] = ledger.origin(reader.readKey(key));
+        }
+        long count = reader.readLong();
+        int accounts = 0;
+        int merged = 0;
+        int stale = 0;
+        for (long i = 0; i < count; i++) {
+            reader.readKey(key);
+            reader.readLong();   // the sender's balance, derived here from the contributions
+            long columns = reader.readLong();
+            accounts++;
+            int slot = ledger.open(key);
+            boolean opened = slot >= 0;
+            slot = opened ? slot : -slot - 1;
+            boolean changed = false;
+            for (long c = 0; c < columns; c++) {
+                int origin = originColumns[(int) reader.readLong()];
+                long seq = reader.readLong();
+                long contribution = reader.readLong();
+                if (ledger.merge(slot, origin, seq, contribution)) {
+                    journal.append(slot, origin);
+                    changed = true;
+                    merged++;
+                } else {
+                    stale++;
+                }
+            }
+            if (opened && !changed) {
+                journal.append(slot);
+            }
+        }
+        metrics.record("sync.accounts", accounts);
+        metrics.add("sync.merged", merged);
+        metrics.add("sync.stale", stale);
+        return merged;
+    }
+
+    /** XORs this stripe's digests of the given tree nodes into the array. */
+    public void digests(int level, int[] nodes, int count, long[] into) {
+        for (int i = 0; i < count; i++) {
+            into[i] ^= tree.digest(level, nodes[i]);
+        }
+    }
+
+    /** Sends this stripe's accounts in the given leaves to the peer; returns {accounts, bytes}. */
+    public long[] stream(AID peer, int[] leaves, int count, String conversationId) {
+        List<AID> receivers = Collections.singletonList(peer);
+        long[] sent = new long[2];
+        int chunk = 0;
+        for (int i = 0; i < count; i++) {
+            for (int slot = tree.firstInLeaf(leaves[i]); slot >= 0; slot = tree.nextInLeaf(slot)) {
+                if (chunk == slots.length) {
+                    slots = Arrays.copyOf(slots, chunk * 2);
+                }
+                slots[chunk++] = slot;
+                if (chunk == AccountReplicator.DEFAULT_BATCH_SIZE) {
+                    sent[1] += replicator.send(receivers, slots, chunk, conversationId);
+                    sent[0] += chunk;
+                    chunk = 0;
+                }
+            }
+        }
+        if (chunk > 0) {
+            sent[1] += replicator.send(receivers, slots, chunk, conversationId);
+            sent[0] += chunk;
+        }
+        return sent;
+    }
+
+    /**
+     * Copies an account of another ledger into this stripe, e.g. when the stripe count
+     * changed, and moves its transfer holds along; returns the holds taken from the other ledger.
+     */
+    List<Ledger.Hold> adopt(Ledger from, int slot) {
+        key.setLength(0);
+        from.appendAccountId(slot, key);
+        int target = ledger.open(key);
+        if (target < 0) {
+            target = -target - 1;
+        }
+        boolean columns = false;
+        for (int o = 0; o < from.originCount(); o++) {
+            long seq = from.sequence(slot, o);
+            if (seq > 0) {
+                ledger.merge(target, ledger.origin(from.originName(o)), seq, from.contribution(slot, o));
+                columns = true;
+            }
+        }
+        if (!columns) {
+            ledger.setBalance(target, from.balance(slot));
+        }
+        journal.append(target);
+
+        String accountId = key.toString();
+        List<Ledger.Hold> moved = new ArrayList<>();
+        for (Ledger.Hold hold : from.holds()) {
+            if (hold.account.equals(accountId)) {
+                moved.add(hold);
+            }
+        }
+        for (Ledger.Hold hold : moved) {
+            from.release(hold.transfer);
+            ledger.restoreHold(hold.transfer, hold.account, hold.counterparty, hold.amount, hold.outgoing,
+                    hold.isCommitted());
+            journal.appendHold(ledger.getHold(hold.transfer));
+        }
+        return moved;
+    }
+
+    /**
+     * Decodes an "account, amount[, currency]" request into key and currency and returns
+     * the amount, accepting both the binary codec and the "accountId;amount[;currency]"
+     * text format. Throws IllegalArgumentException, e.g. a NumberFormatException, if the
+     * request cannot be read.
+     */
+    private long readRequest(ACLMessage msg) {
+        currency.setLength(0);
+        if (msg.hasByteSequenceContent() && MessageCodec.isBinary(msg.getByteSequenceContent())) {
+            try {
+                reader.reset(msg.getByteSequenceContent());
+                reader.readKey(key);
+                long amount = reader.readLong();
+                if (reader.hasRemaining()) {
+                    reader.readKey(currency);
+                }
+                return amount;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("truncated");
+            }
+        }
+        String content = msg.getContent();
+        int sep = content == null ? -1 : content.indexOf(';');
+        if (sep <= 0) {
+            throw new IllegalArgumentException("expected accountId;amount[;currency], got: " + content);
+        }
+        int end = content.indexOf(';', sep + 1);
+        key.setLength(0);
+        key.append(content, 0, sep);
+        if (end >= 0) {
+            currency.append(content.substring(end + 1).trim());
+            return Money.parse(content, sep + 1, end);
+        }
+        return Money.parse(content, sep + 1, content.length());
+    }
+
+    /** Replies to a single operation: INFORM if it succeeded, FAILURE if it was rejected. */
+    private void replyOutcome(ACLMessage msg, String text) {
+        reply(msg, lastSucceeded ? ACLMessage.INFORM : ACLMessage.FAILURE, text);
+    }
+
+    void reply(ACLMessage msg, int performative, String text) {
+        ACLMessage reply = msg.createReply();
+        reply.setPerformative(performative);
+        reply.setContent(text);
+        afterCommit(() -> {
+            if (performative == ACLMessage.INFORM && journal.isFailed()) {
+                // what the reply confirms may never have reached the disk
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent(JOURNAL_FAILED);
+            }
+            agent.send(reply);
+        });
+    }
+
+    /** Replicates a balance change made outside the operations above and notifies about it. */
+    void changed(int slot, CharSequence accountId, byte type, long amount, long oldBalance, long newBalance) {
+        replicator.markDirty(slot);
+        sendTransactionNotification(accountId, type, amount, oldBalance, newBalance);
+    }
+
+    /** Runs the action once the journal records written so far are durable. */
+    void afterCommit(Runnable action) {
+        if (journal.defersReplies()) {
+            afterCommit.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    private void runAfterCommit() {
+        for (Runnable action : afterCommit) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                // the other actions, e.g. the part of a replication round, must run anyway
+                System.err.println(thread.getName() + " action after commit failed: " + e);
+                e.printStackTrace();
+            }
+        }
+        afterCommit.clear();
+    }
+
+    private void sendTransactionNotification(CharSequence accountId, byte transactionType,
+                                             long amount, long oldBalance, long newBalance) {
+        List<AID> notifiers = directory.get("notification");
+        if (notifiers.isEmpty()) {
+            return;
+        }
+
+        ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
+        notification.setConversationId("TRANSACTION_COMPLETE");
+        writer.begin(MessageCodec.TRANSACTION_COMPLETE).writeKey(accountId).writeByte(transactionType)
+                .writeLong(amount).writeLong(oldBalance).writeLong(newBalance);
+        if (fxRates != null) {
+            // the conversion, so the transaction can be audited against the rates it used
+            writer.writeKey(fxRates.currency(fxCurrency)).writeLong(fxAmount).writeLong(fxRates.version());
+        }
+        notification.setByteSequenceContent(writer.toBytes());
+
+        for (AID aid : notifiers) {
+            notification.addReceiver(aid);
+        }
+        agent.send(notification);
+    }
+
+    private void sendAccountOpenedNotification(CharSequence accountId) {
+        //notification agent might not be registered yet
+        List<AID> notifiers = directory.get("notification");
+        if (notifiers.isEmpty()) {
+            return;
+        }
+
+        ACLMessage notification = new ACLMessage(ACLMessage.INFORM);
+        for (AID aid : notifiers) {
+            notification.addReceiver(aid);
+        }
+        notification.setConversationId("ACCOUNT_OPENED");
+        notification.setByteSequenceContent(writer.begin(MessageCodec.ACCOUNT_OPENED).writeKey(accountId).toBytes());
+        agent.send(notification);
+    }
+}
@@ -0,0 +1,110 @@
+package banca;
+
+import java.util.List;
+import javax.swing.Timer;
+
+/**
+ * BankGUIUpdater in front of the real GUI that agent behaviours can call as often as they
+ * like. Of the state updates, the exchange rates, the branch list and the notification
+ * area, only the newest pending value of each is kept, and a Swing Timer applies them
+ * together once per frame; rates and branch lists equal to the ones shown are skipped.
+ * The notification area is always applied, since its buttons also write to it.
+ *
+ * appendOutput goes straight through, as the log views batch lines themselves. So does
+ * showNotification, unless a notification area update is pending, in which case the line
+ * is added to it so it is not wiped out when the update lands.
+ */
+public class CoalescingGUIUpdater implements BankGUIUpdater {
+
+    private final BankGUIUpdater gui;
+    private final Timer timer = new Timer(LogView.FRAME_MILLIS, e -> apply());
+
+    // written by any thread under the lock, applied on the EDT
+    private final Object lock = new Object();
+    private String rates;
+    private List<String> branches;
+    private String notificationArea;
+    private boolean scheduled;
+
+    private String shownRates;
+    private List<String> shownBranches;
+
+    public CoalescingGUIUpdater(BankGUIUpdater gui) {
+        this.gui = gui;
+        timer.setRepeats(false);
+        timer.setCoalesce(false);
+    }
+
+    @Override
+    public void updateBranchesList(List<String> branches) {
+        synchronized (lock) {
+            this.branches = branches;
+            schedule();
+        }
+    }
+
+    @Override
+    public void updateExchangeRates(String ratesText) {
+        synchronized (lock) {
+            this.rates = ratesText;
+            schedule();
+        }
+    }
+
+    @Override
+    public void updateNotificationArea(String text) {
+        synchronized (lock) {
+            this.notificationArea = text;
+            schedule();
+        }
+    }
+
+    @Override
+    public void appendOutput(String text) {
+        gui.appendOutput(text);
+    }
+
+    @Override
+    public void showNotification(String notification) {
+        synchronized (lock) {
+            if (notificationArea != null) {
+                notificationArea = notificationArea + "\n" + notification;
+                return;
+            }
+        }
+        gui.showNotification(notification);
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            timer.start();
+        }
+    }
+
+    private void apply() {
+        String newRates;
+        List<String> newBranches;
+        String newArea;
+        synchronized (lock) {
+            newRates = rates;
+            newBranches = branches;
+            newArea = notificationArea;
+            rates = null;
+            branches = null;
+            notificationArea = null;
+            scheduled = false;
+        }
+        if (newRates != null && !newRates.equals(shownRates)) {
+            shownRates = newRates;
+            gui.updateExchangeRates(newRates);
+        }
+        if (newBranches != null && !newBranches.equals(shownBranches)) {
+            shownBranches = newBranches;
+            gui.updateBranchesList(newBranches);
+        }
+        if (newArea != null) {
+            gui.updateNotificationArea(newArea);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Local view of the DF kept up to date through one FIPA subscription per service type.
+ * Lookups return immutable snapshots and never talk to the DF, so they are safe to use
+ * on the message-handling path of any agent.
+ */
+public class DirectoryCache {
+
+    public interface Listener {
+        void providersChanged(String type, List<AID> providers);
+    }
+
+    static final String CONVERSATION_PREFIX = "DF_SUBSCRIPTION-";
+
+    private final Agent agent;
+    private final String[] types;
+    private final Map<String, Set<AID>> providers = new ConcurrentHashMap<>();
+    private final Map<String, List<AID>> snapshots = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AgentMetrics metrics;
+
+    public DirectoryCache(Agent agent, String... types) {
+        this.agent = agent;
+        this.types = types;
+        for (String type : types) {
+            providers.put(type, new LinkedHashSet<>());
+            snapshots.put(type, Collections.emptyList());
+        }
+        this.metrics = AgentMetrics.of(agent);
+    }
+
+    /** Sends the subscriptions and routes the DF notifications for them to this cache. */
+    public void start() {
+        MessageDispatcher dispatcher = MessageDispatcher.of(agent);
+        for (String type : types) {
+            DFAgentDescription dfd = new DFAgentDescription();
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType(type);
+            dfd.addServices(sd);
+
+            ACLMessage subscribe = DFService.createSubscriptionMessage(agent, agent.getDefaultDF(), dfd, null);
+            subscribe.setConversationId(CONVERSATION_PREFIX + type);
+            dispatcher.on(CONVERSATION_PREFIX + type, this::handle);
+            agent.send(subscribe);
+        }
+    }
+
+    /**
+     * Providers of the given type, excluding the owning agent. Counted as a hit, or as a
+     * miss if no provider is known yet; a lookup is a map read, so it is not timed.
+     */
+    public List<AID> get(String type) {
+        List<AID> list = snapshots.get(type);
+        if (list == null || list.isEmpty()) {
+            metrics.increment("df.misses");
+            return Collections.emptyList();
+        }
+        metrics.increment("df.hits");
+        return list;
+    }
+
+    public AID first(String type) {
+        List<AID> list = get(type);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private void handle(ACLMessage msg) {
+        String cid = msg.getConversationId();
+        if (msg.getPerformative() != ACLMessage.INFORM || cid == null || !cid.startsWith(CONVERSATION_PREFIX)) {
+            return;
+        }
+        metrics.increment("df.notifications");
+        String type = cid.substring(CONVERSATION_PREFIX.length());
+        Set<AID> current = providers.get(type);
+        if (current == null) {
+            return;
+        }
+
+        DFAgentDescription[] results;
+        try {
+            results = DFService.decodeNotification(msg.getContent());
+        } catch (Exception e) {
+            System.err.println(agent.getLocalName() + " could not decode DF notification: " + e.getMessage());
+            return;
+        }
+
+        boolean changed = false;
+        for (DFAgentDescription dfd : results) {
+            AID aid = dfd.getName();
+            if (aid.equals(agent.getAID())) {
+                continue;
+            }
+            if (providesType(dfd, type)) {
+                changed |= current.add(aid);
+            } else {
+                // deregistration or modification that dropped the service
+                changed |= current.remove(aid);
+            }
+        }
+
+        if (changed) {
+            List<AID> snapshot = Collections.unmodifiableList(new ArrayList<>(current));
+            snapshots.put(type, snapshot);
+            for (Listener listener : listeners) {
+                listener.providersChanged(type, snapshot);
+            }
+        }
+    }
+
+    private static boolean providesType(DFAgentDescription dfd, String type) {
+        Iterator<?> it = dfd.getAllServices();
+        while (it.hasNext()) {
+            ServiceDescription sd = (ServiceDescription) it.next();
+            if (type.equals(sd.getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Exchange-rate state and random walk of CurrencyExchangeAgent, kept free of JADE so
+ * it can be driven directly, e.g. from benchmarks with a fixed seed.
+ *
+ * Currencies come from banca.currencies, a ',' separated list of CODE=value with the
+ * value of one unit in the first (base) currency. Each tick moves every other currency's
+ * value by up to +/-2% and publishes a new {@link RateSnapshot}, from which all cross and
+ * inverse rates follow, so an update is O(N) however many pairs there are.
+ */
+public class ExchangeRates {
+
+    public static final String DEFAULT_CURRENCIES = "RON=1,EUR=5.00,USD=4.55";
+
+    private final String[] currencies;
+    private final double[] initial;
+    private final double[] values;
+    private final Random random;
+    private volatile RateSnapshot snapshot;
+
+    public ExchangeRates(Random random) {
+        this(random, System.getProperty("banca.currencies", DEFAULT_CURRENCIES));
+    }
+
+    public ExchangeRates(Random random, String spec) {
+        this.random = random;
+        List<String> codes = new ArrayList<>();
+        List<Double> parsed = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2 || pair[0].trim().isEmpty()) {
+                throw new IllegalArgumentException("Expected CODE=value in banca.currencies: " + part);
+            }
+            String code = pair[0].trim();
+            double value = Double.parseDouble(pair[1].trim());
+            if (codes.contains(code) || !(value > 0)) {
+                throw new IllegalArgumentException("Duplicate currency or non-positive value: " + part);
+            }
+            codes.add(code);
+            parsed.add(value);
+        }
+        currencies = codes.toArray(new String[0]);
+        initial = new double[currencies.length];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = parsed.get(i);
+        }
+        values = initial.clone();
+        snapshot = new RateSnapshot(currencies, values.clone(), 0);
+    }
+
+    public void update() {
+        // Randomly adjust every value against the base currency by +/-2%
+        for (int i = 1; i < values.length; i++) {
+            double change = 1 + ((random.nextDouble() * 0.04) - 0.02);
+            double newValue = values[i] * change;
+
+            // Keep reasonable bounds
+            if (newValue > initial[i] / 100 && newValue < initial[i] * 100) {
+                values[i] = newValue;
+            }
+        }
+        snapshot = new RateSnapshot(currencies, values.clone(), snapshot.version() + 1);
+    }
+
+    /** The current rates; immutable, so it can be read on any thread. */
+    public RateSnapshot snapshot() {
+        return snapshot;
+    }
+
+    public String formatForGUI() {
+        return snapshot.format();
+    }
+}
@@ -1,18 +1,19 @@
 package banca;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.Behaviour;
-import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.WakerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.lang.acl.ACLMessage;
-import jade.lang.acl.MessageTemplate;
 import javax.swing.SwingUtilities;
 
 public class GUIAgent extends Agent {
@@ -20,10 +21,14 @@ public class GUIAgent extends Agent {
 	private BankGUIUpdater guiUpdater;
 	private AID exchangeAgentAID = null;
 	private List<String> branches = new ArrayList<>();
-	private boolean isRequestingRates = false;
+	private RateFeed rates;
 	private volatile String pendingNotificationsReplyWith = null;
 	private volatile String pendingNotificationsAccountId = null;
 	private static final long NOTIFICATIONS_TIMEOUT_MS = 5000;
+	private DirectoryCache directory;
+	private volatile ShardRing ring;
+	private MessageDispatcher dispatcher;
+	private AgentMetrics metrics;
 
 	protected void setup() {
 		System.out.println(getLocalName() + " started.");
@@ -41,53 +46,98 @@ public class GUIAgent extends Agent {
 			System.err.println(getLocalName() + " failed to register with DF: " + e.getMessage());
 		}
 
-		SwingUtilities.invokeLater(() -> {
-			BankGUI gui = new BankGUI(this);
-			guiUpdater = gui;
+		metrics = AgentMetrics.of(this);
+		metrics.start();
+		rates = new RateFeed(this);
+
+		directory = new DirectoryCache(this, "bank-branch", "notification", "currency-exchange");
+		directory.addListener((type, providers) -> {
+			if ("bank-branch".equals(type)) {
+				List<String> foundBranches = new ArrayList<>();
+				for (AID aid : providers) {
+					foundBranches.add(aid.getLocalName());
+				}
+				branches = foundBranches;
+				if (ShardRing.ENABLED) {
+					ring = new ShardRing(foundBranches);
+				}
+				if (guiUpdater != null) {
+					guiUpdater.updateBranchesList(foundBranches);
+				}
+			} else if ("notification".equals(type) && !providers.isEmpty()) {
+				// alerts for every account, batched by the notification agent
+				ACLMessage subscribe = new ACLMessage(ACLMessage.SUBSCRIBE);
+				subscribe.addReceiver(providers.get(0));
+				subscribe.setConversationId(AlertFanout.CONVERSATION_ID);
+				subscribe.setContent("*");
+				send(subscribe);
+			} else if ("currency-exchange".equals(type) && !providers.isEmpty()
+					&& !providers.get(0).equals(exchangeAgentAID)) {
+				exchangeAgentAID = providers.get(0);
+				rates.subscribe(exchangeAgentAID);
+			}
 		});
+		directory.start();
+		dispatcher = MessageDispatcher.of(this)
+				.on(RateStream.UPDATE_CONVERSATION_ID, this::handleExchangeRates)
+				.on("NOTIFICATIONS_LIST", this::handleNotificationsList)
+				.on(AlertFanout.ALERT_CONVERSATION_ID, this::handleAlerts)
+				.otherwise(this::handleReply);
 
-		addBehaviour(new ReceiveRepliesBehaviour());
+		SwingUtilities.invokeLater(() -> {
+			guiUpdater = new CoalescingGUIUpdater(new BankGUI(this));
+		});
 
 		addBehaviour(new InitialDiscoveryBehaviour());
 	}
 
-	private class ReceiveRepliesBehaviour extends CyclicBehaviour {
-		public void action() {
-			MessageTemplate mt = MessageTemplate.MatchConversationId("EXCHANGE_RATES_UPDATE");
-			ACLMessage msg = receive(mt);
+	protected void takeDown() {
+		rates.cancel();
+		dispatcher.close();
+		metrics.close();
+	}
 
-			if (msg != null) {
-				if (guiUpdater != null) {
-					guiUpdater.updateExchangeRates(msg.getContent());
-				}
-				isRequestingRates = false;
-				return;
-			}
+	private void handleExchangeRates(ACLMessage msg) {
+		long start = System.nanoTime();
+		if (rates.handle(msg) && guiUpdater != null) {
+			guiUpdater.updateExchangeRates(rates.snapshot().format());
+		}
+		metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
+	}
 
-			msg = receive();
-			if (msg != null) {
-				System.out.println("[" + getLocalName() + "] Received: " + msg.getConversationId() + " from "
-						+ msg.getSender().getLocalName());
+	/** Shows the notifications requested last; replies to earlier or timed out requests are dropped. */
+	private void handleNotificationsList(ACLMessage msg) {
+		long start = System.nanoTime();
+		String correlationId = pendingNotificationsReplyWith;
+		if (correlationId != null && correlationId.equals(msg.getInReplyTo())) {
+			pendingNotificationsReplyWith = null;
+			pendingNotificationsAccountId = null;
+			if (guiUpdater != null) {
+				guiUpdater.updateNotificationArea(msg.getContent());
+			}
+		}
+		metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
+	}
 
-				if ("SYNC_ACCOUNT".equals(msg.getConversationId())) {
-					return;
-				}
+	private void handleAlerts(ACLMessage msg) {
+		long start = System.nanoTime();
+		if (guiUpdater != null) {
+			for (String alert : msg.getContent().split("\n")) {
+				guiUpdater.appendOutput("[" + msg.getSender().getLocalName() + "] " + alert);
+			}
+		}
+		metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
+	}
 
-				// NOTE: NOTIFICATIONS_LIST replies are consumed by RequestNotificationsBehaviour using
-				// blockingReceive() with a correlation id, to avoid out-of-order/race issues.
-				if ("NOTIFICATIONS_LIST".equals(msg.getConversationId())) {
-					System.out.println("[" + getLocalName()
-							+ "] Ignoring NOTIFICATIONS_LIST in ReceiveRepliesBehaviour (handled by request listener)");
-					return;
-				}
+	private void handleReply(ACLMessage msg) {
+		long start = System.nanoTime();
+		System.out.println("[" + getLocalName() + "] Received: " + msg.getConversationId() + " from "
+				+ msg.getSender().getLocalName());
 
-				if (guiUpdater != null) {
-					guiUpdater.appendOutput("[" + msg.getSender().getLocalName() + "] " + msg.getContent());
-				}
-			} else {
-				block();
-			}
+		if (!"SYNC_ACCOUNT".equals(msg.getConversationId()) && guiUpdater != null) {
+			guiUpdater.appendOutput("[" + msg.getSender().getLocalName() + "] " + msg.getContent());
 		}
+		metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
 	}
 
 	private class InitialDiscoveryBehaviour extends Behaviour {
@@ -122,64 +172,102 @@ public class GUIAgent extends Agent {
 	}
 
 	public void sendRequest(String branch, String action, String content) {
+		ShardRing shards = ring;
+		if (shards != null && shards.size() > 0) {
+			// in sharding mode the account's owner handles the request, whatever branch was picked
+			int sep = content.indexOf(';');
+			branch = shards.member(shards.primary(content, 0, sep < 0 ? content.length() : sep));
+		}
+
 		ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
 		msg.addReceiver(new AID(branch, AID.ISLOCALNAME));
 		msg.setConversationId(action);
-		msg.setContent(content);
+		if ("DEPOSIT".equals(action) || "WITHDRAW".equals(action)) {
+			// "accountId;amount[;currency]" from the form, sent with the binary codec
+			int sep = content.indexOf(';');
+			int end = content.indexOf(';', sep + 1);
+			byte type = "DEPOSIT".equals(action) ? MessageCodec.DEPOSIT : MessageCodec.WITHDRAW;
+			MessageCodec.Writer writer = new MessageCodec.Writer().begin(type).writeKey(content, 0, sep)
+					.writeLong(Money.parse(content, sep + 1, end < 0 ? content.length() : end));
+			if (end >= 0) {
+				writer.writeKey(content, end + 1, content.length());
+			}
+			msg.setByteSequenceContent(writer.toBytes());
+		} else {
+			msg.setContent(content);
+		}
 		send(msg);
 	}
 
-	public void requestExchangeRates() {
-		if (isRequestingRates) {
-			if (guiUpdater != null) {
-				guiUpdater.updateExchangeRates("Already requesting rates...");
+	/**
+	 * Sends "ACTION;accountId[;amount]" operations (OPEN_ACCOUNT, DEPOSIT, WITHDRAW) as one
+	 * BATCH request per branch, so bulk loads such as payroll files need one round trip
+	 * per branch instead of one per operation. In sharding mode operations are grouped by
+	 * the branch owning their account.
+	 */
+	public void sendBatch(String branch, List<String> operations) {
+		ShardRing shards = ring;
+		Map<String, List<String[]>> byBranch = new LinkedHashMap<>();
+		for (String operation : operations) {
+			String line = operation.trim();
+			if (line.isEmpty()) {
+				continue;
 			}
-			return;
-		}
-
-		if (exchangeAgentAID != null) {
-			isRequestingRates = true;
-			addBehaviour(new RequestRatesBehaviour());
-		} else if (guiUpdater != null) {
-			guiUpdater.updateExchangeRates("Exchange agent not found. Searching...");
-			addBehaviour(new DiscoverExchangeAgentBehaviour());
+			String[] parts = line.split(";");
+			if (parts.length < 2 || (!"OPEN_ACCOUNT".equals(parts[0]) && parts.length < 3)) {
+				if (guiUpdater != null) {
+					guiUpdater.appendOutput("Skipping malformed batch line: " + line);
+				}
+				continue;
+			}
+			String target = shards != null && shards.size() > 0 ? shards.primaryName(parts[1]) : branch;
+			byBranch.computeIfAbsent(target, b -> new ArrayList<>()).add(parts);
 		}
-	}
 
-	public void refreshBranches() {
-		addBehaviour(new DiscoverBranchesBehaviour(false));
-	}
+		for (Map.Entry<String, List<String[]>> entry : byBranch.entrySet()) {
+			MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.BATCH);
+			writer.writeLong(entry.getValue().size());
+			try {
+				for (String[] parts : entry.getValue()) {
+					byte type = MessageCodec.typeOf(parts[0]);
+					writer.writeByte(type).writeKey(parts[1]);
+					if (type != MessageCodec.OPEN_ACCOUNT) {
+						writer.writeLong(Money.parse(parts[2]));
+					}
+				}
+			} catch (RuntimeException e) {
+				if (guiUpdater != null) {
+					guiUpdater.appendOutput("Batch for " + entry.getKey() + " not sent: " + e.getMessage());
+				}
+				continue;
+			}
 
-	private class RequestRatesBehaviour extends OneShotBehaviour {
-		public void action() {
 			ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
-			msg.addReceiver(exchangeAgentAID);
-			msg.setConversationId("GET_EXCHANGE_RATES");
-			msg.setContent("Request rates");
+			msg.addReceiver(new AID(entry.getKey(), AID.ISLOCALNAME));
+			msg.setConversationId("BATCH");
+			msg.setByteSequenceContent(writer.toBytes());
 			send(msg);
-
-			addBehaviour(new RateRequestTimeoutBehaviour());
 		}
 	}
 
-	private class RateRequestTimeoutBehaviour extends Behaviour {
-		private long startTime = System.currentTimeMillis();
-		private final long TIMEOUT = 5000;
-
-		public void action() {
-			long elapsed = System.currentTimeMillis() - startTime;
-			if (elapsed > TIMEOUT) {
-				if (guiUpdater != null) {
-					guiUpdater.updateExchangeRates("Rate request timed out");
+	/** Rates are pushed on every change; this subscribes again, which resends all of them. */
+	public void requestExchangeRates() {
+		AID exchange = exchangeAgentAID;
+		if (exchange != null) {
+			// called from the Swing thread; the feed belongs to the agent thread
+			addBehaviour(new OneShotBehaviour() {
+				public void action() {
+					rates.subscribe(exchange);
 				}
-				isRequestingRates = false;
-			}
-			block(1000);
+			});
+		} else if (guiUpdater != null) {
+			guiUpdater.updateExchangeRates("Exchange agent not found. Searching...");
+			addBehaviour(new DiscoverExchangeAgentBehaviour());
 		}
+	}
 
-		public boolean done() {
-			return !isRequestingRates || (System.currentTimeMillis() - startTime > TIMEOUT);
-		}
+	public void refreshBranches() {
+		addBehaviour(new DiscoverBranchesBehaviour(false));
 	}
 
 	private class DiscoverBranchesBehaviour extends Behaviour {
@@ -193,16 +281,9 @@ public class GUIAgent extends Agent {
 
 		public void action() {
 			try {
-				DFAgentDescription template = new DFAgentDescription();
-				ServiceDescription sd = new ServiceDescription();
-				sd.setType("bank-branch");
-				template.addServices(sd);
-
-				DFAgentDescription[] results = DFService.search(myAgent, template);
-
 				List<String> foundBranches = new ArrayList<>();
-				for (DFAgentDescription dfd : results) {
-					foundBranches.add(dfd.getName().getLocalName());
+				for (AID aid : directory.get("bank-branch")) {
+					foundBranches.add(aid.getLocalName());
 				}
 
 				branches = foundBranches;
@@ -250,17 +331,12 @@ public class GUIAgent extends Agent {
 			}
 
 			try {
-				DFAgentDescription template = new DFAgentDescription();
-				ServiceDescription sd = new ServiceDescription();
-				sd.setType("currency-exchange");
-				template.addServices(sd);
-
-				DFAgentDescription[] results = DFService.search(myAgent, template);
-				if (results.length > 0) {
-					exchangeAgentAID = results[0].getName();
+				AID found = directory.first("currency-exchange");
+				if (found != null) {
+					exchangeAgentAID = found;
 					System.out.println(getLocalName() + " found exchange agent: " + exchangeAgentAID.getLocalName());
 
-					requestExchangeRates();
+					rates.subscribe(exchangeAgentAID);
 
 				} else {
 					attempts++;
@@ -306,15 +382,9 @@ public class GUIAgent extends Agent {
 
 		public void action() {
 			try {
-				DFAgentDescription template = new DFAgentDescription();
-				ServiceDescription sd = new ServiceDescription();
-				sd.setType("notification");
-				template.addServices(sd);
+				AID notificationAgent = directory.first("notification");
 
-				DFAgentDescription[] results = DFService.search(myAgent, template);
-
-				if (results.length > 0) {
-					AID notificationAgent = results[0].getName();
+				if (notificationAgent != null) {
 					ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
 					msg.addReceiver(notificationAgent);
 					msg.setConversationId("GET_NOTIFICATIONS");
@@ -328,25 +398,19 @@ public class GUIAgent extends Agent {
 
 					send(msg);
 
-					MessageTemplate mt = MessageTemplate.and(
-							MessageTemplate.MatchConversationId("NOTIFICATIONS_LIST"),
-							MessageTemplate.MatchInReplyTo(correlationId));
-
-					ACLMessage reply = blockingReceive(mt, NOTIFICATIONS_TIMEOUT_MS);
-					if (reply != null) {
-						pendingNotificationsReplyWith = null;
-						pendingNotificationsAccountId = null;
-						if (guiUpdater != null) {
-							guiUpdater.updateNotificationArea(reply.getContent());
+					// the reply is taken by handleNotificationsList, without blocking the agent
+					addBehaviour(new WakerBehaviour(GUIAgent.this, NOTIFICATIONS_TIMEOUT_MS) {
+						protected void onWake() {
+							if (correlationId.equals(pendingNotificationsReplyWith)) {
+								pendingNotificationsReplyWith = null;
+								pendingNotificationsAccountId = null;
+								if (guiUpdater != null) {
+									guiUpdater.updateNotificationArea(
+											"Timed out loading notifications for " + accountId + ". Please try again.");
+								}
+							}
 						}
-					} else {
-						pendingNotificationsReplyWith = null;
-						pendingNotificationsAccountId = null;
-						if (guiUpdater != null) {
-							guiUpdater.updateNotificationArea(
-									"Timed out loading notifications for " + accountId + ". Please try again.");
-						}
-					}
+					});
 				} else {
 					if (guiUpdater != null) {
 						guiUpdater.showNotification("Notification agent not found");
@@ -373,15 +437,9 @@ public class GUIAgent extends Agent {
 
 		public void action() {
 			try {
-				DFAgentDescription template = new DFAgentDescription();
-				ServiceDescription sd = new ServiceDescription();
-				sd.setType("notification");
-				template.addServices(sd);
+				AID notificationAgent = directory.first("notification");
 
-				DFAgentDescription[] results = DFService.search(myAgent, template);
-
-				if (results.length > 0) {
-					AID notificationAgent = results[0].getName();
+				if (notificationAgent != null) {
 					ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
 					msg.addReceiver(notificationAgent);
 					msg.setConversationId("SET_LOW_BALANCE_THRESHOLD");
@@ -403,15 +461,9 @@ public class GUIAgent extends Agent {
 
 		public void action() {
 			try {
-				DFAgentDescription template = new DFAgentDescription();
-				ServiceDescription sd = new ServiceDescription();
-				sd.setType("notification");
-				template.addServices(sd);
-
-				DFAgentDescription[] results = DFService.search(myAgent, template);
+				AID notificationAgent = directory.first("notification");
 
-				if (results.length > 0) {
-					AID notificationAgent = results[0].getName();
+				if (notificationAgent != null) {
 					ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
 					msg.addReceiver(notificationAgent);
 					msg.setConversationId("CLEAR_NOTIFICATIONS");
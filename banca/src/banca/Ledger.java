@@ -0,0 +1,404 @@
+package banca;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Account balances in minor units, stored in a primitive column next to an
+ * {@link AccountIndex}. Callers resolve an account to its slot once and then read or
+ * update the balance in place; none of the operations allocate once the arrays are sized.
+ *
+ * For replication the balance is split into per-origin contributions: each branch that
+ * changes an account (its origin) owns one column holding the net amount it has
+ * credited and debited, with a sequence number it increments on every change. Remote
+ * columns are taken with {@link #merge} only if their sequence number is higher, so
+ * updates can be applied in any order and any number of times, and changes made at
+ * different branches add up instead of overwriting each other. The balance is the sum
+ * of all columns. Local changes go to the column set with {@link #setLocalOrigin}; a
+ * ledger without origins keeps plain balances.
+ *
+ * A slot's balance, held amount and local column share one STRIDE-long record, so a
+ * deposit or withdrawal touches one cache line of per-account state; the columns of
+ * other origins, written only by merges, are arrays of their own.
+ *
+ * Transfers reserve funds with {@link #hold}: an outgoing hold takes its amount out of
+ * the available balance, so debits cannot spend it, until it is committed (the amount
+ * is debited) or released. Holds are local to this ledger and not replicated.
+ */
+public class Ledger {
+
+    /** Told about every change, for structures derived from the ledger such as digests. */
+    public interface Observer {
+        /** The account in the slot was opened or its state changed. */
+        void changed(int slot);
+
+        /** The account in the slot was removed and the one at moved, unless -1, took its slot. */
+        void removed(int slot, int moved);
+    }
+
+    /** Funds reserved on an account for one transfer, see {@link #hold}. */
+    public static final class Hold {
+        public final String transfer;
+        public final String account;
+        public final String counterparty;
+        public final long amount;
+        /** True on the source account, false for a pending credit on the destination. */
+        public final boolean outgoing;
+        boolean committed;
+
+        Hold(String transfer, String account, String counterparty, long amount, boolean outgoing) {
+            this.transfer = transfer;
+            this.account = account;
+            this.counterparty = counterparty;
+            this.amount = amount;
+            this.outgoing = outgoing;
+        }
+
+        /** An outgoing hold whose amount was debited and that is kept until the transfer ends. */
+        public boolean isCommitted() {
+            return committed;
+        }
+    }
+
+    private static final int STRIDE = 4;
+    private static final int BALANCE = 0;
+    private static final int HELD = 1;
+    private static final int LOCAL = 2;        // contribution of the local origin, its sequence next
+
+    private final AccountIndex index;
+    // per slot s, STRIDE longs from STRIDE * s: balance, held, local contribution and sequence
+    private long[] state;
+    private int capacity;
+    private final Map<String, Hold> holds = new LinkedHashMap<>();
+    private String[] origins = new String[0];
+    // per other origin, contribution and sequence of slot s at [2s] and [2s + 1]; null for the local one
+    private long[][] columns = new long[0][];
+    private int localOrigin = -1;
+    private Observer observer;
+
+    public Ledger() {
+        this(1024);
+    }
+
+    public Ledger(int expectedAccounts) {
+        index = new AccountIndex(expectedAccounts);
+        capacity = index.capacity();
+        state = new long[STRIDE * capacity];
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public int find(CharSequence accountId) {
+        return index.find(accountId, 0, accountId.length());
+    }
+
+    /** Slot of accountId[from, to), or -1 if the account does not exist. */
+    public int find(CharSequence accountId, int from, int to) {
+        return index.find(accountId, from, to);
+    }
+
+    public int open(CharSequence accountId) {
+        return open(accountId, 0, accountId.length());
+    }
+
+    /**
+     * Opens accountId[from, to) with a zero balance. Returns the new slot, or
+     * -(slot + 1) if the account already existed.
+     */
+    public int open(CharSequence accountId, int from, int to) {
+        int slot = index.add(accountId, from, to);
+        if (slot >= 0) {
+            if (slot >= capacity) {
+                capacity = index.capacity();
+                state = Arrays.copyOf(state, STRIDE * capacity);
+                for (int o = 0; o < origins.length; o++) {
+                    if (columns[o] != null) {
+                        columns[o] = Arrays.copyOf(columns[o], 2 * capacity);
+                    }
+                }
+            }
+            // slots past the last account are kept zeroed, see remove
+            changed(slot);
+        }
+        return slot;
+    }
+
+    public void setObserver(Observer observer) {
+        this.observer = observer;
+    }
+
+    /** Column of the named origin, added if the origin is new. */
+    public int origin(CharSequence name) {
+        for (int o = 0; o < origins.length; o++) {
+            if (origins[o].contentEquals(name)) {
+                return o;
+            }
+        }
+        int o = origins.length;
+        origins = Arrays.copyOf(origins, o + 1);
+        origins[o] = name.toString();
+        columns = Arrays.copyOf(columns, o + 1);
+        columns[o] = new long[2 * capacity];
+        return o;
+    }
+
+    /** Makes the named origin the local one, moving its column into the slot records. */
+    public void setLocalOrigin(String name) {
+        int o = origin(name);
+        if (o == localOrigin) {
+            return;
+        }
+        int size = index.size();
+        if (localOrigin >= 0) {
+            long[] previous = new long[2 * capacity];
+            for (int slot = 0; slot < size; slot++) {
+                previous[2 * slot] = state[STRIDE * slot + LOCAL];
+                previous[2 * slot + 1] = state[STRIDE * slot + LOCAL + 1];
+            }
+            columns[localOrigin] = previous;
+        }
+        for (int slot = 0; slot < size; slot++) {
+            state[STRIDE * slot + LOCAL] = columns[o][2 * slot];
+            state[STRIDE * slot + LOCAL + 1] = columns[o][2 * slot + 1];
+        }
+        columns[o] = null;
+        localOrigin = o;
+    }
+
+    /** Column receiving this ledger's own changes, or -1 without origins. */
+    public int localOrigin() {
+        return localOrigin;
+    }
+
+    public int originCount() {
+        return origins.length;
+    }
+
+    public String originName(int origin) {
+        return origins[origin];
+    }
+
+    public long contribution(int slot, int origin) {
+        return column(origin)[at(slot, origin)];
+    }
+
+    /** Number of changes the origin has made to the account, 0 if none are known. */
+    public long sequence(int slot, int origin) {
+        return column(origin)[at(slot, origin) + 1];
+    }
+
+    /**
+     * Takes the origin's contribution if seq is newer than the one held, adjusting the
+     * balance by the difference. Returns false for stale or repeated updates.
+     */
+    public boolean merge(int slot, int origin, long seq, long contribution) {
+        long[] column = column(origin);
+        int at = at(slot, origin);
+        if (seq <= column[at + 1]) {
+            return false;
+        }
+        state[STRIDE * slot + BALANCE] += contribution - column[at];
+        column[at] = contribution;
+        column[at + 1] = seq;
+        changed(slot);
+        return true;
+    }
+
+    public long balance(int slot) {
+        return state[STRIDE * slot + BALANCE];
+    }
+
+    /** Sets the balance; with origins the difference is recorded as a local change. */
+    public void setBalance(int slot, long minor) {
+        long delta = minor - state[STRIDE * slot + BALANCE];
+        if (delta != 0) {
+            recordLocal(slot, delta);
+            state[STRIDE * slot + BALANCE] = minor;
+            changed(slot);
+        }
+    }
+
+    /**
+     * Adds delta to the balance and returns the new balance. Throws ArithmeticException,
+     * leaving the account untouched, if the balance would overflow.
+     */
+    public long credit(int slot, long delta) {
+        long balance = Math.addExact(state[STRIDE * slot + BALANCE], delta);
+        recordLocal(slot, delta);
+        state[STRIDE * slot + BALANCE] = balance;
+        changed(slot);
+        return balance;
+    }
+
+    /** Debits amount if the available balance covers it; returns false and leaves it untouched otherwise. */
+    public boolean debit(int slot, long amount) {
+        int at = STRIDE * slot;
+        long balance = state[at + BALANCE];
+        if (balance - state[at + HELD] < amount) {
+            return false;
+        }
+        state[at + BALANCE] = Math.subtractExact(balance, amount);
+        recordLocal(slot, -amount);
+        changed(slot);
+        return true;
+    }
+
+    /** Balance minus the outgoing holds not yet committed. */
+    public long available(int slot) {
+        return state[STRIDE * slot + BALANCE] - state[STRIDE * slot + HELD];
+    }
+
+    /**
+     * Reserves amount on the account in the slot for the transfer. An outgoing hold needs
+     * the available balance to cover it and returns false otherwise; an incoming one only
+     * records the pending credit. Holding a transfer again changes nothing and returns true.
+     */
+    public boolean hold(String transfer, int slot, String counterparty, long amount, boolean outgoing) {
+        if (holds.containsKey(transfer)) {
+            return true;
+        }
+        if (outgoing && available(slot) < amount) {
+            return false;
+        }
+        holds.put(transfer, new Hold(transfer, index.key(slot), counterparty, amount, outgoing));
+        if (outgoing) {
+            state[STRIDE * slot + HELD] += amount;
+        }
+        return true;
+    }
+
+    public Hold getHold(String transfer) {
+        return holds.get(transfer);
+    }
+
+    public Collection<Hold> holds() {
+        return holds.values();
+    }
+
+    /**
+     * Applies the transfer's hold: debits the source, where the hold stays as committed
+     * until released, or credits the destination and drops the hold. Returns false if
+     * the hold is unknown or already committed.
+     */
+    public boolean commitHold(String transfer) {
+        Hold hold = holds.get(transfer);
+        if (hold == null || hold.committed) {
+            return false;
+        }
+        int slot = find(hold.account);
+        if (slot < 0) {
+            slot = open(hold.account);
+        }
+        if (hold.outgoing) {
+            state[STRIDE * slot + HELD] -= hold.amount;
+            hold.committed = true;
+            state[STRIDE * slot + BALANCE] -= hold.amount;
+            recordLocal(slot, -hold.amount);
+        } else {
+            holds.remove(transfer);
+            state[STRIDE * slot + BALANCE] += hold.amount;
+            recordLocal(slot, hold.amount);
+        }
+        changed(slot);
+        return true;
+    }
+
+    /** Drops the transfer's hold, returning an uncommitted outgoing amount to the available balance. */
+    public Hold release(String transfer) {
+        Hold hold = holds.remove(transfer);
+        if (hold != null && hold.outgoing && !hold.committed) {
+            int slot = find(hold.account);
+            if (slot >= 0) {
+                state[STRIDE * slot + HELD] -= hold.amount;
+            }
+        }
+        return hold;
+    }
+
+    /** Puts back a hold in the given state, as recovered from a journal or moved from another ledger. */
+    public void restoreHold(String transfer, String account, String counterparty, long amount, boolean outgoing,
+                            boolean committed) {
+        if (holds.containsKey(transfer)) {
+            return;
+        }
+        Hold hold = new Hold(transfer, account, counterparty, amount, outgoing);
+        hold.committed = committed;
+        holds.put(transfer, hold);
+        if (outgoing && !committed) {
+            int slot = find(account);
+            if (slot < 0) {
+                slot = open(account);
+            }
+            state[STRIDE * slot + HELD] += amount;
+        }
+    }
+
+    private void changed(int slot) {
+        if (observer != null) {
+            observer.changed(slot);
+        }
+    }
+
+    private void recordLocal(int slot, long delta) {
+        if (localOrigin >= 0) {
+            state[STRIDE * slot + LOCAL] += delta;
+            state[STRIDE * slot + LOCAL + 1]++;
+        }
+    }
+
+    /** The array holding the origin's column: the slot records for the local origin. */
+    private long[] column(int origin) {
+        return origin == localOrigin ? state : columns[origin];
+    }
+
+    /** Index of the slot's contribution in column(origin); the sequence follows it. */
+    private int at(int slot, int origin) {
+        return origin == localOrigin ? STRIDE * slot + LOCAL : 2 * slot;
+    }
+
+    /**
+     * Removes an account. The last slot is moved into the freed one; returns its old index,
+     * or -1 if nothing moved. Slots held by callers past the removed one must be refreshed.
+     */
+    public int remove(int slot) {
+        int moved = index.remove(slot);
+        int vacated = moved >= 0 ? moved : slot;
+        if (moved >= 0) {
+            System.arraycopy(state, STRIDE * moved, state, STRIDE * slot, STRIDE);
+        }
+        Arrays.fill(state, STRIDE * vacated, STRIDE * vacated + STRIDE, 0);
+        for (int o = 0; o < origins.length; o++) {
+            long[] column = columns[o];
+            if (column != null) {
+                if (moved >= 0) {
+                    column[2 * slot] = column[2 * moved];
+                    column[2 * slot + 1] = column[2 * moved + 1];
+                }
+                column[2 * vacated] = 0;
+                column[2 * vacated + 1] = 0;
+            }
+        }
+        if (observer != null) {
+            observer.removed(slot, moved);
+        }
+        return moved;
+    }
+
+    public String accountId(int slot) {
+        return index.key(slot);
+    }
+
+    public void appendAccountId(int slot, StringBuilder sb) {
+        index.appendKey(slot, sb);
+    }
+
+    /** Approximate heap used by the ledger, for sizing and benchmarks. */
+    public long memoryBytes() {
+        int others = localOrigin >= 0 ? origins.length - 1 : origins.length;
+        return index.memoryBytes() + 8L * capacity * (STRIDE + 2 * others);
+    }
+}
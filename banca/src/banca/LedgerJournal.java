@@ -0,0 +1,685 @@
+package banca;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead log and snapshots for a {@link Ledger}.
+ *
+ * Every balance change is appended to a memory-mapped segment file as an absolute
+ * record, either "account = balance" or, for ledgers with origins, "account, origin =
+ * contribution at sequence", so replaying a record twice is harmless; accounts handed
+ * over to another shard get a removal record. {@link #commit()}
+ * forces everything appended since the last commit with one fsync, which lets all the
+ * operations handled in one pass of the agent share it (group commit). Once
+ * SNAPSHOT_EVERY records were written, the owner's next {@link #snapshotIfDue()} between
+ * groups copies the whole ledger into memory and starts a new segment, and a background
+ * thread writes the copy to a snapshot file and deletes the segments it covers, so
+ * recovery reads one snapshot plus the log tail. If the log
+ * cannot be written or forced the journal fails for good ({@link #isFailed()}) and
+ * records nothing more; the branch refuses changes until it is restarted.
+ *
+ * Record layout: int payloadLength, int crc32(payload), payload =
+ * long seq, byte type, char keyLength, char[] key, [char originLength, char[] origin,
+ * long originSeq for SET_CONTRIBUTION], long value.
+ *
+ * Transfer holds (see {@link Ledger#hold}) are journaled as steps, each one record so a
+ * step is either replayed whole or not at all: HOLD reserves, COMMIT_HOLD applies the
+ * hold to the balance, RELEASE drops it. These carry char transferLength, char[] transfer
+ * after the key, HOLD also char counterpartyLength, char[] counterparty, byte flags
+ * (HOLD_OUTGOING, HOLD_COMMITTED), and value is the amount. Unlike the other records
+ * COMMIT_HOLD is relative, which is safe because every record is replayed at most once.
+ */
+public class LedgerJournal {
+
+    public enum Durability {
+        /** No journal at all, balances are lost on restart. */
+        OFF,
+        /** Replies go out immediately, the log is forced every FLUSH_INTERVAL_MS. */
+        ASYNC,
+        /** Replies go out only after the records they depend on are forced. */
+        SYNC;
+
+        static Durability fromProperty() {
+            return valueOf(System.getProperty("banca.durability", "SYNC").toUpperCase());
+        }
+    }
+
+    public static final long SEGMENT_BYTES = Long.getLong("banca.wal.segmentBytes", 64L << 20);
+    public static final long FLUSH_INTERVAL_MS = Long.getLong("banca.wal.flushMs", 100);
+    public static final long SNAPSHOT_EVERY = Long.getLong("banca.snapshot.everyRecords", 1_000_000);
+
+    static final byte SET_BALANCE = 1;
+    static final byte REMOVE = 2;
+    static final byte SET_CONTRIBUTION = 3;
+    static final byte HOLD = 4;
+    static final byte COMMIT_HOLD = 5;
+    static final byte RELEASE = 6;
+    static final int HOLD_OUTGOING = 1;
+    static final int HOLD_COMMITTED = 2;
+    private static final int SNAPSHOT_MAGIC = 0x42545333;   // "BTS3"
+    private static final int HEADER_BYTES = 8;
+    private static final int FIXED_PAYLOAD_BYTES = 8 + 1 + 2 + 8;
+    private static final ExecutorService SNAPSHOT_WRITER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "ledger-snapshots");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File dir;
+    private final Ledger ledger;
+    private final Durability durability;
+    private final CRC32 crc = new CRC32();
+    private final StringBuilder keyBuffer = new StringBuilder(64);
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int forcedPosition;
+    private long nextSeq = 1;
+    private long recordsSinceSnapshot;
+    private volatile boolean failed;
+    private Future<?> pendingSnapshot;
+
+    public LedgerJournal(File dir, Ledger ledger, Durability durability) {
+        this.dir = dir;
+        this.ledger = ledger;
+        this.durability = durability;
+    }
+
+    public static LedgerJournal forAgent(String agentName, Ledger ledger) {
+        return new LedgerJournal(dataDir(agentName), ledger, Durability.fromProperty());
+    }
+
+    public static File dataDir(String agentName) {
+        return new File(System.getProperty("banca.dataDir", "data"), agentName);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * True if replies must wait for {@link #commit()} before they are sent. Stays true once
+     * the journal failed, so the waiting replies can still be turned into failures.
+     */
+    public boolean defersReplies() {
+        return durability == Durability.SYNC && segment != null;
+    }
+
+    /**
+     * True once writing or forcing the log failed. Nothing is journaled after that, so
+     * the owner must refuse changes until the branch restarts and recovers from disk.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Loads the newest snapshot into the ledger, replays the log records written after it
+     * and opens a fresh segment for new records. Returns the number of replayed records.
+     */
+    public long recover() throws IOException {
+        if (durability == Durability.OFF) {
+            return 0;
+        }
+        Files.createDirectories(dir.toPath());
+
+        long snapshotSeq = loadLatestSnapshot();
+        nextSeq = snapshotSeq + 1;
+
+        long replayed = 0;
+        for (File file : listFiles("wal-", ".log")) {
+            replayed += replaySegment(file, snapshotSeq);
+        }
+        recordsSinceSnapshot = replayed;
+        openSegment();
+        return replayed;
+    }
+
+    /**
+     * Appends the current state of the slot: every known origin contribution, or the
+     * balance if there are none. Durable after the next commit.
+     */
+    public void append(int slot) {
+        boolean written = false;
+        for (int o = 0; o < ledger.originCount(); o++) {
+            if (ledger.sequence(slot, o) > 0) {
+                append(slot, o);
+                written = true;
+            }
+        }
+        if (!written) {
+            write(SET_BALANCE, slot, -1, ledger.balance(slot));
+        }
+    }
+
+    /** Appends one origin's contribution to the account in the slot. */
+    public void append(int slot, int origin) {
+        write(SET_CONTRIBUTION, slot, origin, ledger.contribution(slot, origin));
+    }
+
+    /** Records that the account in the slot is about to be removed from the ledger. */
+    public void appendRemoval(int slot) {
+        write(REMOVE, slot, -1, 0);
+    }
+
+    /** Records a hold in its current state. */
+    public void appendHold(Ledger.Hold hold) {
+        writeHold(HOLD, hold);
+    }
+
+    /** Records that the hold was applied to the balance. */
+    public void appendHoldCommit(Ledger.Hold hold) {
+        writeHold(COMMIT_HOLD, hold);
+    }
+
+    public void appendRelease(Ledger.Hold hold) {
+        writeHold(RELEASE, hold);
+    }
+
+    private void write(byte type, int slot, int origin, long value) {
+        if (segment == null || failed) {
+            return;
+        }
+        keyBuffer.setLength(0);
+        ledger.appendAccountId(slot, keyBuffer);
+        String originName = origin < 0 ? null : ledger.originName(origin);
+        int payload = FIXED_PAYLOAD_BYTES + 2 * keyBuffer.length()
+                + (originName == null ? 0 : 2 + 2 * originName.length() + 8);
+
+        int start = beginRecord(type, keyBuffer, payload);
+        if (start < 0) {
+            return;
+        }
+        if (originName != null) {
+            putString(originName);
+            segment.putLong(ledger.sequence(slot, origin));
+        }
+        segment.putLong(value);
+        endRecord(start, payload);
+    }
+
+    private void writeHold(byte type, Ledger.Hold hold) {
+        if (segment == null || failed) {
+            return;
+        }
+        boolean full = type == HOLD;
+        int payload = FIXED_PAYLOAD_BYTES + 2 * hold.account.length() + 2 + 2 * hold.transfer.length()
+                + (full ? 2 + 2 * hold.counterparty.length() + 1 : 0);
+
+        int start = beginRecord(type, hold.account, payload);
+        if (start < 0) {
+            return;
+        }
+        putString(hold.transfer);
+        if (full) {
+            putString(hold.counterparty);
+            segment.put((byte) ((hold.outgoing ? HOLD_OUTGOING : 0) | (hold.isCommitted() ? HOLD_COMMITTED : 0)));
+        }
+        segment.putLong(hold.amount);
+        endRecord(start, payload);
+    }
+
+    /** Writes the common head of a record; returns its start, or -1 if the journal failed. */
+    private int beginRecord(byte type, CharSequence key, int payload) {
+        try {
+            if (segment.remaining() < HEADER_BYTES + payload) {
+                rollSegment();
+            }
+        } catch (IOException e) {
+            fail(e);
+            return -1;
+        }
+        int start = segment.position();
+        segment.position(start + HEADER_BYTES);
+        segment.putLong(nextSeq++);
+        segment.put(type);
+        putString(key);
+        return start;
+    }
+
+    private void endRecord(int start, int payload) {
+        int end = segment.position();
+        crc.reset();
+        segment.position(start + HEADER_BYTES);
+        segment.limit(end);
+        crc.update(segment);
+        segment.limit(segment.capacity());
+        segment.putInt(start, payload);
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.position(end);
+        recordsSinceSnapshot++;
+    }
+
+    private void putString(CharSequence value) {
+        segment.putChar((char) value.length());
+        for (int i = 0; i < value.length(); i++) {
+            segment.putChar(value.charAt(i));
+        }
+    }
+
+    /** Forces the records appended since the last commit. One fsync for the whole group. */
+    public void commit() {
+        if (segment == null || failed) {
+            return;
+        }
+        int position = segment.position();
+        if (position > forcedPosition) {
+            try {
+                segment.force(forcedPosition, position - forcedPosition);
+            } catch (UncheckedIOException e) {
+                fail(e.getCause());
+                return;
+            }
+            forcedPosition = position;
+        }
+    }
+
+    /**
+     * Starts a snapshot if SNAPSHOT_EVERY records were written since the last one and the
+     * last one is done. Call between groups, on the thread that writes the journal: only
+     * the copy of the ledger is taken here, the file is written in the background.
+     */
+    public void snapshotIfDue() {
+        if (recordsSinceSnapshot >= SNAPSHOT_EVERY && (pendingSnapshot == null || pendingSnapshot.isDone())) {
+            startSnapshot();
+        }
+    }
+
+    /** Writes a snapshot of the whole ledger now and waits until it is on disk. */
+    public void snapshot() {
+        awaitSnapshot();
+        startSnapshot();
+        awaitSnapshot();
+    }
+
+    private void startSnapshot() {
+        if (segment == null || failed) {
+            return;
+        }
+        try {
+            long seq = nextSeq - 1;
+            byte[] image = image(seq);
+            // every record up to seq is in the copy, the next segment starts after it
+            rollSegment();
+            recordsSinceSnapshot = 0;
+            pendingSnapshot = SNAPSHOT_WRITER.submit(() -> writeSnapshot(seq, image));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** The snapshot file content for the ledger as of seq: the ledger, the holds and a checksum. */
+    private byte[] image(long seq) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 48 * ledger.size());
+        CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(seq);
+        int origins = ledger.originCount();
+        out.writeInt(origins);
+        for (int o = 0; o < origins; o++) {
+            writeString(out, ledger.originName(o));
+        }
+        out.writeInt(ledger.size());
+        for (int slot = 0; slot < ledger.size(); slot++) {
+            keyBuffer.setLength(0);
+            ledger.appendAccountId(slot, keyBuffer);
+            out.writeChar(keyBuffer.length());
+            out.writeChars(keyBuffer.toString());
+            out.writeLong(ledger.balance(slot));
+            int columns = 0;
+            for (int o = 0; o < origins; o++) {
+                if (ledger.sequence(slot, o) > 0) {
+                    columns++;
+                }
+            }
+            out.writeInt(columns);
+            for (int o = 0; o < origins; o++) {
+                if (ledger.sequence(slot, o) > 0) {
+                    out.writeInt(o);
+                    out.writeLong(ledger.sequence(slot, o));
+                    out.writeLong(ledger.contribution(slot, o));
+                }
+            }
+        }
+        out.writeInt(ledger.holds().size());
+        for (Ledger.Hold hold : ledger.holds()) {
+            writeString(out, hold.transfer);
+            writeString(out, hold.account);
+            writeString(out, hold.counterparty);
+            out.writeLong(hold.amount);
+            out.writeByte((hold.outgoing ? HOLD_OUTGOING : 0) | (hold.isCommitted() ? HOLD_COMMITTED : 0));
+        }
+        out.flush();
+        out.writeLong(checked.getChecksum().getValue());
+        return bytes.toByteArray();
+    }
+
+    /** Runs on the snapshot thread; the log keeps everything until the snapshot is on disk. */
+    private void writeSnapshot(long seq, byte[] image) {
+        File tmp = new File(dir, "snapshot.tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(image);
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(dir, String.format("snapshot-%020d.bin", seq)).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            deleteOlderThan(seq);
+        } catch (IOException e) {
+            // nothing is lost, recovery replays the segments; the next snapshot tries again
+            System.err.println("Snapshot of ledger journal in " + dir + " failed, keeping the log: " + e.getMessage());
+        }
+    }
+
+    private void awaitSnapshot() {
+        if (pendingSnapshot == null) {
+            return;
+        }
+        try {
+            pendingSnapshot.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        pendingSnapshot = null;
+    }
+
+    public void close() {
+        if (segment == null) {
+            return;
+        }
+        snapshot();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        segment = null;
+    }
+
+    /** Closes the journal and deletes its files, once its accounts are journaled elsewhere. */
+    public void discard() {
+        awaitSnapshot();
+        if (segment != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            segment = null;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private long loadLatestSnapshot() throws IOException {
+        List<File> snapshots = listFiles("snapshot-", ".bin");
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            File file = snapshots.get(i);
+            try {
+                return loadSnapshot(file);
+            } catch (IOException e) {
+                // a torn or corrupt snapshot, fall back to an older one and a longer replay
+                System.err.println("Skipping unreadable snapshot " + file + ": " + e.getMessage());
+            }
+        }
+        return 0;
+    }
+
+    private long loadSnapshot(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fis, 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            long seq = in.readLong();
+            String[] origins = new String[in.readInt()];
+            for (int o = 0; o < origins.length; o++) {
+                origins[o] = readString(in);
+            }
+            int count = in.readInt();
+            String[] keys = new String[count];
+            long[] balances = new long[count];
+            int[][] columnOrigins = new int[count][];
+            long[][] columnValues = new long[count][];
+            for (int i = 0; i < count; i++) {
+                keys[i] = readString(in);
+                balances[i] = in.readLong();
+                int k = in.readInt();
+                columnOrigins[i] = new int[k];
+                columnValues[i] = new long[2 * k];
+                for (int c = 0; c < k; c++) {
+                    columnOrigins[i][c] = in.readInt();
+                    columnValues[i][2 * c] = in.readLong();
+                    columnValues[i][2 * c + 1] = in.readLong();
+                }
+            }
+            int holdCount = in.readInt();
+            String[][] holdKeys = new String[holdCount][];
+            long[] holdAmounts = new long[holdCount];
+            int[] holdFlags = new int[holdCount];
+            for (int h = 0; h < holdCount; h++) {
+                holdKeys[h] = new String[] { readString(in), readString(in), readString(in) };
+                holdAmounts[h] = in.readLong();
+                holdFlags[h] = in.readByte();
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+            // only touch the ledger once the whole snapshot is known to be intact
+            int[] originColumns = new int[origins.length];
+            for (int o = 0; o < origins.length; o++) {
+                originColumns[o] = ledger.origin(origins[o]);
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = ledger.open(keys[i]);
+                slot = slot < 0 ? -slot - 1 : slot;
+                if (columnOrigins[i].length == 0) {
+                    ledger.setBalance(slot, balances[i]);
+                }
+                for (int c = 0; c < columnOrigins[i].length; c++) {
+                    ledger.merge(slot, originColumns[columnOrigins[i][c]], columnValues[i][2 * c],
+                            columnValues[i][2 * c + 1]);
+                }
+            }
+            for (int h = 0; h < holdCount; h++) {
+                ledger.restoreHold(holdKeys[h][0], holdKeys[h][1], holdKeys[h][2], holdAmounts[h],
+                        (holdFlags[h] & HOLD_OUTGOING) != 0, (holdFlags[h] & HOLD_COMMITTED) != 0);
+            }
+            return seq;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeChar(value.length());
+        out.writeChars(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readChar();
+        char[] chars = new char[length];
+        for (int c = 0; c < length; c++) {
+            chars[c] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    private static void readString(MappedByteBuffer buf, StringBuilder into) {
+        into.setLength(0);
+        int length = buf.getChar();
+        for (int i = 0; i < length; i++) {
+            into.append(buf.getChar());
+        }
+    }
+
+    private long replaySegment(File file, long afterSeq) throws IOException {
+        long replayed = 0;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            CRC32 check = new CRC32();
+            StringBuilder key = new StringBuilder(64);
+            StringBuilder origin = new StringBuilder(32);
+            StringBuilder transfer = new StringBuilder(32);
+            StringBuilder counterparty = new StringBuilder(32);
+            int flags = 0;
+            while (buf.remaining() >= HEADER_BYTES) {
+                int start = buf.position();
+                int payload = buf.getInt();
+                int checksum = buf.getInt();
+                if (payload < FIXED_PAYLOAD_BYTES || payload > buf.remaining()) {
+                    break;   // end of the written part, or a torn tail
+                }
+                int end = start + HEADER_BYTES + payload;
+                check.reset();
+                buf.limit(end);
+                check.update(buf);
+                buf.limit(buf.capacity());
+                if ((int) check.getValue() != checksum) {
+                    break;
+                }
+                buf.position(start + HEADER_BYTES);
+                long seq = buf.getLong();
+                byte type = buf.get();
+                int length = buf.getChar();
+                key.setLength(0);
+                for (int i = 0; i < length; i++) {
+                    key.append(buf.getChar());
+                }
+                long originSeq = 0;
+                origin.setLength(0);
+                if (type == SET_CONTRIBUTION) {
+                    int originLength = buf.getChar();
+                    for (int i = 0; i < originLength; i++) {
+                        origin.append(buf.getChar());
+                    }
+                    originSeq = buf.getLong();
+                } else if (type == HOLD || type == COMMIT_HOLD || type == RELEASE) {
+                    readString(buf, transfer);
+                    if (type == HOLD) {
+                        readString(buf, counterparty);
+                        flags = buf.get();
+                    }
+                }
+                long value = buf.getLong();
+                buf.position(end);
+
+                if (seq <= afterSeq) {
+                    continue;
+                }
+                if (type == SET_BALANCE) {
+                    int slot = ledger.open(key);
+                    ledger.setBalance(slot < 0 ? -slot - 1 : slot, value);
+                } else if (type == SET_CONTRIBUTION) {
+                    int slot = ledger.open(key);
+                    ledger.merge(slot < 0 ? -slot - 1 : slot, ledger.origin(origin), originSeq, value);
+                } else if (type == REMOVE) {
+                    int slot = ledger.find(key);
+                    if (slot >= 0) {
+                        ledger.remove(slot);
+                    }
+                } else if (type == HOLD) {
+                    ledger.restoreHold(transfer.toString(), key.toString(), counterparty.toString(), value,
+                            (flags & HOLD_OUTGOING) != 0, (flags & HOLD_COMMITTED) != 0);
+                } else if (type == COMMIT_HOLD) {
+                    ledger.commitHold(transfer.toString());
+                } else if (type == RELEASE) {
+                    ledger.release(transfer.toString());
+                }
+                nextSeq = Math.max(nextSeq, seq + 1);
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(dir, String.format("wal-%020d.log", nextSeq));
+        // truncate, so bytes of an older file with the same name can never replay as records
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        forcedPosition = 0;
+    }
+
+    private void rollSegment() throws IOException {
+        commit();
+        channel.close();
+        openSegment();
+    }
+
+    /** Deletes the segments holding only records up to snapshotSeq, and the older snapshots. */
+    private void deleteOlderThan(long snapshotSeq) {
+        for (File file : listFiles("wal-", ".log")) {
+            // a segment is named after its first record and the one after the snapshot starts past it
+            if (sequenceOf(file, "wal-") <= snapshotSeq) {
+                delete(file);
+            }
+        }
+        for (File file : listFiles("snapshot-", ".bin")) {
+            if (sequenceOf(file, "snapshot-") < snapshotSeq) {
+                delete(file);
+            }
+        }
+    }
+
+    private static long sequenceOf(File file, String prefix) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(prefix.length(), name.indexOf('.')));
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            // still mapped on some platforms, the next snapshot retries
+        }
+    }
+
+    private List<File> listFiles(String prefix, String suffix) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);   // zero-padded sequence numbers sort lexically
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private void fail(IOException e) {
+        failed = true;
+        System.err.println("*** LEDGER JOURNAL IN " + dir + " FAILED: " + e.getMessage()
+                + " - refusing changes until the branch is restarted ***");
+        e.printStackTrace();
+    }
+}
@@ -0,0 +1,399 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Headless client that drives the branches with the GUI's conversations (OPEN_ACCOUNT,
+ * DEPOSIT, WITHDRAW) plus BALANCE reads, and reports end-to-end latency percentiles,
+ * throughput and errors.
+ *
+ * It first opens the accounts and funds them, then runs the workload for a warmup and a
+ * measured period. A closed loop keeps a fixed number of requests in flight; an open loop
+ * sends at a fixed rate whatever the replies do, and measures latency from the time each
+ * request was due, so a stalled branch shows up in the percentiles instead of lowering the
+ * send rate. Requests are correlated with reply-with IDs; rejected operations (FAILURE
+ * replies, e.g. insufficient funds) are counted apart from requests that time out.
+ *
+ * Settings are "key=value" agent arguments, falling back to banca.load.key system
+ * properties: mode (closed|open), accounts, readRatio, rate (open loop ops/s),
+ * concurrency (closed loop), warmupSec, durationSec, reportSec, timeoutMs, minBranches,
+ * initialBalance, seed. A CompletableFuture argument receives the final report.
+ */
+public class LoadGeneratorAgent extends Agent {
+
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int SETUP = 2;
+
+    /** Largest number of requests in flight; open-loop sends beyond it are shed. */
+    private static final int MAX_IN_FLIGHT = 1 << 16;
+    private static final int MASK = MAX_IN_FLIGHT - 1;
+
+    private final Map<String, String> settings = new HashMap<>();
+    private CompletableFuture<String> completion;
+
+    private boolean openLoop;
+    private int accountCount;
+    private double readRatio;
+    private long intervalNanos;
+    private int concurrency;
+    private long warmupNanos;
+    private long durationNanos;
+    private long reportNanos;
+    private long timeoutNanos;
+    private int minBranches;
+    private long initialBalance;
+    private Random random;
+
+    private DirectoryCache directory;
+    private MessageDispatcher dispatcher;
+    private AgentMetrics metrics;
+    private volatile List<String> branches = new ArrayList<>();
+    private volatile ShardRing ring;
+    private String[] accounts;
+    private final MessageCodec.Writer writer = new MessageCodec.Writer();
+    private String replyPrefix;
+
+    // requests in flight, indexed by sequence number & MASK; seqs holds seq + 1, 0 when free
+    private final long[] seqs = new long[MAX_IN_FLIGHT];
+    private final long[] started = new long[MAX_IN_FLIGHT];
+    private final byte[] kinds = new byte[MAX_IN_FLIGHT];
+    private long nextSeq;
+    private long oldestSeq;
+    private int inFlight;
+
+    private final LatencyHistogram[] latency = { new LatencyHistogram(), new LatencyHistogram() };
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final long[] rejected = new long[3];
+    private long failed;
+    private long timeouts;
+    private long shed;
+
+    protected void setup() {
+        Object[] args = getArguments();
+        if (args != null) {
+            for (Object arg : args) {
+                if (arg instanceof CompletableFuture) {
+                    @SuppressWarnings("unchecked")
+                    CompletableFuture<String> future = (CompletableFuture<String>) arg;
+                    completion = future;
+                } else if (arg != null && arg.toString().contains("=")) {
+                    String[] kv = arg.toString().split("=", 2);
+                    settings.put(kv[0].trim(), kv[1].trim());
+                }
+            }
+        }
+        openLoop = "open".equalsIgnoreCase(setting("mode", "closed"));
+        accountCount = Integer.parseInt(setting("accounts", "1000"));
+        readRatio = Double.parseDouble(setting("readRatio", "0.5"));
+        intervalNanos = Math.max(1, 1_000_000_000L / Long.parseLong(setting("rate", "1000")));
+        concurrency = Math.min(MAX_IN_FLIGHT, Integer.parseInt(setting("concurrency", "16")));
+        warmupNanos = Long.parseLong(setting("warmupSec", "5")) * 1_000_000_000L;
+        durationNanos = Long.parseLong(setting("durationSec", "30")) * 1_000_000_000L;
+        reportNanos = Long.parseLong(setting("reportSec", "5")) * 1_000_000_000L;
+        timeoutNanos = Long.parseLong(setting("timeoutMs", "5000")) * 1_000_000L;
+        minBranches = Integer.parseInt(setting("minBranches", "1"));
+        initialBalance = Money.parse(setting("initialBalance", "1000"));
+        long seed = Long.parseLong(setting("seed", "42"));
+        random = new Random(seed);
+
+        accounts = new String[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = "LG" + seed + "-" + i;
+        }
+        replyPrefix = getLocalName() + "-";
+
+        metrics = AgentMetrics.of(this);
+        metrics.start();
+
+        directory = new DirectoryCache(this, "bank-branch");
+        directory.addListener((type, providers) -> {
+            List<String> found = new ArrayList<>();
+            for (AID aid : providers) {
+                found.add(aid.getLocalName());
+            }
+            branches = found;
+            if (ShardRing.ENABLED) {
+                ring = new ShardRing(found);
+            }
+        });
+        directory.start();
+        dispatcher = MessageDispatcher.of(this);
+
+        System.out.println(getLocalName() + " " + describe() + ", waiting for " + minBranches + " branch(es)");
+        addBehaviour(new LoadBehaviour());
+    }
+
+    protected void takeDown() {
+        dispatcher.close();
+        metrics.close();
+    }
+
+    private String setting(String key, String defaultValue) {
+        String value = settings.get(key);
+        return value != null ? value : System.getProperty("banca.load." + key, defaultValue);
+    }
+
+    private String describe() {
+        return (openLoop ? "open loop at " + (1_000_000_000L / intervalNanos) + " ops/s"
+                : "closed loop with " + concurrency + " in flight") + ", " + accountCount + " accounts, "
+                + Math.round(readRatio * 100) + "% reads";
+    }
+
+    private class LoadBehaviour extends CyclicBehaviour {
+        private static final int DISCOVER = 0, OPEN = 1, RUN = 2, DRAIN = 3;
+        /** Replies, which are all the messages the dispatcher has no other handler for. */
+        private final MessageDispatcher.Inbox replies = dispatcher.inbox(this);
+        private int phase = DISCOVER;
+        private int nextAccount;
+        private long runStart;
+        private long measureStart;
+        private long nextDue;
+        private long nextReport;
+        private long intervalOps;
+        private boolean measuring;
+
+        LoadBehaviour() {
+            dispatcher.otherwise(replies);
+        }
+
+        public void action() {
+            long now = System.nanoTime();
+            receiveReplies(now);
+            expireRequests(now);
+
+            switch (phase) {
+            case DISCOVER:
+                if (branches.size() < minBranches) {
+                    block(200);
+                    return;
+                }
+                System.out.println(getLocalName() + " found branches " + branches + ", opening " + accountCount
+                        + " accounts");
+                phase = OPEN;
+                break;   // the cyclic behaviour runs again right away, in the new phase
+            case OPEN:
+                // open and fund every account with the closed-loop limit, two requests per account
+                while (nextAccount < accountCount && inFlight + 2 <= Math.max(2, concurrency)) {
+                    String account = accounts[nextAccount++];
+                    sendRequest(SETUP, "OPEN_ACCOUNT", (byte) 0, account, 0, now);
+                    sendRequest(SETUP, "DEPOSIT", MessageCodec.DEPOSIT, account, initialBalance, now);
+                }
+                if (nextAccount < accountCount || inFlight > 0) {
+                    block(10);
+                    return;
+                }
+                System.out.println(getLocalName() + " accounts ready (" + rejected[SETUP]
+                        + " setup requests rejected), running " + describe());
+                phase = RUN;
+                runStart = now;
+                nextDue = now;
+                nextReport = now + reportNanos;
+                break;
+            case RUN:
+                if (!measuring && now - runStart >= warmupNanos) {
+                    measuring = true;
+                    measureStart = now;
+                    resetCounters();
+                }
+                if (now - runStart >= warmupNanos + durationNanos) {
+                    phase = DRAIN;
+                    return;
+                }
+                if (openLoop) {
+                    while (nextDue <= now) {
+                        if (inFlight < MAX_IN_FLIGHT && seqs[(int) (nextSeq & MASK)] == 0) {
+                            sendOperation(nextDue);
+                        } else {
+                            shed++;
+                        }
+                        nextDue += intervalNanos;
+                    }
+                } else {
+                    while (inFlight < concurrency) {
+                        sendOperation(now);
+                    }
+                }
+                if (now >= nextReport) {
+                    printInterval(now);
+                }
+                // replies wake the behaviour; otherwise come back when the next send is due
+                block(openLoop ? Math.max(1, (nextDue - now) / 1_000_000) : 100);
+                return;
+
+            case DRAIN:
+                if (inFlight > 0) {
+                    block(50);
+                    return;
+                }
+                String report = finalReport(now - measureStart);
+                System.out.println(report);
+                if (completion != null) {
+                    completion.complete(report);
+                }
+                myAgent.doDelete();
+                phase = -1;
+                return;
+
+            default:
+                block();
+            }
+        }
+
+        private void printInterval(long now) {
+            double seconds = (now - nextReport + reportNanos) / 1e9;
+            System.out.printf("%s [%s] %8.0f ops/s  p50 %s  p99 %s  p99.9 %s  rejected %d  timeouts %d%n",
+                    getLocalName(), measuring ? "run" : "warmup", intervalOps / seconds,
+                    millis(interval.percentile(50)), millis(interval.percentile(99)),
+                    millis(interval.percentile(99.9)), rejected[READ] + rejected[WRITE], timeouts);
+            interval.reset();
+            intervalOps = 0;
+            nextReport = now + reportNanos;
+        }
+
+        private void receiveReplies(long now) {
+            ACLMessage reply = replies.poll();
+            while (reply != null) {
+                long start = System.nanoTime();
+                complete(reply, now);
+                metrics.recordMessage(reply.getConversationId(), System.nanoTime() - start);
+                reply = replies.poll();
+            }
+        }
+
+        private void complete(ACLMessage reply, long now) {
+            String id = reply.getInReplyTo();
+            if (id == null || !id.startsWith(replyPrefix)) {
+                return;
+            }
+            long seq = Long.parseLong(id.substring(replyPrefix.length()));
+            int slot = (int) (seq & MASK);
+            if (seqs[slot] != seq + 1) {
+                // already counted as a timeout
+                return;
+            }
+            seqs[slot] = 0;
+            inFlight--;
+            int kind = kinds[slot];
+            if (reply.getPerformative() == ACLMessage.FAILURE) {
+                rejected[kind]++;
+            } else if (reply.getPerformative() != ACLMessage.INFORM) {
+                failed++;
+                return;
+            }
+            if (kind != SETUP) {
+                long elapsed = now - started[slot];
+                latency[kind].record(elapsed);
+                interval.record(elapsed);
+                intervalOps++;
+            }
+        }
+
+        private void expireRequests(long now) {
+            while (oldestSeq < nextSeq) {
+                int slot = (int) (oldestSeq & MASK);
+                if (seqs[slot] == oldestSeq + 1) {
+                    if (now - started[slot] < timeoutNanos) {
+                        return;
+                    }
+                    seqs[slot] = 0;
+                    inFlight--;
+                    timeouts++;
+                }
+                oldestSeq++;
+            }
+        }
+
+        private void resetCounters() {
+            latency[READ].reset();
+            latency[WRITE].reset();
+            rejected[READ] = rejected[WRITE] = 0;
+            failed = timeouts = shed = 0;
+        }
+    }
+
+    private void sendOperation(long due) {
+        String account = accounts[random.nextInt(accountCount)];
+        if (random.nextDouble() < readRatio) {
+            sendRequest(READ, "BALANCE", MessageCodec.BALANCE, account, 0, due);
+        } else {
+            long amount = 1 + random.nextInt(10_000);
+            if (random.nextBoolean()) {
+                sendRequest(WRITE, "DEPOSIT", MessageCodec.DEPOSIT, account, amount, due);
+            } else {
+                sendRequest(WRITE, "WITHDRAW", MessageCodec.WITHDRAW, account, amount, due);
+            }
+        }
+    }
+
+    /** Sends one request the way GUIAgent.sendRequest does, tagged for correlation. */
+    private void sendRequest(int kind, String action, byte type, String account, long amount, long start) {
+        ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+        msg.addReceiver(new AID(branchFor(account), AID.ISLOCALNAME));
+        msg.setConversationId(action);
+        if (type == MessageCodec.DEPOSIT || type == MessageCodec.WITHDRAW) {
+            msg.setByteSequenceContent(writer.begin(type).writeKey(account).writeLong(amount).toBytes());
+        } else if (type == MessageCodec.BALANCE) {
+            msg.setByteSequenceContent(writer.begin(type).writeKey(account).toBytes());
+        } else {
+            msg.setContent(account);
+        }
+
+        long seq = nextSeq++;
+        int slot = (int) (seq & MASK);
+        seqs[slot] = seq + 1;
+        started[slot] = start;
+        kinds[slot] = (byte) kind;
+        inFlight++;
+        msg.setReplyWith(replyPrefix + seq);
+        send(msg);
+    }
+
+    /** The owner in sharding mode; otherwise each account sticks to one branch. */
+    private String branchFor(String account) {
+        ShardRing shards = ring;
+        if (shards != null && shards.size() > 0) {
+            return shards.primaryName(account);
+        }
+        List<String> current = branches;
+        return current.get(Math.floorMod(account.hashCode(), current.size()));
+    }
+
+    private String finalReport(long measuredNanos) {
+        double seconds = Math.max(measuredNanos, 1) / 1e9;
+        LatencyHistogram all = new LatencyHistogram();
+        all.add(latency[READ]);
+        all.add(latency[WRITE]);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Load test: %s, %d branch(es), %.1f s measured%n", describe(), branches.size(),
+                seconds));
+        sb.append(String.format("  %-6s %10s %10s %9s %9s %9s %9s %9s%n", "", "ops", "ops/s", "p50 ms",
+                "p99 ms", "p99.9 ms", "max ms", "rejected"));
+        row(sb, "read", latency[READ], rejected[READ], seconds);
+        row(sb, "write", latency[WRITE], rejected[WRITE], seconds);
+        row(sb, "all", all, rejected[READ] + rejected[WRITE], seconds);
+        sb.append(String.format("  errors: %d failed, %d timed out, %d shed", failed, timeouts, shed));
+        return sb.toString();
+    }
+
+    private static void row(StringBuilder sb, String name, LatencyHistogram h, long rejected, double seconds) {
+        sb.append(String.format("  %-6s %10d %10.0f %9s %9s %9s %9s %9d%n", name, h.count(), h.count() / seconds,
+                millis(h.percentile(50)), millis(h.percentile(99)), millis(h.percentile(99.9)), millis(h.max()),
+                rejected));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,63 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+
+/**
+ * Runs a {@link LoadGeneratorAgent} in an in-process JADE container, prints its report
+ * and exits, so load tests can be scripted without the GUI.
+ *
+ * By default it starts a main container with banca.load.branches (2) branches and,
+ * with banca.load.notifier=true, a notification agent. With banca.load.host set it joins
+ * that platform instead and loads the branches already registered there. Arguments are
+ * passed to the generator as "key=value" settings.
+ *
+ * Run with: java -cp jade.jar:bin banca.LoadTest mode=open rate=2000 durationSec=60
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("banca.load.host");
+        int branches = Integer.getInteger("banca.load.branches", host == null ? 2 : 0);
+
+        Runtime runtime = Runtime.instance();
+        AgentContainer container;
+        if (host == null) {
+            ProfileImpl profile = new ProfileImpl();
+            profile.setParameter(Profile.GUI, "false");
+            container = runtime.createMainContainer(profile);
+        } else {
+            ProfileImpl profile = new ProfileImpl(host, Integer.getInteger("banca.load.port", 1099), null);
+            container = runtime.createAgentContainer(profile);
+        }
+
+        for (int i = 1; i <= branches; i++) {
+            container.createNewAgent("branch" + i, BankBranchAgent.class.getName(), null).start();
+        }
+        if (Boolean.getBoolean("banca.load.notifier")) {
+            container.createNewAgent("notifier", NotificationAgent.class.getName(), null).start();
+        }
+
+        CompletableFuture<String> report = new CompletableFuture<>();
+        List<Object> generatorArgs = new ArrayList<>();
+        generatorArgs.add(report);
+        if (branches > 0) {
+            generatorArgs.add("minBranches=" + branches);
+        }
+        for (String arg : args) {
+            generatorArgs.add(arg);
+        }
+        container.createNewAgent("load", LoadGeneratorAgent.class.getName(), generatorArgs.toArray()).start();
+
+        report.get();
+        container.kill();
+        runtime.shutDown();
+        System.exit(0);
+    }
+}
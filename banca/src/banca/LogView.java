@@ -0,0 +1,183 @@
+package banca;
+
+import java.awt.BorderLayout;
+import java.awt.Font;
+import java.awt.event.MouseEvent;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import javax.swing.*;
+
+/**
+ * Scrolling log pane that keeps the last CAPACITY lines in a ring buffer and shows them in
+ * a JList, which only renders the rows in view. append and setText may be called from any
+ * thread: they queue lines, and a Swing Timer moves everything queued into the list in one
+ * EDT update per frame, however many lines arrived. Lines that no longer fit, whether shown
+ * or still queued, are dropped oldest first and counted below the list.
+ */
+public class LogView extends JPanel {
+
+    public static final int CAPACITY = Integer.getInteger("banca.gui.logLines", 5000);
+    public static final int FRAME_MILLIS = Integer.getInteger("banca.gui.frameMillis", 16);
+
+    private final Model model = new Model();
+    private final JList<String> list = new JList<String>(model) {
+        /** The full text of a row the list cuts short. */
+        public String getToolTipText(MouseEvent e) {
+            int row = locationToIndex(e.getPoint());
+            if (row < 0 || !getCellBounds(row, row).contains(e.getPoint())) {
+                return null;
+            }
+            String line = model.getElementAt(row);
+            return getFontMetrics(getFont()).stringWidth(line) > getVisibleRect().width ? line : null;
+        }
+    };
+    private final JScrollPane scrollPane = new JScrollPane(list, ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
+            ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+    private final JLabel status = new JLabel();
+    private final Timer timer = new Timer(FRAME_MILLIS, e -> drain());
+
+    // written by any thread under the lock, drained on the EDT
+    private final Object lock = new Object();
+    private ArrayDeque<String> pending = new ArrayDeque<>();
+    private ArrayDeque<String> draining = new ArrayDeque<>();
+    private boolean scheduled;
+    private boolean cleared;
+    private long queuedDropped;
+
+    private long dropped;   // since the last setText, on the EDT
+
+    public LogView() {
+        super(new BorderLayout());
+        list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        // fixed cell sizes spare the list measuring every line; rows span the viewport and
+        // lines too long for it are cut short, with the full line as the row's tooltip
+        list.setPrototypeCellValue("Transaction complete");
+        list.setFixedCellWidth(1);
+        ToolTipManager.sharedInstance().registerComponent(list);
+        add(scrollPane, BorderLayout.CENTER);
+        status.setVisible(false);
+        add(status, BorderLayout.SOUTH);
+        timer.setRepeats(false);
+        // a coalescing Timer drops a firing that comes while drain runs, and its lines with it
+        timer.setCoalesce(false);
+    }
+
+    /** Adds the text, one row per line. */
+    public void append(String text) {
+        boolean schedule;
+        synchronized (lock) {
+            int from = 0;
+            for (int nl = text.indexOf('\n'); nl >= 0; nl = text.indexOf('\n', from)) {
+                pending.add(text.substring(from, nl));
+                from = nl + 1;
+            }
+            pending.add(text.substring(from));
+            trimPending();
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule) {
+            timer.start();
+        }
+    }
+
+    /** Replaces everything shown, and still queued, with the text. */
+    public void setText(String text) {
+        synchronized (lock) {
+            pending.clear();
+            cleared = true;
+            queuedDropped = 0;
+        }
+        append(text);
+    }
+
+    private void trimPending() {
+        while (pending.size() > CAPACITY) {
+            pending.pollFirst();
+            queuedDropped++;
+        }
+    }
+
+    private void drain() {
+        ArrayDeque<String> lines;
+        boolean clear;
+        long lost;
+        synchronized (lock) {
+            lines = pending;
+            pending = draining;
+            draining = lines;
+            clear = cleared;
+            lost = queuedDropped;
+            scheduled = false;
+            cleared = false;
+            queuedDropped = 0;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        boolean atEnd = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+        if (clear) {
+            model.clear();
+            dropped = 0;
+        }
+        dropped += lost + model.addAll(lines);
+        lines.clear();
+        if (dropped > 0) {
+            status.setText(dropped + " older lines dropped");
+            status.setVisible(true);
+        } else {
+            status.setVisible(false);
+        }
+        // follow the end unless the user scrolled up to read
+        if ((atEnd || clear) && model.getSize() > 0) {
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+
+    /** The ring buffer: row i is lines[(head + i) % CAPACITY]. */
+    private static final class Model extends AbstractListModel<String> {
+        private final String[] lines = new String[CAPACITY];
+        private int head;
+        private int size;
+
+        public int getSize() {
+            return size;
+        }
+
+        public String getElementAt(int index) {
+            return lines[(head + index) % CAPACITY];
+        }
+
+        void clear() {
+            if (size > 0) {
+                int last = size - 1;
+                Arrays.fill(lines, null);
+                head = 0;
+                size = 0;
+                fireIntervalRemoved(this, 0, last);
+            }
+        }
+
+        /** Adds the lines, evicting the oldest; returns how many lines were evicted. */
+        int addAll(Collection<String> added) {
+            if (added.isEmpty()) {
+                return 0;
+            }
+            int evicted = Math.max(0, size + added.size() - CAPACITY);
+            for (String line : added) {
+                if (size == CAPACITY) {
+                    lines[head] = line;
+                    head = (head + 1) % CAPACITY;
+                } else {
+                    lines[(head + size++) % CAPACITY] = line;
+                }
+            }
+            // rows shift when lines are evicted, so repaint them all; JList only paints those in view
+            if (evicted > 0) {
+                fireContentsChanged(this, 0, size - 1);
+            } else {
+                fireIntervalAdded(this, size - added.size(), size - 1);
+            }
+            return evicted;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package banca;
+
+import java.util.Arrays;
+
+/**
+ * Versioned binary encoding for the branch, sync and notification conversations,
+ * carried as ACL byte-sequence content. Messages start with MAGIC, VERSION and a type
+ * byte; numbers are zig-zag varints and account IDs are a varint length followed by one
+ * varint per char, so ASCII IDs cost one byte per char. Amounts are minor units.
+ *
+ * Writers and readers are reusable, and a reader decodes account IDs into a caller's
+ * StringBuilder, so handlers can look accounts up without creating Strings.
+ * Messages that do not start with MAGIC are the old ';'-separated text format and are
+ * parsed by the handlers as before.
+ *
+ * Payloads:
+ *   DEPOSIT, WITHDRAW     account, amount, and the amount's currency if it is not the
+ *                         account currency
+ *   SYNC_ACCOUNT          count, then count x (account, balance)
+ *   TRANSACTION_COMPLETE  account, transaction type, amount, old balance, new balance, and
+ *                         for converted amounts currency, amount in it, rates version
+ *   ACCOUNT_OPENED        account
+ *   OPEN_ACCOUNT          account
+ *   BALANCE               account
+ *   SYNC_DELTA            origin count, origin names, entry count, then per entry: account,
+ *                         balance, column count, column count x (origin index, seq, contribution)
+ *   AE_DIGESTS            session, tree level, count, then count x (node, digest)
+ *   AE_PULL               session, count, then count x leaf
+ *   AE_DONE               session
+ *   TRANSFER              source account, destination account, amount
+ *   TRANSFER_2PC          entries until the end: step, transfer ID, source, destination, amount
+ *   BATCH                 count, then count x (operation type, account, amount unless OPEN_ACCOUNT)
+ *   TRANSACTION_BATCH     events until the end: ACCOUNT_OPENED account, or DEPOSIT/WITHDRAW
+ *                         account, amount, old balance, new balance
+ *   RATES                 version, previous version or -1 for all currencies, count, then
+ *                         count x (currency, value in the base currency as double bits)
+ */
+public final class MessageCodec {
+
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+
+    public static final byte DEPOSIT = 1;
+    public static final byte WITHDRAW = 2;
+    public static final byte SYNC_ACCOUNT = 3;
+    public static final byte TRANSACTION_COMPLETE = 4;
+    public static final byte ACCOUNT_OPENED = 5;
+    public static final byte BATCH = 6;
+    public static final byte OPEN_ACCOUNT = 7;
+    public static final byte TRANSACTION_BATCH = 8;
+    public static final byte BALANCE = 9;
+    public static final byte SYNC_DELTA = 10;
+    public static final byte AE_DIGESTS = 11;
+    public static final byte AE_PULL = 12;
+    public static final byte AE_DONE = 13;
+    public static final byte TRANSFER = 14;
+    public static final byte TRANSFER_2PC = 15;
+    public static final byte RATES = 16;
+
+    private MessageCodec() {
+    }
+
+    public static boolean isBinary(byte[] content) {
+        return content != null && content.length >= 3 && content[0] == MAGIC;
+    }
+
+    /** Conversation ID matching a message type, also used as the transaction type name. */
+    public static String conversationId(int type) {
+        switch (type) {
+        case DEPOSIT: return "DEPOSIT";
+        case WITHDRAW: return "WITHDRAW";
+        case SYNC_ACCOUNT: return "SYNC_ACCOUNT";
+        case TRANSACTION_COMPLETE: return "TRANSACTION_COMPLETE";
+        case ACCOUNT_OPENED: return "ACCOUNT_OPENED";
+        case BATCH: return "BATCH";
+        case OPEN_ACCOUNT: return "OPEN_ACCOUNT";
+        case TRANSACTION_BATCH: return "TRANSACTION_BATCH";
+        case BALANCE: return "BALANCE";
+        case SYNC_DELTA: return "SYNC_DELTA";
+        case AE_DIGESTS:
+        case AE_PULL:
+        case AE_DONE: return "ANTI_ENTROPY";
+        case TRANSFER: return "TRANSFER";
+        case TRANSFER_2PC: return "TRANSFER_2PC";
+        case RATES: return "EXCHANGE_RATES_UPDATE";
+        default: throw new IllegalArgumentException("Unknown message type " + type);
+        }
+    }
+
+    public static byte typeOf(String conversationId) {
+        switch (conversationId) {
+        case "DEPOSIT": return DEPOSIT;
+        case "WITHDRAW": return WITHDRAW;
+        case "SYNC_ACCOUNT": return SYNC_ACCOUNT;
+        case "TRANSACTION_COMPLETE": return TRANSACTION_COMPLETE;
+        case "ACCOUNT_OPENED": return ACCOUNT_OPENED;
+        case "BATCH": return BATCH;
+        case "OPEN_ACCOUNT": return OPEN_ACCOUNT;
+        case "TRANSACTION_BATCH": return TRANSACTION_BATCH;
+        case "BALANCE": return BALANCE;
+        case "SYNC_DELTA": return SYNC_DELTA;
+        case "TRANSFER": return TRANSFER;
+        case "TRANSFER_2PC": return TRANSFER_2PC;
+        case "EXCHANGE_RATES_UPDATE": return RATES;
+        default: throw new IllegalArgumentException("Unknown message type " + conversationId);
+        }
+    }
+
+    public static final class Writer {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        public Writer begin(byte type) {
+            pos = 0;
+            buf[pos++] = MAGIC;
+            buf[pos++] = VERSION;
+            buf[pos++] = type;
+            return this;
+        }
+
+        public Writer writeLong(long value) {
+            ensure(10);
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+            return this;
+        }
+
+        public Writer writeByte(int value) {
+            ensure(1);
+            buf[pos++] = (byte) value;
+            return this;
+        }
+
+        public Writer writeKey(CharSequence key) {
+            return writeKey(key, 0, key.length());
+        }
+
+        public Writer writeKey(CharSequence key, int from, int to) {
+            writeUnsigned(to - from);
+            for (int i = from; i < to; i++) {
+                writeUnsigned(key.charAt(i));
+            }
+            return this;
+        }
+
+        /** Writes a varint length followed by the bytes as they are. */
+        public Writer writeBytes(byte[] bytes) {
+            writeUnsigned(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+            return this;
+        }
+
+        /** Writes bytes that are already encoded, e.g. entries copied from a received message. */
+        public Writer writeRaw(byte[] bytes, int from, int to) {
+            ensure(to - from);
+            System.arraycopy(bytes, from, buf, pos, to - from);
+            pos += to - from;
+            return this;
+        }
+
+        /** Writes what the other writer holds after its header. */
+        public Writer writePayload(Writer other) {
+            return writeRaw(other.buf, 3, other.pos);
+        }
+
+        public int size() {
+            return pos;
+        }
+
+        public byte[] toBytes() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void writeUnsigned(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(pos + extra, buf.length * 2));
+            }
+        }
+    }
+
+    public static final class Reader {
+        private byte[] buf;
+        private int pos;
+        private int type;
+
+        /** Positions the reader after the header and returns the message type. */
+        public int reset(byte[] content) {
+            if (!isBinary(content)) {
+                throw new IllegalArgumentException("Not a binary message");
+            }
+            if (content[1] != VERSION) {
+                throw new IllegalArgumentException("Unsupported message version " + content[1]);
+            }
+            buf = content;
+            type = content[2];
+            pos = 3;
+            return type;
+        }
+
+        public int type() {
+            return type;
+        }
+
+        public boolean hasRemaining() {
+            return pos < buf.length;
+        }
+
+        /** Offset of the next byte to read, for copying entries as they are. */
+        public int position() {
+            return pos;
+        }
+
+        public long readLong() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        public int readByte() {
+            return buf[pos++];
+        }
+
+        /** Replaces the builder's content with the next account ID. */
+        public StringBuilder readKey(StringBuilder into) {
+            into.setLength(0);
+            int length = readUnsigned();
+            for (int i = 0; i < length; i++) {
+                into.append((char) readUnsigned());
+            }
+            return into;
+        }
+
+        public String readKey() {
+            return readKey(new StringBuilder()).toString();
+        }
+
+        public byte[] readBytes() {
+            int length = readUnsigned();
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        private int readUnsigned() {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return v;
+        }
+    }
+}
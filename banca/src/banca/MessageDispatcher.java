@@ -0,0 +1,162 @@
+package banca;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jade.core.Agent;
+import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * The single consumer of an agent's mailbox. Its behaviour wakes once per batch of
+ * messages, takes each with an unfiltered receive(), so the mailbox is never scanned
+ * against templates, and routes it with one lookup by conversation ID and performative
+ * to the handler registered for them. Handlers run in arrival order on the agent thread.
+ *
+ * A behaviour that consumes messages at its own pace registers an {@link Inbox}: its
+ * own queue, which restarts the behaviour when the first message of a batch arrives.
+ * Every component of an agent registers here instead of calling receive() itself, so
+ * none of them can take another's messages. Messages without a handler go to the
+ * fallback, or are counted as dispatch.unrouted and dropped. With banca.record set,
+ * every message is also handed to the {@link TrafficRecorder}.
+ */
+public class MessageDispatcher {
+
+    public interface Handler {
+        void handle(ACLMessage msg);
+    }
+
+    /** Messages handled per wake-up before other behaviours get their turn. */
+    static final int MAX_BATCH = 256;
+
+    private static final Map<Agent, MessageDispatcher> REGISTRY = new ConcurrentHashMap<>();
+    private static final int PERFORMATIVES = ACLMessage.getAllPerformativeNames().length;
+
+    private final Agent agent;
+    private final AgentMetrics metrics;
+    private final TrafficRecorder recorder = TrafficRecorder.get();
+    private final Map<String, Handler[]> routes = new HashMap<>();
+    private Handler fallback;
+    private boolean started;
+
+    private MessageDispatcher(Agent agent) {
+        this.agent = agent;
+        this.metrics = AgentMetrics.of(agent);
+    }
+
+    /** The agent's dispatcher, created and started on first use. */
+    public static MessageDispatcher of(Agent agent) {
+        MessageDispatcher dispatcher = REGISTRY.computeIfAbsent(agent, MessageDispatcher::new);
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    /** Routes the conversation to the handler whatever the performative, unless one is registered for it. */
+    public MessageDispatcher on(String conversationId, Handler handler) {
+        return on(conversationId, -1, handler);
+    }
+
+    public MessageDispatcher on(String conversationId, int performative, Handler handler) {
+        Handler[] route = routes.computeIfAbsent(conversationId, cid -> new Handler[PERFORMATIVES + 1]);
+        route[performative + 1] = handler;
+        return this;
+    }
+
+    /** Handles messages of conversations without a route, including those without a conversation ID. */
+    public MessageDispatcher otherwise(Handler handler) {
+        fallback = handler;
+        return this;
+    }
+
+    public Inbox inbox(Behaviour owner) {
+        return new Inbox(owner);
+    }
+
+    public void close() {
+        REGISTRY.remove(agent);
+    }
+
+    private void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        if (recorder != null) {
+            recorder.agent(agent);
+        }
+        agent.addBehaviour(new CyclicBehaviour(agent) {
+            public void action() {
+                int handled = 0;
+                ACLMessage msg;
+                while (handled < MAX_BATCH && (msg = myAgent.receive()) != null) {
+                    dispatch(msg);
+                    handled++;
+                }
+                if (handled == 0) {
+                    block();
+                } else {
+                    metrics.record("dispatch.batch", handled);
+                }
+            }
+        });
+    }
+
+    private void dispatch(ACLMessage msg) {
+        if (recorder != null) {
+            recorder.message(agent, msg);
+        }
+        Handler handler = null;
+        String cid = msg.getConversationId();
+        if (cid != null) {
+            Handler[] route = routes.get(cid);
+            if (route != null) {
+                int performative = msg.getPerformative();
+                handler = performative >= 0 && performative < PERFORMATIVES ? route[performative + 1] : null;
+                if (handler == null) {
+                    handler = route[0];
+                }
+            }
+        }
+        if (handler == null) {
+            handler = fallback;
+        }
+        if (handler == null) {
+            metrics.increment("dispatch.unrouted");
+            return;
+        }
+        try {
+            handler.handle(msg);
+        } catch (RuntimeException e) {
+            System.err.println(agent.getLocalName() + " failed to handle " + cid + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /** Messages queued for one behaviour, which takes them with {@link #poll()}. */
+    public static final class Inbox implements Handler {
+        private final Behaviour owner;
+        private final ArrayDeque<ACLMessage> queue = new ArrayDeque<>();
+
+        private Inbox(Behaviour owner) {
+            this.owner = owner;
+        }
+
+        public void handle(ACLMessage msg) {
+            queue.add(msg);
+            if (queue.size() == 1) {
+                owner.restart();
+            }
+        }
+
+        public ACLMessage poll() {
+            return queue.poll();
+        }
+
+        public int size() {
+            return queue.size();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package banca;
+
+/**
+ * Amounts are kept as long minor units (bani, cents) so ledger arithmetic is exact and
+ * does not box. Parsing and formatting work on character ranges without allocating.
+ */
+public final class Money {
+
+    public static final long SCALE = 100;
+    /** Largest amount accepted by {@link #parse}, in minor units: 10^16 major units. */
+    public static final long MAX = 10_000_000_000_000_000L * SCALE;
+
+    private Money() {
+    }
+
+    public static long parse(CharSequence s) {
+        return parse(s, 0, s.length());
+    }
+
+    /**
+     * Parses a decimal amount such as "12", "-3.5" or "100.25" into minor units. Throws
+     * NumberFormatException for anything else, including amounts beyond MAX and the
+     * infinities and NaN that Double would accept.
+     */
+    public static long parse(CharSequence s, int from, int to) {
+        int i = from;
+        while (i < to && s.charAt(i) == ' ') {
+            i++;
+        }
+        while (to > i && s.charAt(to - 1) == ' ') {
+            to--;
+        }
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        if (i == to) {
+            throw new NumberFormatException("Empty amount");
+        }
+
+        long units = 0;
+        int digits = 0;
+        for (; i < to && s.charAt(i) != '.'; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9' || ++digits > 16) {
+                return slowParse(s, from, to);
+            }
+            units = units * 10 + (c - '0');
+        }
+
+        long fraction = 0;
+        int decimals = 0;
+        if (i < to) {
+            i++;
+            for (; i < to; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return slowParse(s, from, to);
+                }
+                if (decimals < 2) {
+                    fraction = fraction * 10 + (c - '0');
+                    decimals++;
+                } else if (decimals++ == 2 && c >= '5') {
+                    fraction++;   // round half up on the third decimal
+                }
+            }
+        }
+        if (digits == 0 && decimals == 0) {
+            throw new NumberFormatException("Not an amount: " + s.subSequence(from, to));
+        }
+        for (int d = Math.min(decimals, 2); d < 2; d++) {
+            fraction *= 10;
+        }
+
+        long minor = units * SCALE + fraction;
+        return negative ? -minor : minor;
+    }
+
+    private static long slowParse(CharSequence s, int from, int to) {
+        // exponents and other forms Double accepts, off the common path
+        String text = s.subSequence(from, to).toString();
+        double amount = Double.parseDouble(text);
+        if (!(Math.abs(amount) * SCALE <= MAX)) {   // also false for NaN
+            throw new NumberFormatException("Amount out of range: " + text.trim());
+        }
+        return fromDouble(amount);
+    }
+
+    public static long fromDouble(double amount) {
+        return Math.round(amount * SCALE);
+    }
+
+    public static double toDouble(long minor) {
+        return minor / (double) SCALE;
+    }
+
+    public static StringBuilder append(StringBuilder sb, long minor) {
+        if (minor < 0) {
+            sb.append('-');
+            minor = -minor;
+        }
+        long fraction = minor % SCALE;
+        sb.append(minor / SCALE).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+
+    public static String format(long minor) {
+        return append(new StringBuilder(24), minor).toString();
+    }
+}
@@ -10,20 +10,45 @@ import java.util.*;
 
 public class NotificationAgent extends Agent {
 
-	private Map<String, Double> accountLowBalanceThresholds = new HashMap<>();
-	private Map<String, List<String>> accountNotifications = new HashMap<>();
-	private static final double DEFAULT_LOW_BALANCE = 100.0;
+	private final NotificationCenter center = new NotificationCenter();
+	private AlertFanout alerts;
+	private DirectoryCache directory;
+	private MessageDispatcher dispatcher;
+	private final MessageCodec.Reader reader = new MessageCodec.Reader();
+	private final StringBuilder key = new StringBuilder(32);
+	private final StringBuilder currency = new StringBuilder(8);
+	private AgentMetrics metrics;
 
 	protected void setup() {
 		System.out.println(getLocalName() + " started - Notification Service");
 
 		registerWithDF();
 
+		metrics = AgentMetrics.of(this);
+		metrics.start();
+		metrics.gauge("notifications.stored", center::size);
+		metrics.gauge("notifications.accounts", center::accounts);
+		metrics.gauge("notifications.bytes", center::memoryBytes);
+
+		directory = new DirectoryCache(this, "gui-agent");
+		directory.start();
+		dispatcher = MessageDispatcher.of(this);
+
+		alerts = new AlertFanout(this);
+		alerts.start(directory, "gui-agent");
+		dispatcher.on(AlertFanout.CONVERSATION_ID, alerts::handle);
+
+		// each behaviour gets only its own conversations, in its own queue
 		addBehaviour(new NotificationBehaviour());
 
 		addBehaviour(new PreferenceBehaviour());
 	}
 
+	protected void takeDown() {
+		dispatcher.close();
+		metrics.close();
+	}
+
 	private void registerWithDF() {
 		try {
 			DFAgentDescription dfd = new DFAgentDescription();
@@ -42,149 +67,192 @@ public class NotificationAgent extends Agent {
 	}
 
 	private class NotificationBehaviour extends CyclicBehaviour {
+		private final MessageDispatcher.Inbox inbox = dispatcher.inbox(this);
+
+		NotificationBehaviour() {
+			for (String cid : new String[] { "SYNC_DELTA", "SYNC_ACCOUNT", "TRANSACTION_COMPLETE",
+					"TRANSACTION_BATCH", "ACCOUNT_OPENED" }) {
+				dispatcher.on(cid, inbox);
+			}
+		}
+
 		public void action() {
-			ACLMessage msg = receive();
-			if (msg != null) {
-				if ("SYNC_ACCOUNT".equals(msg.getConversationId())) {
-					String[] parts = msg.getContent().split(";");
+			ACLMessage msg = inbox.poll();
+			if (msg == null) {
+				block();
+				return;
+			}
+			while (msg != null) {
+				long start = System.nanoTime();
+				handle(msg);
+				metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
+				msg = inbox.poll();
+			}
+		}
+
+		private void handle(ACLMessage msg) {
+			boolean binary = msg.hasByteSequenceContent() && MessageCodec.isBinary(msg.getByteSequenceContent());
+			if ("SYNC_DELTA".equals(msg.getConversationId())) {
+				// only the balances matter here, the per-origin columns are skipped
+				reader.reset(msg.getByteSequenceContent());
+				long origins = reader.readLong();
+				for (long o = 0; o < origins; o++) {
+					reader.readKey();
+				}
+				long count = reader.readLong();
+				for (long i = 0; i < count; i++) {
+					String accountId = reader.readKey();
+					checkAndNotify(accountId, Money.toDouble(reader.readLong()));
+					long columns = reader.readLong();
+					for (long c = 0; c < 3 * columns; c++) {
+						reader.readLong();
+					}
+				}
+			} else if ("SYNC_ACCOUNT".equals(msg.getConversationId())) {
+				if (binary) {
+					reader.reset(msg.getByteSequenceContent());
+					long count = reader.readLong();
+					for (long i = 0; i < count; i++) {
+						String accountId = reader.readKey();
+						checkAndNotify(accountId, Money.toDouble(reader.readLong()));
+					}
+					return;
+				}
+				// one "accountId;balance" line per account in the batch
+				for (String line : msg.getContent().split("\n")) {
+					String[] parts = line.split(";");
 					if (parts.length == 2) {
 						String accountId = parts[0];
 						double newBalance = Double.parseDouble(parts[1]);
 
 						checkAndNotify(accountId, newBalance);
 					}
-				} else if ("TRANSACTION_COMPLETE".equals(msg.getConversationId())) {
-					String transactionInfo = msg.getContent();
-					// Content format (from BankBranchAgent):
-					// accountId;transactionType;amount;oldBalance;newBalance
-					String accountId = "system";
+				}
+			} else if ("TRANSACTION_COMPLETE".equals(msg.getConversationId())) {
+				if (binary) {
+					reader.reset(msg.getByteSequenceContent());
+					reader.readKey(key);
+					center.transaction(key, (byte) reader.readByte(), reader.readLong(), reader.readLong(),
+							reader.readLong(), alerts);
+					if (reader.hasRemaining()) {
+						// the amount was converted by the branch; keep what it was and the rates used
+						reader.readKey(currency);
+						center.converted(key, currency, reader.readLong(), reader.readLong());
+					}
+					return;
+				}
+				String transactionInfo = msg.getContent();
+				// Content format (from BankBranchAgent):
+				// accountId;transactionType;amount;oldBalance;newBalance
+				String[] parts = transactionInfo.split(";");
+				if (parts.length == 5 && !parts[0].trim().isEmpty()) {
 					try {
-						String[] parts = transactionInfo.split(";", 2);
-						if (parts.length >= 1 && parts[0] != null && !parts[0].trim().isEmpty()) {
-							accountId = parts[0];
-						}
-					} catch (Exception ignore) {
-						// fall back to system
+						center.transaction(parts[0], MessageCodec.typeOf(parts[1]), Money.parse(parts[2]),
+								Money.parse(parts[3]), Money.parse(parts[4]), alerts);
+						return;
+					} catch (RuntimeException e) {
+						// keep it as text below
 					}
-					String notification = "Transaction completed: " + transactionInfo;
-					storeNotification(accountId, notification);
-				} else if ("ACCOUNT_OPENED".equals(msg.getConversationId())) {
-					String accountId = msg.getContent();
-					String notification = "Account " + accountId + " opened successfully";
-					storeNotification(accountId, notification);
 				}
-			} else {
-				block();
+				String accountId = parts.length > 1 && !parts[0].trim().isEmpty() ? parts[0] : "system";
+				center.store(accountId, "Transaction completed: " + transactionInfo);
+			} else if ("TRANSACTION_BATCH".equals(msg.getConversationId())) {
+				// every account opening and transaction of one BATCH request
+				reader.reset(msg.getByteSequenceContent());
+				while (reader.hasRemaining()) {
+					byte type = (byte) reader.readByte();
+					reader.readKey(key);
+					if (type == MessageCodec.ACCOUNT_OPENED) {
+						center.accountOpened(key);
+					} else {
+						center.transaction(key, type, reader.readLong(), reader.readLong(), reader.readLong(), alerts);
+					}
+				}
+			} else if ("ACCOUNT_OPENED".equals(msg.getConversationId())) {
+				if (binary) {
+					reader.reset(msg.getByteSequenceContent());
+					reader.readKey(key);
+					center.accountOpened(key);
+				} else {
+					center.accountOpened(msg.getContent());
+				}
 			}
 		}
 
 		private void checkAndNotify(String accountId, double balance) {
-			double threshold = accountLowBalanceThresholds.getOrDefault(accountId, DEFAULT_LOW_BALANCE);
-
-			if (balance < threshold) {
-				String notification = "Low balance alert for account " + accountId + ": "
-						+ String.format("%.2f", balance) + " (threshold: " + threshold + ")";
-				storeNotification(accountId, notification);
-
-				sendNotificationToGUI("NOTIFICATION_ALERT", notification);
-			}
-
-			if (balance == 0.0) {
-				String notification = "Account " + accountId + " has zero balance";
-				storeNotification(accountId, notification);
-				sendNotificationToGUI("NOTIFICATION_ALERT", notification);
-			}
+			center.checkBalance(accountId, balance, alerts);
 		}
 	}
 
-	private void sendNotificationToGUI(String type, String content) {
-		try {
-			DFAgentDescription template = new DFAgentDescription();
-			ServiceDescription sd = new ServiceDescription();
-			sd.setType("gui-agent");
-			template.addServices(sd);
-
-			DFAgentDescription[] results = DFService.search(this, template);
-
-			if (results.length > 0) {
-				AID guiAgent = results[0].getName();
-				ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
-				msg.addReceiver(guiAgent);
-				msg.setConversationId(type);
-				msg.setContent(content);
-				send(msg);
-			}
-		} catch (Exception e) {
-			// GUI not found yet, will try again next time
-		}
-	}
-
-	private void storeNotification(String accountId, String notification) {
-		accountNotifications.putIfAbsent(accountId, new ArrayList<>());
-		List<String> notifications = accountNotifications.get(accountId);
-		notifications.add(new Date() + ": " + notification);
+	private class PreferenceBehaviour extends CyclicBehaviour {
+		private final MessageDispatcher.Inbox inbox = dispatcher.inbox(this);
 
-		if (notifications.size() > 10) {
-			notifications.remove(0);
+		PreferenceBehaviour() {
+			for (String cid : new String[] { "SET_LOW_BALANCE_THRESHOLD", "GET_NOTIFICATIONS", "CLEAR_NOTIFICATIONS" }) {
+				dispatcher.on(cid, inbox);
+			}
 		}
 
-		System.out.println("[" + getLocalName() + "] " + notification);
-	}
-
-	private class PreferenceBehaviour extends CyclicBehaviour {
 		public void action() {
-			ACLMessage msg = receive();
-			if (msg != null) {
-				if ("SET_LOW_BALANCE_THRESHOLD".equals(msg.getConversationId())) {
-					String[] parts = msg.getContent().split(";");
-					if (parts.length == 2) {
-						String accountId = parts[0];
-						double threshold = Double.parseDouble(parts[1]);
-						accountLowBalanceThresholds.put(accountId, threshold);
-
-						String confirmation = "Set low balance threshold for " + accountId + ": " + threshold;
-						storeNotification(accountId, confirmation);
-
-						ACLMessage reply = msg.createReply();
-						reply.setPerformative(ACLMessage.INFORM);
-						reply.setConversationId("NOTIFICATION_INFO");
-						reply.setContent(confirmation);
-						send(reply);
-					}
-				} else if ("GET_NOTIFICATIONS".equals(msg.getConversationId())) {
-					String accountId = msg.getContent();
-					List<String> notifications = accountNotifications.getOrDefault(accountId, new ArrayList<>());
-
-					ACLMessage reply = msg.createReply();
-					reply.setPerformative(ACLMessage.INFORM);
-					reply.setConversationId("NOTIFICATIONS_LIST");
-					if (msg.getReplyWith() != null) {
-						reply.setInReplyTo(msg.getReplyWith());
-					}
+			ACLMessage msg = inbox.poll();
+			if (msg == null) {
+				block();
+				return;
+			}
+			while (msg != null) {
+				long start = System.nanoTime();
+				handle(msg);
+				metrics.recordMessage(msg.getConversationId(), System.nanoTime() - start);
+				msg = inbox.poll();
+			}
+		}
 
-					if (notifications.isEmpty()) {
-						reply.setContent("No notifications for account " + accountId);
-					} else {
-						StringBuilder sb = new StringBuilder();
-						sb.append("Notifications for ").append(accountId).append(":\n");
-						for (String note : notifications) {
-							sb.append("- ").append(note).append("\n");
-						}
-						reply.setContent(sb.toString());
-					}
-					send(reply);
-				} else if ("CLEAR_NOTIFICATIONS".equals(msg.getConversationId())) {
-					String accountId = msg.getContent();
-					accountNotifications.remove(accountId);
+		private void handle(ACLMessage msg) {
+			if ("SET_LOW_BALANCE_THRESHOLD".equals(msg.getConversationId())) {
+				String[] parts = msg.getContent().split(";");
+				if (parts.length == 2) {
+					String accountId = parts[0];
+					double threshold = Double.parseDouble(parts[1]);
+					String confirmation = center.setThreshold(accountId, threshold);
+					System.out.println("[" + getLocalName() + "] " + confirmation);
 
 					ACLMessage reply = msg.createReply();
 					reply.setPerformative(ACLMessage.INFORM);
 					reply.setConversationId("NOTIFICATION_INFO");
-					reply.setContent("Cleared notifications for account " + accountId);
+					reply.setContent(confirmation);
 					send(reply);
 				}
-			} else {
-				block();
+			} else if ("GET_NOTIFICATIONS".equals(msg.getConversationId())) {
+				String accountId = msg.getContent();
+				List<String> notifications = center.notifications(accountId);
+
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.INFORM);
+				reply.setConversationId("NOTIFICATIONS_LIST");
+				if (msg.getReplyWith() != null) {
+					reply.setInReplyTo(msg.getReplyWith());
+				}
+
+				if (notifications.isEmpty()) {
+					reply.setContent("No notifications for account " + accountId);
+				} else {
+					StringBuilder sb = new StringBuilder();
+					sb.append("Notifications for ").append(accountId).append(":\n");
+					for (String note : notifications) {
+						sb.append("- ").append(note).append("\n");
+					}
+					reply.setContent(sb.toString());
+				}
+				send(reply);
+			} else if ("CLEAR_NOTIFICATIONS".equals(msg.getConversationId())) {
+				String accountId = msg.getContent();
+				center.clear(accountId);
+
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.INFORM);
+				reply.setConversationId("NOTIFICATION_INFO");
+				reply.setContent("Cleared notifications for account " + accountId);
+				send(reply);
 			}
 		}
 	}
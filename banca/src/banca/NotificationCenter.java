@@ -0,0 +1,113 @@
+package banca;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-account notification history, kept in a {@link NotificationStore}, low-balance
+ * thresholds and the {@link AlertRuleEngine} rules of NotificationAgent.
+ * Has no JADE dependency; alerts are handed to an {@link AlertSink} so the agent decides
+ * how to deliver them.
+ */
+public class NotificationCenter {
+
+	public interface AlertSink {
+		/** An alert of the named rule; alerts of one rule for one account may be coalesced. */
+		void alert(String accountId, String rule, String notification);
+
+		/** False if alerts for the account would be discarded, so they are not even rendered. */
+		default boolean wants(String accountId) {
+			return true;
+		}
+	}
+
+	public static final double DEFAULT_LOW_BALANCE = 100.0;
+
+	private final Map<String, Double> accountLowBalanceThresholds = new HashMap<>();
+	private final NotificationStore store;
+	private final AlertRuleEngine rules;
+
+	public NotificationCenter() {
+		this(NotificationStore.CAPACITY, new AlertRuleEngine());
+	}
+
+	public NotificationCenter(int capacity, AlertRuleEngine rules) {
+		this.store = new NotificationStore(capacity);
+		this.rules = rules;
+	}
+
+	/** Stores a completed deposit or withdrawal, given by its MessageCodec type, and raises the alerts it triggers. */
+	public void transaction(CharSequence accountId, byte type, long amount, long oldBalance, long newBalance,
+			AlertSink sink) {
+		// one clock read for both; it costs as much as the store itself on some machines
+		long now = System.currentTimeMillis();
+		store.add(accountId, type, amount, oldBalance, newBalance, now);
+		rules.transaction(accountId, type, amount, oldBalance, newBalance, now, sink);
+	}
+
+	/** Stores how the transaction stored last for the account was converted from another currency. */
+	public void converted(CharSequence accountId, CharSequence currency, long amount, long ratesVersion) {
+		store.add(accountId, NotificationStore.CONVERTED, amount, NotificationStore.packCurrency(currency), ratesVersion);
+	}
+
+	public void accountOpened(CharSequence accountId) {
+		store.add(accountId, MessageCodec.ACCOUNT_OPENED, 0, 0, 0);
+	}
+
+	/** Stores a notification that has no event code, as text. */
+	public void store(String accountId, String notification) {
+		store.addText(accountId, notification);
+	}
+
+	/** Stores and raises the alerts a new balance triggers. */
+	public void checkBalance(String accountId, double balance, AlertSink sink) {
+		double threshold = accountLowBalanceThresholds.getOrDefault(accountId, DEFAULT_LOW_BALANCE);
+
+		if (balance < threshold) {
+			store.add(accountId, NotificationStore.LOW_BALANCE, Money.fromDouble(balance),
+					Double.doubleToRawLongBits(threshold), 0);
+			if (sink.wants(accountId)) {
+				sink.alert(accountId, "low balance", store.renderLast(accountId));
+			}
+		}
+
+		if (balance == 0.0) {
+			store.add(accountId, NotificationStore.ZERO_BALANCE, 0, 0, 0);
+			if (sink.wants(accountId)) {
+				sink.alert(accountId, "zero balance", store.renderLast(accountId));
+			}
+		}
+
+		rules.balance(accountId, Money.fromDouble(balance), System.currentTimeMillis(), sink);
+	}
+
+	/** Sets the threshold and stores the change; returns the confirmation text. */
+	public String setThreshold(String accountId, double threshold) {
+		accountLowBalanceThresholds.put(accountId, threshold);
+		store.add(accountId, NotificationStore.THRESHOLD_SET, Double.doubleToRawLongBits(threshold), 0, 0);
+		return store.renderLast(accountId);
+	}
+
+	/** The account's notifications, oldest first, rendered now. */
+	public List<String> notifications(String accountId) {
+		return store.render(accountId);
+	}
+
+	public void clear(String accountId) {
+		store.clear(accountId);
+	}
+
+	/** Notifications currently kept, over all accounts. */
+	public long size() {
+		return store.size();
+	}
+
+	public int accounts() {
+		return store.accounts();
+	}
+
+	public long memoryBytes() {
+		return store.memoryBytes();
+	}
+}
@@ -0,0 +1,239 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The last CAPACITY notifications of every account as fixed-width records: a timestamp,
+ * an event code and three amounts, in one set of primitive arrays with CAPACITY records
+ * per account slot used as a ring. Storing an event writes a record in place, so neither
+ * a full history nor a new one allocates, and the text is only rendered when the
+ * notifications are read.
+ *
+ * Event codes are the MessageCodec types of account events (ACCOUNT_OPENED, DEPOSIT,
+ * WITHDRAW) plus the codes below. Amounts are in minor units; thresholds, which are
+ * doubles, are kept as their raw bits.
+ */
+public class NotificationStore {
+
+    public static final int CAPACITY = Integer.getInteger("banca.notifications.capacity", 10);
+
+    public static final byte LOW_BALANCE = 64;
+    public static final byte ZERO_BALANCE = 65;
+    public static final byte THRESHOLD_SET = 66;
+    /** A notification kept as text, for content that could not be decoded. */
+    public static final byte TEXT = 67;
+    /** The conversion of the transaction before it: amount, currency (see {@link #packCurrency}), rates version. */
+    public static final byte CONVERTED = 68;
+
+    private static final int AMOUNTS = 3;
+
+    private final int capacity;
+    private final AccountIndex index = new AccountIndex();
+    private int[] next = new int[0];      // per slot, ring position of the next record
+    private int[] counts = new int[0];    // per slot
+    private long[] times = new long[0];   // per record
+    private byte[] events = new byte[0];
+    private long[] amounts = new long[0];
+    private String[] texts;               // per record, allocated with the first TEXT
+    private long stored;
+
+    public NotificationStore() {
+        this(CAPACITY);
+    }
+
+    public NotificationStore(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        ensureSlotCapacity(index.capacity());
+    }
+
+    public void add(CharSequence accountId, byte event, long a, long b, long c) {
+        add(accountId, event, a, b, c, System.currentTimeMillis());
+    }
+
+    /** Adds an event that happened at time, for callers that already read the clock. */
+    public void add(CharSequence accountId, byte event, long a, long b, long c, long time) {
+        int record = nextRecord(accountId, time);
+        events[record] = event;
+        amounts[AMOUNTS * record] = a;
+        amounts[AMOUNTS * record + 1] = b;
+        amounts[AMOUNTS * record + 2] = c;
+        if (texts != null) {
+            texts[record] = null;
+        }
+    }
+
+    public void addText(CharSequence accountId, String text) {
+        if (texts == null) {
+            texts = new String[times.length];
+        }
+        int record = nextRecord(accountId, System.currentTimeMillis());
+        events[record] = TEXT;
+        texts[record] = text;
+    }
+
+    public int count(CharSequence accountId) {
+        int slot = index.find(accountId);
+        return slot < 0 ? 0 : counts[slot];
+    }
+
+    /** The account's notifications, oldest first, rendered as "date: text". */
+    public List<String> render(CharSequence accountId) {
+        int slot = index.find(accountId);
+        if (slot < 0) {
+            return new ArrayList<>(0);
+        }
+        int count = counts[slot];
+        List<String> list = new ArrayList<>(count);
+        StringBuilder sb = new StringBuilder(96);
+        for (int i = count; i > 0; i--) {
+            int record = slot * capacity + (next[slot] - i + capacity) % capacity;
+            sb.setLength(0);
+            sb.append(new Date(times[record])).append(": ");
+            appendText(accountId, record, sb);
+            list.add(sb.toString());
+        }
+        return list;
+    }
+
+    /** The text of the account's newest notification, e.g. to forward it as an alert. */
+    public String renderLast(CharSequence accountId) {
+        int slot = index.find(accountId);
+        if (slot < 0 || counts[slot] == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(96);
+        appendText(accountId, slot * capacity + (next[slot] - 1 + capacity) % capacity, sb);
+        return sb.toString();
+    }
+
+    /** Removes the account's notifications; returns how many there were. */
+    public int clear(CharSequence accountId) {
+        int slot = index.find(accountId);
+        if (slot < 0) {
+            return 0;
+        }
+        int removed = counts[slot];
+        stored -= removed;
+        int moved = index.remove(slot);
+        if (moved >= 0) {
+            // the last slot moved into the freed one, and its records with it
+            System.arraycopy(times, moved * capacity, times, slot * capacity, capacity);
+            System.arraycopy(events, moved * capacity, events, slot * capacity, capacity);
+            System.arraycopy(amounts, AMOUNTS * moved * capacity, amounts, AMOUNTS * slot * capacity,
+                    AMOUNTS * capacity);
+            if (texts != null) {
+                System.arraycopy(texts, moved * capacity, texts, slot * capacity, capacity);
+                Arrays.fill(texts, moved * capacity, (moved + 1) * capacity, null);
+            }
+            next[slot] = next[moved];
+            counts[slot] = counts[moved];
+        } else if (texts != null) {
+            Arrays.fill(texts, slot * capacity, (slot + 1) * capacity, null);
+        }
+        return removed;
+    }
+
+    /** Notifications currently kept, over all accounts. */
+    public long size() {
+        return stored;
+    }
+
+    public int accounts() {
+        return index.size();
+    }
+
+    /** Approximate heap used by the store's arrays, text notifications excluded. */
+    public long memoryBytes() {
+        return index.memoryBytes() + 4L * next.length + 4L * counts.length + 8L * times.length + events.length
+                + 8L * amounts.length + (texts == null ? 0 : 4L * texts.length);
+    }
+
+    /** A currency code of up to eight ASCII characters as one amount; longer codes are cut. */
+    public static long packCurrency(CharSequence currency) {
+        long packed = 0;
+        for (int i = 0; i < Math.min(8, currency.length()); i++) {
+            packed = packed << 8 | (currency.charAt(i) & 0xFF);
+        }
+        return packed;
+    }
+
+    private int nextRecord(CharSequence accountId, long time) {
+        int slot = index.find(accountId);
+        if (slot < 0) {
+            slot = index.add(accountId);
+            ensureSlotCapacity(index.capacity());
+            next[slot] = 0;
+            counts[slot] = 0;
+        }
+        int record = slot * capacity + next[slot];
+        next[slot] = next[slot] + 1 == capacity ? 0 : next[slot] + 1;
+        if (counts[slot] < capacity) {
+            counts[slot]++;
+            stored++;
+        }
+        times[record] = time;
+        return record;
+    }
+
+    private void appendText(CharSequence accountId, int record, StringBuilder sb) {
+        long a = amounts[AMOUNTS * record];
+        long b = amounts[AMOUNTS * record + 1];
+        long c = amounts[AMOUNTS * record + 2];
+        switch (events[record]) {
+        case MessageCodec.ACCOUNT_OPENED:
+            sb.append("Account ").append(accountId).append(" opened successfully");
+            break;
+        case LOW_BALANCE:
+            sb.append("Low balance alert for account ").append(accountId).append(": ");
+            Money.append(sb, a).append(" (threshold: ").append(Double.longBitsToDouble(b)).append(')');
+            break;
+        case ZERO_BALANCE:
+            sb.append("Account ").append(accountId).append(" has zero balance");
+            break;
+        case THRESHOLD_SET:
+            sb.append("Set low balance threshold for ").append(accountId).append(": ")
+                    .append(Double.longBitsToDouble(a));
+            break;
+        case TEXT:
+            sb.append(texts[record]);
+            break;
+        case CONVERTED:
+            sb.append("Converted from ");
+            Money.append(sb, a).append(' ');
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                if ((b >>> shift & 0xFF) != 0) {
+                    sb.append((char) (b >>> shift & 0xFF));
+                }
+            }
+            sb.append(" at rates version ").append(c);
+            break;
+        default:
+            sb.append("Transaction completed: ").append(accountId).append(';')
+                    .append(MessageCodec.conversationId(events[record])).append(';');
+            Money.append(sb, a).append(';');
+            Money.append(sb, b).append(';');
+            Money.append(sb, c);
+            break;
+        }
+    }
+
+    private void ensureSlotCapacity(int slots) {
+        if (slots <= next.length) {
+            return;
+        }
+        next = Arrays.copyOf(next, slots);
+        counts = Arrays.copyOf(counts, slots);
+        times = Arrays.copyOf(times, slots * capacity);
+        events = Arrays.copyOf(events, slots * capacity);
+        amounts = Arrays.copyOf(amounts, AMOUNTS * slots * capacity);
+        if (texts != null) {
+            texts = Arrays.copyOf(texts, slots * capacity);
+        }
+    }
+}
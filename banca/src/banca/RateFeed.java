@@ -0,0 +1,119 @@
+package banca;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * A consumer's copy of the exchange rates, kept current by the pushes of a
+ * {@link RateStream}. A delta is applied only when it follows the version held: older
+ * or repeated versions are ignored, and one that skips a version, meaning a push was
+ * missed, makes the feed subscribe again to get every currency afresh. A full snapshot
+ * is always taken as the new base, so a restarted exchange agent whose versions start
+ * over is followed rather than ignored as stale.
+ */
+public class RateFeed {
+
+    private final Agent agent;
+    private final AgentMetrics metrics;
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private final StringBuilder key = new StringBuilder(8);
+    private AID exchange;
+    private String[] currencies;
+    private double[] values;
+    private long version = -1;
+    private volatile RateSnapshot snapshot;
+
+    public RateFeed(Agent agent) {
+        this.agent = agent;
+        this.metrics = AgentMetrics.of(agent);
+    }
+
+    /** Subscribes to the exchange agent; subscribing again resends every currency. */
+    public void subscribe(AID exchangeAgent) {
+        if (exchange != null && !exchange.equals(exchangeAgent)) {
+            cancel();
+        }
+        exchange = exchangeAgent;
+        // the versions of a new subscription need not continue the old ones
+        version = -1;
+        send(ACLMessage.SUBSCRIBE);
+    }
+
+    public void cancel() {
+        if (exchange != null) {
+            send(ACLMessage.CANCEL);
+            exchange = null;
+        }
+    }
+
+    /** The rates last received, or null before the first update; safe to read on any thread. */
+    public RateSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /** Applies an EXCHANGE_RATES_UPDATE; returns whether the rates changed. */
+    public boolean handle(ACLMessage msg) {
+        byte[] content = msg.getByteSequenceContent();
+        if (!MessageCodec.isBinary(content) || reader.reset(content) != MessageCodec.RATES) {
+            metrics.increment("rates.malformed");
+            return false;
+        }
+        long next = reader.readLong();
+        long previous = reader.readLong();
+        int count = (int) reader.readLong();
+        if (previous >= 0 && next <= version) {
+            metrics.increment("rates.stale");
+            return false;
+        }
+        if (previous < 0) {
+            currencies = new String[count];
+            values = new double[count];
+            for (int i = 0; i < count; i++) {
+                currencies[i] = reader.readKey();
+                values[i] = Double.longBitsToDouble(reader.readLong());
+            }
+        } else if (currencies == null || previous > version) {
+            metrics.increment("rates.gaps");
+            resubscribe();
+            return false;
+        } else {
+            double[] updated = values.clone();
+            for (int i = 0; i < count; i++) {
+                int ordinal = ordinal(reader.readKey(key));
+                if (ordinal < 0) {
+                    // a currency we never heard of; start over
+                    resubscribe();
+                    return false;
+                }
+                updated[ordinal] = Double.longBitsToDouble(reader.readLong());
+            }
+            values = updated;
+        }
+        version = next;
+        snapshot = new RateSnapshot(currencies, values, version);
+        return true;
+    }
+
+    private int ordinal(CharSequence currency) {
+        for (int i = 0; i < currencies.length; i++) {
+            if (currencies[i].contentEquals(currency)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void resubscribe() {
+        if (exchange != null) {
+            send(ACLMessage.SUBSCRIBE);
+        }
+    }
+
+    private void send(int performative) {
+        ACLMessage msg = new ACLMessage(performative);
+        msg.addReceiver(exchange);
+        msg.setConversationId(RateStream.CONVERSATION_ID);
+        agent.send(msg);
+    }
+}
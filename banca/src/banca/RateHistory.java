@@ -0,0 +1,284 @@
+package banca;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Rate history of CurrencyExchangeAgent: the raw ticks, and open/high/low/close candles
+ * per currency pair at 1m, 1h and 1d resolution.
+ *
+ * Ticks are stored column by column in a ring of SEGMENTS segments of SEGMENT_TICKS
+ * ticks, one timestamp column and one column per currency with its value in the base
+ * currency; a pair's rate at a tick is the ratio of two values, as in {@link RateSnapshot},
+ * so the columns hold every pair. When the ring is full the oldest segment is reused.
+ * Segments live on the heap, or with banca.rates.historyMapped in memory-mapped files in
+ * the agent's data directory, so a long raw history costs no heap. Mapped segments are
+ * scratch space: they are overwritten, not reloaded, after a restart.
+ *
+ * Every tick also updates the current candle of each level for the tracked unordered
+ * pairs i < j; a query for j/i inverts it. Candles of a level are a ring of its retention,
+ * so range queries read at most that many candles and never scan ticks. All N(N-1)/2
+ * pairs would make a tick O(N^2), so at most CANDLE_PAIRS are tracked: the base currency
+ * against every other first, then the cross pairs in ordinal order. The raw ticks still
+ * hold every pair; a candle query for an untracked pair is refused.
+ */
+public class RateHistory {
+
+    public static final int SEGMENT_TICKS = Integer.getInteger("banca.rates.segmentTicks", 4096);
+    public static final int SEGMENTS = Integer.getInteger("banca.rates.historySegments", 64);
+    public static final boolean MAPPED = Boolean.getBoolean("banca.rates.historyMapped");
+    /** Candles returned by a query at most; the finest level that fits is used. */
+    public static final int MAX_CANDLES = Integer.getInteger("banca.rates.maxCandles", 500);
+    /** Currency pairs with candles at most, bounding the work per tick. */
+    public static final int CANDLE_PAIRS = Integer.getInteger("banca.rates.candlePairs", 64);
+
+    private static final String[] LEVEL_NAMES = { "1m", "1h", "1d" };
+    private static final long[] LEVEL_MILLIS = { 60_000L, 3_600_000L, 86_400_000L };
+    private static final int[] LEVEL_RETENTION = {
+            Integer.getInteger("banca.rates.minuteCandles", 1440),
+            Integer.getInteger("banca.rates.hourCandles", 720),
+            Integer.getInteger("banca.rates.dayCandles", 730) };
+    private static final int OPEN = 0;
+    private static final int HIGH = 1;
+    private static final int LOW = 2;
+    private static final int CLOSE = 3;
+
+    private final String[] currencies;
+    private final int pairs;
+    private final int[] pairFrom;       // per tracked pair, the lower ordinal
+    private final int[] pairTo;
+    private final int[] pairOf;         // per i * N + j with i < j, the tracked pair or -1
+    private final File dir;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private int head = -1;              // segment written to
+    private long ticks;
+    private final long[][] candleStarts = new long[LEVEL_NAMES.length][];
+    private final double[][] candles = new double[LEVEL_NAMES.length][];   // per candle, pair and OHLC
+
+    /** dir holds the mapped segments; it is unused unless MAPPED. */
+    public RateHistory(RateSnapshot rates, File dir) {
+        this.currencies = new String[rates.currencies()];
+        for (int i = 0; i < currencies.length; i++) {
+            currencies[i] = rates.currency(i);
+        }
+        int n = currencies.length;
+        this.pairs = Math.min(n * (n - 1) / 2, CANDLE_PAIRS);
+        this.pairFrom = new int[pairs];
+        this.pairTo = new int[pairs];
+        this.pairOf = new int[n * n];
+        Arrays.fill(pairOf, -1);
+        int pair = 0;
+        for (int i = 0; i < n && pair < pairs; i++) {
+            for (int j = i + 1; j < n && pair < pairs; j++, pair++) {
+                pairFrom[pair] = i;
+                pairTo[pair] = j;
+                pairOf[i * n + j] = pair;
+            }
+        }
+        this.dir = dir;
+        for (int level = 0; level < LEVEL_NAMES.length; level++) {
+            candleStarts[level] = new long[LEVEL_RETENTION[level]];
+            candles[level] = new double[LEVEL_RETENTION[level] * pairs * 4];
+        }
+    }
+
+    /** Appends a tick with every currency's value and folds it into the candles. */
+    public void record(long time, RateSnapshot rates) {
+        Segment segment = head < 0 ? null : segments[head];
+        if (segment == null || segment.count == SEGMENT_TICKS) {
+            head = (head + 1) % SEGMENTS;
+            if (segments[head] == null) {
+                segments[head] = new Segment(head);
+            }
+            segment = segments[head];
+            segment.count = 0;
+        }
+        int tick = segment.count;
+        segment.times.put(tick, time);
+        for (int c = 0; c < currencies.length; c++) {
+            segment.values.put(c * SEGMENT_TICKS + tick, rates.value(c));
+        }
+        segment.count++;
+        ticks++;
+
+        for (int level = 0; level < LEVEL_NAMES.length; level++) {
+            long start = time - Math.floorMod(time, LEVEL_MILLIS[level]);
+            int slot = (int) Math.floorMod(start / LEVEL_MILLIS[level], (long) LEVEL_RETENTION[level]);
+            double[] ohlc = candles[level];
+            boolean fresh = candleStarts[level][slot] != start;
+            candleStarts[level][slot] = start;
+            int at = slot * pairs * 4;
+            for (int pair = 0; pair < pairs; pair++, at += 4) {
+                double rate = rates.rate(pairFrom[pair], pairTo[pair]);
+                if (fresh) {
+                    ohlc[at + OPEN] = rate;
+                    ohlc[at + HIGH] = rate;
+                    ohlc[at + LOW] = rate;
+                } else {
+                    ohlc[at + HIGH] = Math.max(ohlc[at + HIGH], rate);
+                    ohlc[at + LOW] = Math.min(ohlc[at + LOW], rate);
+                }
+                ohlc[at + CLOSE] = rate;
+            }
+        }
+    }
+
+    /** Ticks kept, at most SEGMENTS * SEGMENT_TICKS. */
+    public long size() {
+        return Math.min(ticks, (long) SEGMENTS * SEGMENT_TICKS);
+    }
+
+    /** The rate from/to at the last tick at or before time, or NaN if that is not kept. */
+    public double rateAt(int from, int to, long time) {
+        for (int n = 0; n < SEGMENTS; n++) {
+            Segment segment = segments[Math.floorMod(head - n, SEGMENTS)];
+            if (segment == null || segment.count == 0) {
+                break;
+            }
+            if (segment.times.get(0) <= time) {
+                int lo = 0;
+                int hi = segment.count - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (segment.times.get(mid) <= time) {
+                        lo = mid;
+                    } else {
+                        hi = mid - 1;
+                    }
+                }
+                return segment.values.get(from * SEGMENT_TICKS + lo) / segment.values.get(to * SEGMENT_TICKS + lo);
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Answers a GET_RATE_HISTORY request "FROM;TO;startMillis;endMillis[;resolution]" with a
+     * line "start;open;high;low;close" per candle in the range, oldest first. Without a
+     * resolution the finest of 1m, 1h and 1d that covers the range in at most
+     * MAX_CANDLES candles is used.
+     */
+    public String query(String request) {
+        String[] parts = request.split(";");
+        if (parts.length != 4 && parts.length != 5) {
+            throw new IllegalArgumentException("Expected FROM;TO;startMillis;endMillis[;1m|1h|1d]");
+        }
+        int from = ordinal(parts[0].trim());
+        int to = ordinal(parts[1].trim());
+        if (from == to) {
+            throw new IllegalArgumentException("Currencies must differ");
+        }
+        long start = Long.parseLong(parts[2].trim());
+        long end = Long.parseLong(parts[3].trim());
+        if (end < start) {
+            throw new IllegalArgumentException("End before start");
+        }
+        int level = parts.length == 5 ? levelOf(parts[4].trim()) : levelFor(start, end);
+
+        int pair = pairOf[Math.min(from, to) * currencies.length + Math.max(from, to)];
+        if (pair < 0) {
+            throw new IllegalArgumentException("No candles kept for " + parts[0].trim() + "/" + parts[1].trim()
+                    + ", only the first " + CANDLE_PAIRS + " pairs");
+        }
+        boolean inverse = from > to;
+        long width = LEVEL_MILLIS[level];
+        int retention = LEVEL_RETENTION[level];
+        long first = Math.max(start - Math.floorMod(start, width), end - Math.floorMod(end, width) - (retention - 1) * width);
+        StringBuilder sb = new StringBuilder(64 * (int) Math.min(retention, (end - first) / width + 1));
+        for (long candle = first; candle <= end; candle += width) {
+            int slot = (int) Math.floorMod(candle / width, (long) retention);
+            if (candleStarts[level][slot] != candle) {
+                continue;
+            }
+            int at = (slot * pairs + pair) * 4;
+            double[] ohlc = candles[level];
+            sb.append(candle).append(';');
+            if (inverse) {
+                sb.append(1 / ohlc[at + OPEN]).append(';').append(1 / ohlc[at + LOW]).append(';')
+                        .append(1 / ohlc[at + HIGH]).append(';').append(1 / ohlc[at + CLOSE]);
+            } else {
+                sb.append(ohlc[at + OPEN]).append(';').append(ohlc[at + HIGH]).append(';')
+                        .append(ohlc[at + LOW]).append(';').append(ohlc[at + CLOSE]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Approximate heap used by the candles and heap segments. */
+    public long memoryBytes() {
+        long bytes = 0;
+        for (int level = 0; level < LEVEL_NAMES.length; level++) {
+            bytes += 8L * candleStarts[level].length + 8L * candles[level].length;
+        }
+        if (!MAPPED) {
+            for (Segment segment : segments) {
+                if (segment != null) {
+                    bytes += 8L * SEGMENT_TICKS * (1 + currencies.length);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private int ordinal(String currency) {
+        for (int i = 0; i < currencies.length; i++) {
+            if (currencies[i].equals(currency)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown currency " + currency);
+    }
+
+    private static int levelOf(String name) {
+        for (int level = 0; level < LEVEL_NAMES.length; level++) {
+            if (LEVEL_NAMES[level].equals(name)) {
+                return level;
+            }
+        }
+        throw new IllegalArgumentException("Resolution must be 1m, 1h or 1d: " + name);
+    }
+
+    private static int levelFor(long start, long end) {
+        for (int level = 0; level < LEVEL_NAMES.length; level++) {
+            long candles = (end - start) / LEVEL_MILLIS[level] + 1;
+            if (candles <= Math.min(MAX_CANDLES, LEVEL_RETENTION[level])) {
+                return level;
+            }
+        }
+        return LEVEL_NAMES.length - 1;
+    }
+
+    /** One column-wise block of SEGMENT_TICKS ticks. */
+    private final class Segment {
+        final LongBuffer times;
+        final DoubleBuffer values;   // currency-major: value of currency c at tick t is c * SEGMENT_TICKS + t
+        int count;
+
+        Segment(int index) {
+            long bytes = 8L * SEGMENT_TICKS * (1 + currencies.length);
+            ByteBuffer buffer;
+            if (MAPPED) {
+                dir.mkdirs();
+                File file = new File(dir, String.format("rate-ticks-%03d.seg", index));
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot map rate history segment " + file, e);
+                }
+            } else {
+                buffer = ByteBuffer.allocate((int) bytes);
+            }
+            times = buffer.asLongBuffer();
+            buffer.position(8 * SEGMENT_TICKS);
+            values = buffer.slice().asDoubleBuffer();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package banca;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * One immutable version of the exchange rates. It holds the value of every currency in
+ * the base currency and its inverse, both indexed by currency ordinal, and the N x N
+ * rate matrix is their outer product: rate(from, to) is values[from] * inverse[to], so
+ * every cross and inverse rate agrees with the others and a new version costs O(N).
+ *
+ * As a Map it reads "FROM_TO" keys, e.g. "RON_EUR", computed on access, for callers that
+ * still look rates up by name; nothing is copied.
+ */
+public final class RateSnapshot extends AbstractMap<String, Double> {
+
+    private final String[] currencies;
+    private final double[] values;
+    private final double[] inverse;
+    private final long version;
+
+    RateSnapshot(String[] currencies, double[] values, long version) {
+        this.currencies = currencies;
+        this.values = values;
+        this.inverse = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            inverse[i] = 1 / values[i];
+        }
+        this.version = version;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int currencies() {
+        return currencies.length;
+    }
+
+    public String currency(int ordinal) {
+        return currencies[ordinal];
+    }
+
+    /** The currency's ordinal, or -1; resolve once and look rates up by ordinal. */
+    public int ordinal(CharSequence currency) {
+        for (int i = 0; i < currencies.length; i++) {
+            if (currencies[i].contentEquals(currency)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** How much of currency to one unit of from buys. */
+    public double rate(int from, int to) {
+        return values[from] * inverse[to];
+    }
+
+    /** The value of one unit of the currency in the base currency. */
+    public double value(int ordinal) {
+        return values[ordinal];
+    }
+
+    /** The rates as shown by the GUI: a line per currency with its rate to each of the others. */
+    public String format() {
+        int n = currencies.length;
+        StringBuilder sb = new StringBuilder(16 + n * n * 24);
+        sb.append("Exchange Rates:");
+        for (int from = 0; from < n; from++) {
+            sb.append('\n');
+            for (int to = 0; to < n; to++) {
+                if (to == from) {
+                    continue;
+                }
+                if (to != (from == 0 ? 1 : 0)) {
+                    sb.append(" | ");
+                }
+                sb.append("1 ").append(currencies[from]).append(" = ");
+                appendRate(sb, rate(from, to)).append(' ').append(currencies[to]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Appends the rate with four decimals, as %.4f would. */
+    static StringBuilder appendRate(StringBuilder sb, double rate) {
+        long scaled = Math.round(rate * 10_000);
+        sb.append(scaled / 10_000).append('.');
+        long fraction = scaled % 10_000;
+        for (long digit = 1000; digit > fraction && digit > 1; digit /= 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+
+    public Double get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String pair = (String) key;
+        int separator = pair.indexOf('_');
+        if (separator < 0) {
+            return null;
+        }
+        int from = ordinal(pair.substring(0, separator));
+        int to = ordinal(pair.substring(separator + 1));
+        return from < 0 || to < 0 || from == to ? null : rate(from, to);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return currencies.length * (currencies.length - 1);
+    }
+
+    public Set<Map.Entry<String, Double>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Double>>() {
+            public int size() {
+                return RateSnapshot.this.size();
+            }
+
+            public Iterator<Map.Entry<String, Double>> iterator() {
+                return new Iterator<Map.Entry<String, Double>>() {
+                    private int from;
+                    private int to = currencies.length > 1 ? 1 : currencies.length;
+
+                    public boolean hasNext() {
+                        return from < currencies.length && to < currencies.length;
+                    }
+
+                    public Map.Entry<String, Double> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Double> entry = new SimpleImmutableEntry<>(
+                                currencies[from] + "_" + currencies[to], rate(from, to));
+                        do {
+                            if (++to == currencies.length) {
+                                to = 0;
+                                from++;
+                            }
+                        } while (from < currencies.length && to == from);
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package banca;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Pushes CurrencyExchangeAgent's rates to its subscribers. A consumer sends SUBSCRIBE on
+ * the SUBSCRIBE_RATES conversation and CANCEL to leave; on subscribing it gets every
+ * currency, and after each tick one EXCHANGE_RATES_UPDATE message to all subscribers
+ * carries only the currencies whose value in the base currency moved by more than
+ * EPSILON (relative) since it was last pushed. Cross rates follow from those values, see
+ * {@link RateSnapshot}, so a currency that did not move leaves all its pairs unchanged.
+ *
+ * Every push is a MessageCodec RATES message with the snapshot version and the version
+ * of the previous push, which {@link RateFeed} uses to drop late and duplicate updates
+ * and to resubscribe when it missed one.
+ */
+public class RateStream {
+
+    public static final String CONVERSATION_ID = "SUBSCRIBE_RATES";
+    public static final String UPDATE_CONVERSATION_ID = "EXCHANGE_RATES_UPDATE";
+    public static final double EPSILON = Double.parseDouble(System.getProperty("banca.rates.epsilon", "0.0001"));
+
+    private final Agent agent;
+    private final AgentMetrics metrics;
+    private final Map<String, AID> subscribers = new LinkedHashMap<>();
+    private final MessageCodec.Writer writer = new MessageCodec.Writer();
+    private final double[] sent;    // values as last pushed, per currency ordinal
+    private long sentVersion;
+    private RateSnapshot current;
+
+    public RateStream(Agent agent, RateSnapshot initial) {
+        this.agent = agent;
+        this.metrics = AgentMetrics.of(agent);
+        this.current = initial;
+        this.sent = new double[initial.currencies()];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = initial.value(i);
+        }
+        this.sentVersion = initial.version();
+        metrics.gauge("rates.subscribers", subscribers::size);
+    }
+
+    /** Handles SUBSCRIBE and CANCEL requests of the SUBSCRIBE_RATES conversation. */
+    public void handle(ACLMessage msg) {
+        AID sender = msg.getSender();
+        ACLMessage reply = msg.createReply();
+        if (msg.getPerformative() == ACLMessage.CANCEL) {
+            subscribers.remove(sender.getName());
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setContent("Unsubscribed from rates");
+            agent.send(reply);
+        } else if (msg.getPerformative() == ACLMessage.SUBSCRIBE) {
+            subscribers.put(sender.getName(), sender);
+            reply.setPerformative(ACLMessage.AGREE);
+            reply.setContent("Subscribed to rates at version " + current.version());
+            agent.send(reply);
+            // a repeated SUBSCRIBE is how a consumer resynchronises, so always send everything
+            ACLMessage full = update(current.version(), -1, current.currencies());
+            for (int i = 0; i < current.currencies(); i++) {
+                writer.writeKey(current.currency(i)).writeLong(Double.doubleToLongBits(current.value(i)));
+            }
+            full.addReceiver(sender);
+            full.setByteSequenceContent(writer.toBytes());
+            agent.send(full);
+        } else {
+            reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+            reply.setContent("Expected SUBSCRIBE or CANCEL");
+            agent.send(reply);
+        }
+    }
+
+    /** Pushes the currencies that moved since the last push; called after every tick. */
+    public void publish(RateSnapshot snapshot) {
+        current = snapshot;
+        int changed = 0;
+        for (int i = 0; i < sent.length; i++) {
+            if (moved(i)) {
+                changed++;
+            }
+        }
+        if (changed == 0) {
+            return;
+        }
+        ACLMessage msg = update(snapshot.version(), sentVersion, changed);
+        for (int i = 0; i < sent.length; i++) {
+            if (moved(i)) {
+                sent[i] = snapshot.value(i);
+                writer.writeKey(snapshot.currency(i)).writeLong(Double.doubleToLongBits(sent[i]));
+            }
+        }
+        sentVersion = snapshot.version();
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        for (AID subscriber : subscribers.values()) {
+            msg.addReceiver(subscriber);
+        }
+        msg.setByteSequenceContent(writer.toBytes());
+        agent.send(msg);
+        metrics.increment("rates.pushes");
+        metrics.record("rates.changed", changed);
+    }
+
+    private boolean moved(int ordinal) {
+        return Math.abs(current.value(ordinal) - sent[ordinal]) > EPSILON * sent[ordinal];
+    }
+
+    private ACLMessage update(long version, long previous, int count) {
+        writer.begin(MessageCodec.RATES).writeLong(version).writeLong(previous).writeLong(count);
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId(UPDATE_CONVERSATION_ID);
+        return msg;
+    }
+}
@@ -0,0 +1,327 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Plays the client side of a {@link TrafficRecorder} log against freshly started agents:
+ * every recorded message that reached one of the replayed agents from outside them, e.g.
+ * from a GUI or a load generator, is sent again with its conversation ID, performative
+ * and content, in recorded order. Messages the replayed agents sent each other are not,
+ * since they send them again themselves.
+ *
+ * In realtime mode messages keep their recorded spacing; in fast mode they go out as
+ * fast as replies come back, with at most window requests in flight. Requests are
+ * correlated with their replies by reply-with IDs and timed per conversation. When all
+ * are answered, or timed out, and the agents had settleMs to replicate, the balance of
+ * every account the recording ended with is read back and compared.
+ *
+ * Arguments: the {@link TrafficRecorder.Log}, the Set of replayed agent names, a
+ * CompletableFuture for the report, and "key=value" settings mode (fast|realtime),
+ * window, timeoutMs, settleMs.
+ */
+public class ReplayAgent extends Agent {
+
+    private static final String REPLAY_PREFIX = "replay-";
+    private static final String CHECK_PREFIX = "check-";
+
+    private TrafficRecorder.Log log;
+    private Set<String> replayed;
+    private CompletableFuture<String> completion;
+    private final Map<String, String> settings = new HashMap<>();
+    private boolean realtime;
+    private int window;
+    private long timeoutNanos;
+    private long settleNanos;
+
+    private final List<TrafficRecorder.Message> stimuli = new ArrayList<>();
+    private int branchCount;
+    private DirectoryCache directory;
+    private MessageDispatcher dispatcher;
+    private volatile List<AID> branches = new ArrayList<>();
+
+    protected void setup() {
+        for (Object arg : getArguments()) {
+            if (arg instanceof TrafficRecorder.Log) {
+                log = (TrafficRecorder.Log) arg;
+            } else if (arg instanceof Set) {
+                @SuppressWarnings("unchecked")
+                Set<String> names = (Set<String>) arg;
+                replayed = names;
+            } else if (arg instanceof CompletableFuture) {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<String> future = (CompletableFuture<String>) arg;
+                completion = future;
+            } else if (arg != null && arg.toString().contains("=")) {
+                String[] kv = arg.toString().split("=", 2);
+                settings.put(kv[0].trim(), kv[1].trim());
+            }
+        }
+        realtime = "realtime".equalsIgnoreCase(setting("mode", "fast"));
+        window = Integer.parseInt(setting("window", "256"));
+        timeoutNanos = Long.parseLong(setting("timeoutMs", "5000")) * 1_000_000L;
+        settleNanos = Long.parseLong(setting("settleMs", "2000")) * 1_000_000L;
+
+        for (TrafficRecorder.Message m : log.messages) {
+            if (replayed.contains(m.receiver) && !replayed.contains(m.sender) && !m.sender.isEmpty()
+                    && !m.sender.equals("ams") && !m.sender.equals("df")) {
+                stimuli.add(m);
+            }
+        }
+        for (Map.Entry<String, String> agent : log.agents.entrySet()) {
+            if (replayed.contains(agent.getKey()) && agent.getValue().equals(BankBranchAgent.class.getName())) {
+                branchCount++;
+            }
+        }
+
+        directory = new DirectoryCache(this, "bank-branch");
+        directory.addListener((type, providers) -> branches = providers);
+        directory.start();
+        dispatcher = MessageDispatcher.of(this);
+        System.out.println(getLocalName() + " replaying " + stimuli.size() + " of " + log.messages.size()
+                + " recorded messages " + (realtime ? "in real time" : "as fast as possible") + " with seed "
+                + log.seed);
+        addBehaviour(new ReplayBehaviour());
+    }
+
+    protected void takeDown() {
+        dispatcher.close();
+    }
+
+    private String setting(String key, String defaultValue) {
+        String value = settings.get(key);
+        return value != null ? value : System.getProperty("banca.replay." + key, defaultValue);
+    }
+
+    private class ReplayBehaviour extends CyclicBehaviour {
+        private static final int DISCOVER = 0, SEND = 1, SETTLE = 2, CHECK = 3;
+        private final MessageDispatcher.Inbox replies = dispatcher.inbox(this);
+        private int phase = DISCOVER;
+        private long phaseStart = System.nanoTime();
+
+        // requests awaiting a reply, by index; started is 0 when none is awaited
+        private final long[] started = new long[stimuli.size()];
+        private int next;
+        private int oldest;
+        private int inFlight;
+        private long firstRecorded;
+        private long sendStart;
+        private long sendEnd;
+        private final Map<String, LatencyHistogram> latency = new TreeMap<>();
+        private long rejected;
+        private long timeouts;
+
+        // the balance check
+        private final List<String> accounts = new ArrayList<>();
+        private final Map<String, Long> expected = new LinkedHashMap<>();
+        private final Map<String, Long> actual = new HashMap<>();
+        private int inconsistent;
+        private int checked;
+
+        ReplayBehaviour() {
+            dispatcher.otherwise(replies);
+        }
+
+        public void action() {
+            long now = System.nanoTime();
+            receiveReplies(now);
+
+            switch (phase) {
+            case DISCOVER:
+                // give the branches a moment to find each other as well
+                if (branches.size() < branchCount || now - phaseStart < 1_000_000_000L) {
+                    block(100);
+                    return;
+                }
+                phase = SEND;
+                sendStart = now;
+                firstRecorded = stimuli.isEmpty() ? 0 : stimuli.get(0).nanos;
+                break;   // the cyclic behaviour runs again right away, in the new phase
+            case SEND:
+                expire(now);
+                while (next < stimuli.size()) {
+                    TrafficRecorder.Message m = stimuli.get(next);
+                    if (realtime ? m.nanos - firstRecorded > now - sendStart : inFlight >= window) {
+                        break;
+                    }
+                    send(m, now);
+                }
+                if (next < stimuli.size() || inFlight > 0) {
+                    long wait = realtime && next < stimuli.size()
+                            ? (stimuli.get(next).nanos - firstRecorded - (now - sendStart)) / 1_000_000 : 50;
+                    block(Math.max(1, Math.min(50, wait)));
+                    return;
+                }
+                sendEnd = now;
+                phase = SETTLE;
+                phaseStart = now;
+                break;
+            case SETTLE:
+                if (now - phaseStart < settleNanos) {
+                    block(Math.max(1, (settleNanos - (now - phaseStart)) / 1_000_000));
+                    return;
+                }
+                startCheck();
+                phase = CHECK;
+                phaseStart = now;
+                break;
+            case CHECK:
+                if (actual.size() < accounts.size() && now - phaseStart < timeoutNanos) {
+                    block(50);
+                    return;
+                }
+                String report = report();
+                System.out.println(report);
+                if (completion != null) {
+                    completion.complete(report);
+                }
+                myAgent.doDelete();
+                phase = -1;
+                return;
+
+            default:
+                block();
+            }
+        }
+
+        private void send(TrafficRecorder.Message m, long now) {
+            ACLMessage msg = m.toACLMessage();
+            msg.setReplyWith(REPLAY_PREFIX + next);
+            if (expectsReply(m.performative)) {
+                started[next] = now;
+                inFlight++;
+            }
+            next++;
+            myAgent.send(msg);
+        }
+
+        private void expire(long now) {
+            while (oldest < next) {
+                if (started[oldest] != 0) {
+                    if (now - started[oldest] < timeoutNanos) {
+                        return;
+                    }
+                    started[oldest] = 0;
+                    inFlight--;
+                    timeouts++;
+                }
+                oldest++;
+            }
+        }
+
+        private void receiveReplies(long now) {
+            for (ACLMessage reply = replies.poll(); reply != null; reply = replies.poll()) {
+                String id = reply.getInReplyTo();
+                if (id == null) {
+                    continue;
+                }
+                if (id.startsWith(REPLAY_PREFIX)) {
+                    int index = Integer.parseInt(id.substring(REPLAY_PREFIX.length()));
+                    if (index >= started.length || started[index] == 0) {
+                        continue;
+                    }
+                    String cid = stimuli.get(index).conversationId;
+                    latency.computeIfAbsent(cid, c -> new LatencyHistogram()).record(now - started[index]);
+                    if (reply.getPerformative() == ACLMessage.FAILURE) {
+                        rejected++;
+                    }
+                    started[index] = 0;
+                    inFlight--;
+                } else if (id.startsWith(CHECK_PREFIX)) {
+                    String account = accounts.get(Integer.parseInt(id.substring(CHECK_PREFIX.length())));
+                    String content = reply.getContent();
+                    int sep = content == null ? -1 : content.lastIndexOf(": ");
+                    actual.put(account, reply.getPerformative() == ACLMessage.INFORM && sep >= 0
+                            ? Money.parse(content, sep + 2, content.length()) : null);
+                }
+            }
+        }
+
+        /** Asks a branch for every account's balance; the owner answers in sharding mode. */
+        private void startCheck() {
+            for (Map<String, Long> balances : log.balances.values()) {
+                for (Map.Entry<String, Long> entry : balances.entrySet()) {
+                    Long previous = expected.putIfAbsent(entry.getKey(), entry.getValue());
+                    if (previous != null && !previous.equals(entry.getValue())) {
+                        inconsistent++;
+                    }
+                }
+            }
+            accounts.addAll(expected.keySet());
+            List<AID> targets = branches;
+            MessageCodec.Writer writer = new MessageCodec.Writer();
+            for (int i = 0; i < accounts.size() && !targets.isEmpty(); i++) {
+                ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+                msg.addReceiver(targets.get(i % targets.size()));
+                msg.setConversationId("BALANCE");
+                msg.setByteSequenceContent(writer.begin(MessageCodec.BALANCE).writeKey(accounts.get(i)).toBytes());
+                msg.setReplyWith(CHECK_PREFIX + i);
+                myAgent.send(msg);
+            }
+            checked = accounts.size();
+        }
+
+        private String report() {
+            double seconds = Math.max(sendEnd - sendStart, 1) / 1e9;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Replay: %d messages %s in %.2f s, %.0f msg/s, %d rejected, %d timed out%n",
+                    next, realtime ? "in real time" : "as fast as possible", seconds, next / seconds, rejected,
+                    timeouts));
+            sb.append(String.format("  %-28s %8s %9s %9s %9s%n", "conversation", "replies", "p50 ms", "p99 ms",
+                    "max ms"));
+            for (Map.Entry<String, LatencyHistogram> entry : latency.entrySet()) {
+                LatencyHistogram h = entry.getValue();
+                sb.append(String.format("  %-28s %8d %9.3f %9.3f %9.3f%n", entry.getKey(), h.count(),
+                        h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6));
+            }
+
+            if (log.balances.isEmpty()) {
+                sb.append("  the recording has no final balances, divergence not checked");
+                return sb.toString();
+            }
+            int diverged = 0;
+            int missing = 0;
+            StringBuilder details = new StringBuilder();
+            for (String account : accounts) {
+                Long want = expected.get(account);
+                Long got = actual.get(account);
+                if (got != null && got.equals(want)) {
+                    continue;
+                }
+                if (got == null) {
+                    missing++;
+                } else {
+                    diverged++;
+                }
+                if (diverged + missing <= 20) {
+                    details.append("    ").append(account).append(": recorded ").append(Money.format(want))
+                            .append(", replayed ").append(got == null ? "missing" : Money.format(got)).append('\n');
+                }
+            }
+            sb.append(String.format("  balances: %d accounts checked, %d match, %d diverged, %d missing",
+                    checked, checked - diverged - missing, diverged, missing));
+            if (inconsistent > 0) {
+                sb.append(", ").append(inconsistent).append(" differed between branches in the recording");
+            }
+            if (details.length() > 0) {
+                sb.append('\n').append(details.substring(0, details.length() - 1));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static boolean expectsReply(int performative) {
+        return performative == ACLMessage.REQUEST || performative == ACLMessage.SUBSCRIBE;
+    }
+}
@@ -0,0 +1,153 @@
+package banca;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jade.core.AID;
+
+/**
+ * Moves accounts when the set of branches in a {@link ShardRing} changes.
+ *
+ * For every local account whose replica set differs between the old and the new ring,
+ * the first old replica that is still alive sends it to the branches that newly hold it.
+ * Branches that no longer hold an account drop it once it has been handed over.
+ * Accounts whose replicas did not change are not touched, so only the key ranges next
+ * to the joining or leaving branch move.
+ */
+public class ShardRebalancer {
+
+    private final String self;
+    private final Ledger ledger;
+    private final LedgerJournal journal;
+    private final AccountReplicator replicator;
+    private final StringBuilder key = new StringBuilder(32);
+
+    private int[] oldReplicas = new int[16];
+    private int[] newReplicas = new int[16];
+    private int[][] outgoing = new int[0][];
+    private int[] outgoingCounts = new int[0];
+    private int[] dropped = new int[64];
+
+    public ShardRebalancer(String self, Ledger ledger, LedgerJournal journal, AccountReplicator replicator) {
+        this.self = self;
+        this.ledger = ledger;
+        this.journal = journal;
+        this.replicator = replicator;
+    }
+
+    /** Hands over and drops the accounts affected by the change; returns a one-line summary. */
+    public String rebalance(ShardRing previous, ShardRing next) {
+        long start = System.nanoTime();
+        // pending replication refers to slots, send it before slots start moving
+        replicator.flush();
+
+        int members = next.size();
+        if (outgoing.length < members) {
+            outgoing = Arrays.copyOf(outgoing, members);
+            outgoingCounts = new int[members];
+        }
+        ensureReplicaBuffers(Math.max(previous.replicationFactor(), next.replicationFactor()));
+
+        int dropCount = 0;
+        int affected = 0;
+        for (int slot = 0; slot < ledger.size(); slot++) {
+            key.setLength(0);
+            ledger.appendAccountId(slot, key);
+            int oldCount = previous.replicas(key, 0, key.length(), oldReplicas);
+            int newCount = next.replicas(key, 0, key.length(), newReplicas);
+            if (sameMembers(previous, oldCount, next, newCount)) {
+                continue;
+            }
+            affected++;
+
+            if (self.equals(sender(previous, oldCount, next))) {
+                for (int r = 0; r < newCount; r++) {
+                    String target = next.member(newReplicas[r]);
+                    if (!target.equals(self) && !contains(previous, oldReplicas, oldCount, target)) {
+                        add(newReplicas[r], slot);
+                    }
+                }
+            }
+            if (!contains(next, newReplicas, newCount, self)) {
+                if (dropCount == dropped.length) {
+                    dropped = Arrays.copyOf(dropped, dropCount * 2);
+                }
+                dropped[dropCount++] = slot;
+            }
+        }
+
+        int moved = 0;
+        for (int member = 0; member < members; member++) {
+            int count = outgoingCounts[member];
+            if (count == 0) {
+                continue;
+            }
+            List<AID> target = Collections.singletonList(new AID(next.member(member), AID.ISLOCALNAME));
+            for (int from = 0; from < count; from += AccountReplicator.DEFAULT_BATCH_SIZE) {
+                int chunk = Math.min(AccountReplicator.DEFAULT_BATCH_SIZE, count - from);
+                replicator.send(target, Arrays.copyOfRange(outgoing[member], from, from + chunk), chunk);
+            }
+            moved += count;
+            outgoingCounts[member] = 0;
+        }
+
+        // slots were collected in ascending order, removing from the end keeps the rest valid
+        for (int i = dropCount - 1; i >= 0; i--) {
+            journal.appendRemoval(dropped[i]);
+            ledger.remove(dropped[i]);
+        }
+        journal.commit();
+
+        return String.format("rebalanced %d -> %d branches: %d of %d accounts affected, %d sent, %d dropped in %.1f ms",
+                previous.size(), next.size(), affected, ledger.size() + dropCount, moved, dropCount,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    /** First replica in the old ring that is still a member, so exactly one branch sends. */
+    private String sender(ShardRing previous, int oldCount, ShardRing next) {
+        for (int r = 0; r < oldCount; r++) {
+            String member = previous.member(oldReplicas[r]);
+            if (next.indexOf(member) >= 0) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    private boolean sameMembers(ShardRing previous, int oldCount, ShardRing next, int newCount) {
+        if (oldCount != newCount) {
+            return false;
+        }
+        for (int r = 0; r < newCount; r++) {
+            if (!contains(previous, oldReplicas, oldCount, next.member(newReplicas[r]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(ShardRing ring, int[] replicas, int count, String member) {
+        for (int r = 0; r < count; r++) {
+            if (ring.member(replicas[r]).equals(member)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(int member, int slot) {
+        if (outgoing[member] == null || outgoingCounts[member] == outgoing[member].length) {
+            outgoing[member] = outgoing[member] == null ? new int[64]
+                    : Arrays.copyOf(outgoing[member], outgoingCounts[member] * 2);
+        }
+        outgoing[member][outgoingCounts[member]++] = slot;
+    }
+
+    private void ensureReplicaBuffers(int size) {
+        if (oldReplicas.length < size) {
+            oldReplicas = new int[size];
+            newReplicas = new int[size];
+        }
+    }
+}
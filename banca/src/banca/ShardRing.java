@@ -0,0 +1,122 @@
+package banca;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Consistent-hash ring over branch local names. Each branch owns VIRTUAL_NODES points
+ * on the ring; an account belongs to the first REPLICATION_FACTOR distinct branches
+ * found clockwise from the hash of its ID, the first of them being the primary that
+ * accepts writes. The ring depends only on the member names, so branches and clients
+ * that see the same members route every account the same way, and adding or removing
+ * a branch only changes the owners of the ranges next to its points.
+ */
+public class ShardRing {
+
+    public static final boolean ENABLED = Boolean.getBoolean("banca.sharding");
+    public static final int REPLICATION_FACTOR = Integer.getInteger("banca.replicationFactor", 2);
+    private static final int VIRTUAL_NODES = 128;
+
+    private final String[] members;
+    private final long[] points;
+    private final int[] pointOwners;
+    private final int replicationFactor;
+
+    public ShardRing(Collection<String> memberNames) {
+        this(memberNames, REPLICATION_FACTOR);
+    }
+
+    public ShardRing(Collection<String> memberNames, int replicationFactor) {
+        members = new TreeSet<>(memberNames).toArray(new String[0]);
+        this.replicationFactor = Math.max(1, Math.min(replicationFactor, members.length));
+
+        long[] raw = new long[members.length * VIRTUAL_NODES];
+        for (int m = 0; m < members.length; m++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                String point = members[m] + "#" + v;
+                // owner index in the low bits keeps points of equal hash distinct and ordered
+                raw[m * VIRTUAL_NODES + v] = (hash(point, 0, point.length()) & ~0xFFFFL) | m;
+            }
+        }
+        Arrays.sort(raw);
+        points = raw;
+        pointOwners = new int[raw.length];
+        for (int i = 0; i < raw.length; i++) {
+            pointOwners[i] = (int) (raw[i] & 0xFFFF);
+        }
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public String member(int index) {
+        return members[index];
+    }
+
+    public int indexOf(String member) {
+        return Arrays.binarySearch(members, member);
+    }
+
+    public int replicationFactor() {
+        return replicationFactor;
+    }
+
+    public int primary(CharSequence accountId) {
+        return primary(accountId, 0, accountId.length());
+    }
+
+    public int primary(CharSequence accountId, int from, int to) {
+        if (members.length == 0) {
+            return -1;
+        }
+        return pointOwners[firstPoint(hash(accountId, from, to))];
+    }
+
+    /** Fills out with the member indexes holding the account, primary first; returns how many. */
+    public int replicas(CharSequence accountId, int from, int to, int[] out) {
+        if (members.length == 0) {
+            return 0;
+        }
+        int count = 0;
+        int point = firstPoint(hash(accountId, from, to));
+        for (int i = 0; i < points.length && count < replicationFactor; i++) {
+            int owner = pointOwners[(point + i) % points.length];
+            boolean seen = false;
+            for (int c = 0; c < count; c++) {
+                seen |= out[c] == owner;
+            }
+            if (!seen) {
+                out[count++] = owner;
+            }
+        }
+        return count;
+    }
+
+    public String primaryName(CharSequence accountId) {
+        int primary = primary(accountId);
+        return primary < 0 ? null : members[primary];
+    }
+
+    private int firstPoint(long hash) {
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i == points.length ? 0 : i;
+    }
+
+    /** FNV-1a over the chars followed by a 64-bit finalizer; identical on every agent. */
+    static long hash(CharSequence s, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
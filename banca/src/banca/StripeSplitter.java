@@ -0,0 +1,146 @@
+package banca;
+
+import java.util.Arrays;
+
+/**
+ * Splits the messages that touch many accounts (SYNC_DELTA, BATCH and TRANSFER_2PC) into
+ * one part per {@link BranchStripe}, so a message is decoded once on the agent thread
+ * instead of once by every stripe, and each stripe reads only its own accounts. Entries
+ * are copied as they are encoded; only the account that routes an entry is decoded. A
+ * part is a binary message of the same type with the stripe's entries, or null if the
+ * stripe has none; text BATCH requests are converted to binary parts on the way.
+ *
+ * The returned array is reused by the next call, so callers take the parts out first.
+ * Used on the agent thread only.
+ */
+final class StripeSplitter {
+
+    private final int stripes;
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private final MessageCodec.Writer[] bodies;
+    private final MessageCodec.Writer part = new MessageCodec.Writer();
+    private final int[] counts;
+    private final byte[][] parts;
+    private final StringBuilder key = new StringBuilder(32);
+    private final StringBuilder source = new StringBuilder(32);
+
+    StripeSplitter(int stripes) {
+        this.stripes = stripes;
+        this.bodies = new MessageCodec.Writer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            bodies[i] = new MessageCodec.Writer();
+        }
+        this.counts = new int[stripes];
+        this.parts = new byte[stripes][];
+    }
+
+    /** Every part repeats the origin names, then holds the stripe's entries. */
+    byte[][] syncDelta(byte[] content) {
+        begin();
+        reader.reset(content);
+        int origins = (int) reader.readLong();
+        for (int o = 0; o < origins; o++) {
+            reader.readKey(key);
+        }
+        int originsEnd = reader.position();
+        long count = reader.readLong();
+        for (long i = 0; i < count; i++) {
+            int start = reader.position();
+            reader.readKey(key);
+            reader.readLong();
+            long columns = reader.readLong();
+            for (long c = 0; c < columns * 3; c++) {
+                reader.readLong();
+            }
+            body(key).writeRaw(content, start, reader.position());
+        }
+        return finish(MessageCodec.SYNC_DELTA, content, originsEnd, true);
+    }
+
+    /**
+     * Parts are "index, operation type, account, amount unless OPEN_ACCOUNT" until the
+     * end, index being the operation's position in the request. Text lines that do not
+     * parse are reported to the batch here.
+     */
+    byte[][] batch(byte[] binary, String[] lines, BranchEngine.Batch batch) {
+        begin();
+        if (binary != null) {
+            reader.reset(binary);
+            long count = reader.readLong();
+            for (int i = 0; i < count; i++) {
+                int start = reader.position();
+                int type = reader.readByte();
+                reader.readKey(key);
+                if (type != MessageCodec.OPEN_ACCOUNT) {
+                    reader.readLong();
+                }
+                body(key).writeLong(i).writeRaw(binary, start, reader.position());
+            }
+            return finish(MessageCodec.BATCH, null, 0, false);
+        }
+        // one "ACTION;accountId[;amount]" line per operation
+        for (int i = 0; i < lines.length; i++) {
+            String[] fields = lines[i].split(";");
+            try {
+                int type = MessageCodec.typeOf(fields[0]);
+                long amount = type == MessageCodec.OPEN_ACCOUNT ? 0 : Money.parse(fields[2]);
+                key.setLength(0);
+                key.append(fields[1]);
+                MessageCodec.Writer body = body(key).writeLong(i).writeByte(type).writeKey(key);
+                if (type != MessageCodec.OPEN_ACCOUNT) {
+                    body.writeLong(amount);
+                }
+            } catch (RuntimeException e) {
+                batch.result(i, "Malformed operation: " + lines[i], false);
+            }
+        }
+        return finish(MessageCodec.BATCH, null, 0, false);
+    }
+
+    /** Steps go to the stripe of the account they are routed by, see TransferProtocol. */
+    byte[][] transferSteps(byte[] content) {
+        begin();
+        reader.reset(content);
+        while (reader.hasRemaining()) {
+            int start = reader.position();
+            int step = reader.readByte();
+            reader.readKey(key);
+            reader.readKey(source);
+            reader.readKey(key);
+            reader.readLong();
+            body(TransferProtocol.routedBy(step, source, key)).writeRaw(content, start, reader.position());
+        }
+        return finish(MessageCodec.TRANSFER_2PC, null, 0, false);
+    }
+
+    private void begin() {
+        Arrays.fill(counts, 0);
+    }
+
+    private MessageCodec.Writer body(CharSequence accountId) {
+        int stripe = BranchEngine.stripeOf(accountId, stripes);
+        if (counts[stripe]++ == 0) {
+            bodies[stripe].begin((byte) 0);
+        }
+        return bodies[stripe];
+    }
+
+    /** Puts each part together: the header, content[3, prefixEnd) if any, the count if counted, the entries. */
+    private byte[][] finish(byte type, byte[] content, int prefixEnd, boolean counted) {
+        for (int i = 0; i < stripes; i++) {
+            if (counts[i] == 0) {
+                parts[i] = null;
+                continue;
+            }
+            part.begin(type);
+            if (content != null) {
+                part.writeRaw(content, 3, prefixEnd);
+            }
+            if (counted) {
+                part.writeLong(counts[i]);
+            }
+            parts[i] = part.writePayload(bodies[i]).toBytes();
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,204 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Window flushes of the {@link AccountReplicator}s of all stripes of a branch, sent as
+ * one SYNC_DELTA per receiver instead of one per stripe. Every window the agent thread
+ * starts a round: each stripe encodes its dirty accounts into its part of the round,
+ * grouped by receiver, and the stripe finishing last puts the parts together and sends.
+ * A stripe's part leaves only after its group commit, like its replies.
+ *
+ * The ledgers of the stripes number their origin columns independently, so entries are
+ * written with origin IDs from a table shared by the stripes, and the message lists
+ * those. A round starts only when the previous one has been sent; until then changes
+ * keep collecting in the stripes. A stripe whose dirty accounts fill a batch before the
+ * window is over starts a round right away.
+ */
+public class StripedReplication {
+
+    private final Agent agent;
+    private final DirectoryCache directory;
+    private final BranchStripe[] stripes;
+    private final AgentMetrics metrics;
+    private final long windowMs;
+    private final List<String> origins = new ArrayList<>();   // guarded by this
+    private final Map<String, Integer> originIds = new HashMap<>();
+    private final AtomicBoolean idle = new AtomicBoolean(true);
+    private final MessageCodec.Writer writer = new MessageCodec.Writer();
+
+    public StripedReplication(Agent agent, DirectoryCache directory, BranchStripe[] stripes, long windowMs) {
+        this.agent = agent;
+        this.directory = directory;
+        this.stripes = stripes;
+        this.metrics = AgentMetrics.of(agent);
+        this.windowMs = windowMs;
+    }
+
+    public void start() {
+        agent.addBehaviour(new TickerBehaviour(agent, windowMs) {
+            protected void onTick() {
+                flush();
+            }
+        });
+    }
+
+    /** Starts a round unless the last one is still being collected. */
+    public void flush() {
+        if (!idle.compareAndSet(true, false)) {
+            return;
+        }
+        Round round = new Round(directory.get("bank-branch"), directory.get("notification"));
+        for (int i = 0; i < stripes.length; i++) {
+            BranchStripe stripe = stripes[i];
+            Part part = round.parts[i];
+            try {
+                stripe.execute(() -> {
+                    try {
+                        if (!stripe.journal.isFailed()) {   // what the stripe did not journal must not spread
+                            stripe.replicator.collect(part);
+                        }
+                    } finally {
+                        // the round ends even if this part could not be collected
+                        stripe.afterCommit(round::partDone);
+                    }
+                });
+            } catch (RuntimeException e) {
+                System.err.println("Replication round skips stripe " + i + ": " + e);
+                round.partDone();
+            }
+        }
+    }
+
+    /** The shared ID of an origin column name, assigned on first use. */
+    synchronized int originId(String name) {
+        Integer id = originIds.get(name);
+        if (id == null) {
+            id = origins.size();
+            origins.add(name);
+            originIds.put(name, id);
+        }
+        return id;
+    }
+
+    private synchronized String[] originNames() {
+        return origins.toArray(new String[0]);
+    }
+
+    /** Entries of one stripe for one receiver, encoded after a header that is not sent. */
+    static final class Entries {
+        final MessageCodec.Writer writer = new MessageCodec.Writer().begin((byte) 0);
+        int count;
+    }
+
+    /** One stripe's share of a round, filled on the stripe's worker. */
+    static final class Part {
+        /** All branches and notifiers, when every branch holds every account. */
+        final Entries everyone = new Entries();
+        /** The notifiers alone, in sharding mode. */
+        final Entries notifiers = new Entries();
+        /** Per branch, in sharding mode: the accounts it replicates. */
+        final Map<String, Entries> members = new HashMap<>();
+
+        Entries member(String name) {
+            Entries entries = members.get(name);
+            if (entries == null) {
+                entries = new Entries();
+                members.put(name, entries);
+            }
+            return entries;
+        }
+    }
+
+    private final class Round {
+        final List<AID> branches;
+        final List<AID> notifiers;
+        final Part[] parts = new Part[stripes.length];
+        final AtomicInteger pending = new AtomicInteger(stripes.length);
+
+        Round(List<AID> branches, List<AID> notifiers) {
+            this.branches = branches;
+            this.notifiers = notifiers;
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = new Part();
+            }
+        }
+
+        void partDone() {
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+            try {
+                String[] names = originNames();
+                List<AID> everyone = new ArrayList<>(branches);
+                everyone.addAll(notifiers);
+                List<Entries> groups = new ArrayList<>(parts.length);
+                for (Part part : parts) {
+                    groups.add(part.everyone);
+                }
+                send(everyone, names, groups);
+                groups.clear();
+                Set<String> members = new LinkedHashSet<>();
+                for (Part part : parts) {
+                    groups.add(part.notifiers);
+                    members.addAll(part.members.keySet());
+                }
+                send(notifiers, names, groups);
+                for (String member : members) {
+                    groups.clear();
+                    for (Part part : parts) {
+                        Entries entries = part.members.get(member);
+                        if (entries != null) {
+                            groups.add(entries);
+                        }
+                    }
+                    send(Collections.singletonList(new AID(member, AID.ISLOCALNAME)), names, groups);
+                }
+            } finally {
+                idle.set(true);
+            }
+        }
+
+        private void send(List<AID> receivers, String[] names, List<Entries> groups) {
+            int count = 0;
+            for (Entries entries : groups) {
+                count += entries.count;
+            }
+            if (receivers.isEmpty() || count == 0) {
+                return;
+            }
+            writer.begin(MessageCodec.SYNC_DELTA).writeLong(names.length);
+            for (String name : names) {
+                writer.writeKey(name);
+            }
+            writer.writeLong(count);
+            for (Entries entries : groups) {
+                if (entries.count > 0) {
+                    writer.writePayload(entries.writer);
+                }
+            }
+            ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+            msg.setConversationId("SYNC_DELTA");
+            msg.setByteSequenceContent(writer.toBytes());
+            for (AID aid : receivers) {
+                msg.addReceiver(aid);
+            }
+            agent.send(msg);
+            metrics.record("replication.fanout", receivers.size());
+            metrics.record("replication.batch", count);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package banca;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Records the ACL traffic of every agent in this JVM to the file named by banca.record,
+ * for {@link TrafficReplay}. Each agent's {@link MessageDispatcher} hands it every message
+ * the agent receives, so a message to several agents is recorded once per receiver.
+ *
+ * The log starts with MAGIC and the seed of the run (see {@link #seed()}), followed by
+ * records of an int length and a MessageCodec-encoded payload, whose type is one of
+ *
+ *   AGENT     name, class
+ *   MESSAGE   receiver, wall clock millis, nanos since the log was opened, performative,
+ *             conversation ID, sender, receiver count and names, reply-with, in-reply-to,
+ *             then 0 and no content, 1 and text, or 2 and bytes
+ *   BALANCES  branch, count, then count x (account, balance)
+ *
+ * where missing strings are written empty. Branches add their balances when they stop,
+ * or when the JVM exits, so a replay can check it ended in the same state.
+ */
+public class TrafficRecorder {
+
+    public static final String FILE = System.getProperty("banca.record");
+
+    static final int MAGIC = 0x42545231;   // "BTR1"
+    static final byte AGENT = 1;
+    static final byte MESSAGE = 2;
+    static final byte BALANCES = 3;
+
+    private static Long seed;
+    private static TrafficRecorder instance;
+
+    private final DataOutputStream out;
+    private final MessageCodec.Writer writer = new MessageCodec.Writer();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Supplier<Map<String, Long>>> balances = new LinkedHashMap<>();
+    private long records;
+    private boolean failed;
+
+    private TrafficRecorder(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeLong(seed());
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "traffic-recorder"));
+        System.out.println("Recording ACL traffic to " + file + " with seed " + seed());
+    }
+
+    /**
+     * The seed for every random choice the agents make, from banca.seed or else chosen
+     * once per JVM; it is recorded so a replay makes the same choices.
+     */
+    public static synchronized long seed() {
+        if (seed == null) {
+            seed = Long.getLong("banca.seed", new Random().nextLong());
+        }
+        return seed;
+    }
+
+    /** The recorder of this JVM, or null when banca.record is not set. */
+    public static synchronized TrafficRecorder get() {
+        if (instance == null && FILE != null) {
+            try {
+                instance = new TrafficRecorder(new File(FILE));
+            } catch (IOException e) {
+                System.err.println("Cannot record ACL traffic to " + FILE + ": " + e.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    public synchronized void agent(Agent agent) {
+        writer.begin(AGENT).writeKey(agent.getLocalName()).writeKey(agent.getClass().getName());
+        write();
+    }
+
+    public synchronized void message(Agent receiver, ACLMessage msg) {
+        writer.begin(MESSAGE).writeKey(receiver.getLocalName()).writeLong(System.currentTimeMillis())
+                .writeLong(System.nanoTime() - startNanos).writeLong(msg.getPerformative())
+                .writeKey(orEmpty(msg.getConversationId()))
+                .writeKey(msg.getSender() == null ? "" : msg.getSender().getLocalName());
+        List<String> receivers = new ArrayList<>(1);
+        Iterator<?> it = msg.getAllReceiver();
+        while (it != null && it.hasNext()) {
+            receivers.add(((AID) it.next()).getLocalName());
+        }
+        writer.writeLong(receivers.size());
+        for (String name : receivers) {
+            writer.writeKey(name);
+        }
+        writer.writeKey(orEmpty(msg.getReplyWith())).writeKey(orEmpty(msg.getInReplyTo()));
+        if (msg.hasByteSequenceContent()) {
+            writer.writeByte(2).writeBytes(msg.getByteSequenceContent());
+        } else if (msg.getContent() != null) {
+            writer.writeByte(1).writeKey(msg.getContent());
+        } else {
+            writer.writeByte(0);
+        }
+        write();
+    }
+
+    /** Registers how to read a branch's balances, which are recorded when it stops or the JVM exits. */
+    public synchronized void onFinish(String branch, Supplier<Map<String, Long>> supplier) {
+        balances.put(branch, supplier);
+    }
+
+    /** Records the branch's balances now, while it can still answer. */
+    public void finish(String branch) {
+        Supplier<Map<String, Long>> supplier;
+        synchronized (this) {
+            supplier = balances.remove(branch);
+        }
+        if (supplier != null) {
+            writeBalances(branch, supplier.get());
+        }
+    }
+
+    private synchronized void writeBalances(String branch, Map<String, Long> accounts) {
+        writer.begin(BALANCES).writeKey(branch).writeLong(accounts.size());
+        for (Map.Entry<String, Long> entry : accounts.entrySet()) {
+            writer.writeKey(entry.getKey()).writeLong(entry.getValue());
+        }
+        write();
+    }
+
+    private void close() {
+        for (String branch : new ArrayList<>(balances.keySet())) {
+            try {
+                finish(branch);
+            } catch (RuntimeException e) {
+                System.err.println("Cannot record the balances of " + branch + ": " + e);
+            }
+        }
+        synchronized (this) {
+            try {
+                out.close();
+                System.out.println("Recorded " + records + " ACL records to " + FILE);
+            } catch (IOException e) {
+                System.err.println("Cannot close traffic log " + FILE + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void write() {
+        if (failed) {
+            return;
+        }
+        try {
+            out.writeInt(writer.size());
+            out.write(writer.toBytes());
+            records++;
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("Stopped recording ACL traffic: " + e.getMessage());
+        }
+    }
+
+    private static String orEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    /** A recorded log, read back whole. */
+    public static final class Log {
+        public final long seed;
+        /** Agent class by local name. */
+        public final Map<String, String> agents = new LinkedHashMap<>();
+        public final List<Message> messages = new ArrayList<>();
+        /** Balances by branch, then by account. */
+        public final Map<String, Map<String, Long>> balances = new LinkedHashMap<>();
+
+        private Log(long seed) {
+            this.seed = seed;
+        }
+
+        public static Log read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a traffic log");
+                }
+                Log log = new Log(in.readLong());
+                MessageCodec.Reader reader = new MessageCodec.Reader();
+                while (true) {
+                    byte[] payload;
+                    try {
+                        payload = new byte[in.readInt()];
+                        in.readFully(payload);
+                    } catch (EOFException e) {
+                        // the end, or a record cut short when the JVM was killed
+                        return log;
+                    }
+                    switch (reader.reset(payload)) {
+                    case AGENT:
+                        log.agents.put(reader.readKey(), reader.readKey());
+                        break;
+                    case MESSAGE:
+                        log.messages.add(new Message(reader));
+                        break;
+                    case BALANCES:
+                        String branch = reader.readKey();
+                        Map<String, Long> accounts = new LinkedHashMap<>();
+                        for (long i = reader.readLong(); i > 0; i--) {
+                            accounts.put(reader.readKey(), reader.readLong());
+                        }
+                        log.balances.put(branch, accounts);
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + reader.type() + " in " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    /** One recorded delivery of a message to one agent. */
+    public static final class Message {
+        public final String receiver;
+        public final long wallMillis;
+        public final long nanos;
+        public final int performative;
+        public final String conversationId;
+        public final String sender;
+        public final String[] receivers;
+        public final String replyWith;
+        public final String inReplyTo;
+        public final String text;
+        public final byte[] bytes;
+
+        Message(MessageCodec.Reader reader) {
+            receiver = reader.readKey();
+            wallMillis = reader.readLong();
+            nanos = reader.readLong();
+            performative = (int) reader.readLong();
+            conversationId = reader.readKey();
+            sender = reader.readKey();
+            receivers = new String[(int) reader.readLong()];
+            for (int i = 0; i < receivers.length; i++) {
+                receivers[i] = reader.readKey();
+            }
+            replyWith = reader.readKey();
+            inReplyTo = reader.readKey();
+            int kind = reader.readByte();
+            text = kind == 1 ? reader.readKey() : null;
+            bytes = kind == 2 ? reader.readBytes() : null;
+        }
+
+        /** The message as it would be sent again to its recorded receiver. */
+        public ACLMessage toACLMessage() {
+            ACLMessage msg = new ACLMessage(performative);
+            msg.addReceiver(new AID(receiver, AID.ISLOCALNAME));
+            if (!conversationId.isEmpty()) {
+                msg.setConversationId(conversationId);
+            }
+            if (bytes != null) {
+                msg.setByteSequenceContent(bytes);
+            } else if (text != null) {
+                msg.setContent(text);
+            }
+            return msg;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package banca;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+
+/**
+ * Replays a log written with banca.record (see {@link TrafficRecorder}) in an in-process
+ * JADE container: it starts every recorded server agent again under its recorded name
+ * and class, with the recorded seed and a fresh data directory, then lets a
+ * {@link ReplayAgent} send the recorded client traffic and compare the final balances.
+ * Clients, i.e. GUIAgent and LoadGeneratorAgent, and the platform agents are not
+ * started; the replay agent plays their part.
+ *
+ * Arguments after the log are passed to the replay agent as "key=value" settings.
+ *
+ * Run with: java -cp jade.jar:bin banca.TrafficReplay traffic.log mode=fast window=64
+ */
+public class TrafficReplay {
+
+    private static final List<String> CLIENTS = Arrays.asList(GUIAgent.class.getName(),
+            LoadGeneratorAgent.class.getName(), ReplayAgent.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: banca.TrafficReplay <log> [mode=fast|realtime] [window=n] [timeoutMs=n]"
+                    + " [settleMs=n]");
+            System.exit(2);
+        }
+        TrafficRecorder.Log log = TrafficRecorder.Log.read(new File(args[0]));
+        System.setProperty("banca.seed", Long.toString(log.seed));
+        if (System.getProperty("banca.dataDir") == null) {
+            // journals and snapshots of the recording must not leak into the replay
+            System.setProperty("banca.dataDir", Files.createTempDirectory("banca-replay").toString());
+        }
+
+        Runtime runtime = Runtime.instance();
+        ProfileImpl profile = new ProfileImpl();
+        profile.setParameter(Profile.GUI, "false");
+        AgentContainer container = runtime.createMainContainer(profile);
+
+        Set<String> replayed = new LinkedHashSet<>();
+        for (Map.Entry<String, String> agent : log.agents.entrySet()) {
+            String name = agent.getKey();
+            if (CLIENTS.contains(agent.getValue()) || name.equals("ams") || name.equals("df")) {
+                continue;
+            }
+            container.createNewAgent(name, agent.getValue(), null).start();
+            replayed.add(name);
+        }
+        System.out.println("Replaying " + args[0] + " against " + replayed);
+
+        CompletableFuture<String> report = new CompletableFuture<>();
+        List<Object> replayArgs = new ArrayList<>();
+        replayArgs.add(log);
+        replayArgs.add(replayed);
+        replayArgs.add(report);
+        for (int i = 1; i < args.length; i++) {
+            replayArgs.add(args[i]);
+        }
+        container.createNewAgent("replay", ReplayAgent.class.getName(), replayArgs.toArray()).start();
+
+        report.get();
+        container.kill();
+        runtime.shutDown();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,416 @@
+package banca;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Two-phase commit for TRANSFER requests, run by every {@link BranchStripe} for its
+ * accounts. The stripe owning the source account coordinates: it holds the amount in
+ * escrow ({@link Ledger#hold}) and sends PREPARE to the stripe owning the destination,
+ * which records an incoming hold and votes. On a yes vote the coordinator debits the
+ * source and sends COMMIT, the participant credits the destination and acknowledges,
+ * and the coordinator forgets the transfer; on a no vote or after TIMEOUT_MS without
+ * one it releases the hold and sends ABORT.
+ *
+ * The holds and every step on them are journaled before any message depending on them
+ * leaves (the stripe sends after its group commit), so the journal is the coordinator
+ * and participant log. The participant is the branch owning the destination account in
+ * sharding mode, otherwise the account's home branch on a ring of all branches (every
+ * branch holds the account, one of them takes part). After a restart, uncommitted
+ * source holds are aborted once TIMEOUT_MS passes (presumed abort), COMMIT is sent again
+ * every RETRY_MS for committed ones until acknowledged, and destination holds wait for
+ * the coordinator's decision. A destination hold still undecided after HOLD_TIMEOUT_MS,
+ * e.g. because the decision was lost, is asked about with QUERY every RETRY_MS; the
+ * coordinator answers COMMIT if it committed and ABORT if it no longer knows the
+ * transfer, which then was aborted or never got a yes vote.
+ *
+ * Steps are not sent one message each: the steps produced while the stripe handles a
+ * group of tasks are collected per peer branch and leave as one TRANSFER_2PC message
+ * per peer, so many transfers are in flight per round trip. Steps between the accounts
+ * of one stripe are applied directly.
+ */
+public class TransferProtocol {
+
+    public static final String CONVERSATION_ID = "TRANSFER_2PC";
+    public static final long TIMEOUT_MS = Long.getLong("banca.transfer.timeoutMs", 5000);
+    public static final long RETRY_MS = Long.getLong("banca.transfer.retryMs", 1000);
+    public static final long HOLD_TIMEOUT_MS = Long.getLong("banca.transfer.holdTimeoutMs", 2 * TIMEOUT_MS);
+
+    static final int PREPARE = 1;
+    static final int VOTE_YES = 2;
+    static final int VOTE_NO = 3;
+    static final int COMMIT = 4;
+    static final int ABORT = 5;
+    static final int ACK = 6;
+    static final int QUERY = 7;
+
+    private final BranchStripe stripe;
+    private final Agent agent;
+    private final Ledger ledger;
+    private final LedgerJournal journal;
+    private final AgentMetrics metrics;
+    private final String idPrefix;
+    private long nextId;
+
+    private final Map<String, Pending> pending = new HashMap<>();
+    /** Transfers with an undecided destination hold here, by when to ask the coordinator. */
+    private final Map<String, Long> undecided = new HashMap<>();
+    private final Map<String, Outbox> outboxes = new HashMap<>();
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+    private final StringBuilder transfer = new StringBuilder(32);
+    private final StringBuilder from = new StringBuilder(32);
+    private final StringBuilder to = new StringBuilder(32);
+
+    TransferProtocol(BranchStripe stripe, Agent agent, Ledger ledger, LedgerJournal journal, int index) {
+        this.stripe = stripe;
+        this.agent = agent;
+        this.ledger = ledger;
+        this.journal = journal;
+        this.metrics = AgentMetrics.of(agent);
+        // unique across restarts without having to persist a counter; starts with the coordinator, see coordinatorOf
+        this.idPrefix = agent.getLocalName() + ":" + Long.toString(System.currentTimeMillis(), 36) + ":" + index + ":";
+    }
+
+    /** Picks up the transfers this stripe coordinated before a restart. */
+    void recover() {
+        long deadline = System.nanoTime() + HOLD_TIMEOUT_MS * 1_000_000L;
+        for (Ledger.Hold hold : ledger.holds()) {
+            if (hold.outgoing) {
+                // the participant is looked up once the rings are known
+                pending.put(hold.transfer, new Pending(null, null));
+            } else {
+                undecided.put(hold.transfer.substring(0, hold.transfer.length() - 1), deadline);
+            }
+        }
+    }
+
+    /** Starts a TRANSFER request whose source account belongs to this stripe. */
+    public void begin(ACLMessage msg) {
+        if (journal.isFailed()) {
+            stripe.reply(msg, ACLMessage.FAILURE, BranchStripe.JOURNAL_FAILED);
+            return;
+        }
+        long amount;
+        if (msg.hasByteSequenceContent() && MessageCodec.isBinary(msg.getByteSequenceContent())) {
+            try {
+                reader.reset(msg.getByteSequenceContent());
+                reader.readKey(from);
+                reader.readKey(to);
+                amount = reader.readLong();
+            } catch (ArrayIndexOutOfBoundsException e) {
+                stripe.reply(msg, ACLMessage.FAILURE, "Truncated TRANSFER request");
+                return;
+            }
+        } else {
+            String content = msg.getContent();
+            String[] parts = content == null ? new String[0] : content.split(";");
+            if (parts.length != 3) {
+                stripe.reply(msg, ACLMessage.FAILURE, "Expected sourceAccount;destinationAccount;amount");
+                return;
+            }
+            from.setLength(0);
+            from.append(parts[0].trim());
+            to.setLength(0);
+            to.append(parts[1].trim());
+            try {
+                amount = Money.parse(parts[2]);
+            } catch (NumberFormatException e) {
+                stripe.reply(msg, ACLMessage.FAILURE, "Malformed transfer amount: " + e.getMessage());
+                return;
+            }
+        }
+        String source = from.toString();
+        String destination = to.toString();
+
+        int slot = ledger.find(source);
+        if (amount <= 0) {
+            stripe.reply(msg, ACLMessage.FAILURE, "Transfer amount must be positive");
+            return;
+        }
+        if (source.equals(destination)) {
+            stripe.reply(msg, ACLMessage.FAILURE, "Source and destination accounts must differ");
+            return;
+        }
+        if (slot < 0) {
+            stripe.reply(msg, ACLMessage.FAILURE, "Account " + source + " doesn't exist. Open account first.");
+            return;
+        }
+        String id = idPrefix + nextId++;
+        if (!ledger.hold(id, slot, destination, amount, true)) {
+            stripe.reply(msg, ACLMessage.FAILURE, "Insufficient funds. Available: " + Money.format(ledger.available(slot)));
+            return;
+        }
+        journal.appendHold(ledger.getHold(id));
+        Pending transfer = new Pending(msg, destinationOf(destination));
+        pending.put(id, transfer);
+        send(PREPARE, id, source, destination, amount, transfer.participant);
+    }
+
+    /** Applies this stripe's part of a TRANSFER_2PC message from the peer, see {@link StripeSplitter}. */
+    public void handle(String peer, byte[] part) {
+        if (journal.isFailed()) {
+            // unanswered steps time out at the coordinator or are sent again after the restart
+            metrics.increment("transfer.refused");
+            return;
+        }
+        reader.reset(part);
+        while (reader.hasRemaining()) {
+            int step = reader.readByte();
+            reader.readKey(transfer);
+            reader.readKey(from);
+            reader.readKey(to);
+            long amount = reader.readLong();
+            apply(step, transfer.toString(), from.toString(), to.toString(), amount, peer);
+        }
+    }
+
+    /** Times out transfers without a vote, repeats unacknowledged commits and asks about undecided holds. */
+    void tick() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Long> entry : new ArrayList<>(undecided.entrySet())) {
+            String id = entry.getKey();
+            Ledger.Hold hold = ledger.getHold(incoming(id));
+            if (hold == null) {
+                undecided.remove(id);
+            } else if (now - entry.getValue() > 0) {
+                undecided.put(id, now + RETRY_MS * 1_000_000L);
+                metrics.increment("transfer.queried");
+                send(QUERY, id, hold.counterparty, hold.account, hold.amount, coordinatorOf(id));
+            }
+        }
+        // steps for this stripe are applied right away and may end transfers, so iterate a copy
+        for (Map.Entry<String, Pending> entry : new ArrayList<>(pending.entrySet())) {
+            String id = entry.getKey();
+            Pending transfer = entry.getValue();
+            Ledger.Hold hold = ledger.getHold(id);
+            if (hold == null) {
+                pending.remove(id);
+            } else if (!hold.isCommitted() && now - transfer.started > TIMEOUT_MS * 1_000_000L) {
+                pending.remove(id);
+                ledger.release(id);
+                journal.appendRelease(hold);
+                metrics.increment("transfer.timedOut");
+                finish(transfer, false, "Transfer timed out, no funds were moved");
+                send(ABORT, id, hold.account, hold.counterparty, hold.amount, participant(transfer, hold));
+            } else if (hold.isCommitted() && now - transfer.lastSent > RETRY_MS * 1_000_000L) {
+                transfer.lastSent = now;
+                send(COMMIT, id, hold.account, hold.counterparty, hold.amount, participant(transfer, hold));
+            }
+        }
+    }
+
+    /** Sends the steps collected since the last flush, one message per peer branch. */
+    void flush() {
+        for (Map.Entry<String, Outbox> entry : outboxes.entrySet()) {
+            Outbox outbox = entry.getValue();
+            if (outbox.entries == 0) {
+                continue;
+            }
+            ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+            msg.setConversationId(CONVERSATION_ID);
+            msg.setByteSequenceContent(outbox.writer.toBytes());
+            msg.addReceiver(new AID(entry.getKey(), AID.ISLOCALNAME));
+            agent.send(msg);
+            metrics.record("transfer.batch", outbox.entries);
+            outbox.entries = 0;
+        }
+    }
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    private void apply(int step, String id, String source, String destination, long amount, String peer) {
+        switch (step) {
+        case PREPARE:
+            prepare(id, source, destination, amount, peer);
+            break;
+        case VOTE_YES:
+        case VOTE_NO:
+            vote(id, step == VOTE_YES);
+            break;
+        case COMMIT:
+            commit(id, source, destination, amount, peer);
+            break;
+        case ABORT:
+            Ledger.Hold aborted = ledger.getHold(incoming(id));
+            if (aborted != null) {
+                ledger.release(aborted.transfer);
+                journal.appendRelease(aborted);
+            }
+            undecided.remove(id);
+            break;
+        case QUERY:
+            query(id, source, destination, amount, peer);
+            break;
+        case ACK:
+            Ledger.Hold done = ledger.getHold(id);
+            if (done != null && done.outgoing && done.isCommitted()) {
+                ledger.release(id);
+                journal.appendRelease(done);
+            }
+            pending.remove(id);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** Participant: records the incoming credit and votes yes if the destination account is here. */
+    private void prepare(String id, String source, String destination, long amount, String peer) {
+        boolean yes = ledger.getHold(incoming(id)) != null;   // a repeated PREPARE gets the same answer
+        if (!yes) {
+            int slot = ledger.find(destination);
+            ShardRing ring = stripe.ring();
+            String owner = ring == null ? null : ring.primaryName(destination);
+            yes = slot >= 0 && (owner == null || owner.equals(agent.getLocalName()));
+            if (yes) {
+                ledger.hold(incoming(id), slot, source, amount, false);
+                journal.appendHold(ledger.getHold(incoming(id)));
+                undecided.put(id, System.nanoTime() + HOLD_TIMEOUT_MS * 1_000_000L);
+            }
+        }
+        send(yes ? VOTE_YES : VOTE_NO, id, source, destination, amount, peer);
+    }
+
+    /** Coordinator: commits or aborts on the participant's vote. */
+    private void vote(String id, boolean yes) {
+        Ledger.Hold hold = ledger.getHold(id);
+        Pending transfer = pending.get(id);
+        if (hold == null || !hold.outgoing || hold.isCommitted() || transfer == null) {
+            return;   // already decided, e.g. timed out
+        }
+        if (!yes) {
+            pending.remove(id);
+            ledger.release(id);
+            journal.appendRelease(hold);
+            metrics.increment("transfer.aborted");
+            finish(transfer, false, "Account " + hold.counterparty + " doesn't exist. Open account first.");
+            return;
+        }
+
+        int slot = ledger.find(hold.account);
+        long oldBalance = ledger.balance(slot);
+        ledger.commitHold(id);
+        journal.appendHoldCommit(hold);
+        long newBalance = ledger.balance(slot);
+        stripe.changed(slot, hold.account, MessageCodec.WITHDRAW, hold.amount, oldBalance, newBalance);
+        metrics.increment("transfer.committed");
+        finish(transfer, true, "Transfer of " + Money.format(hold.amount) + " from " + hold.account + " to "
+                + hold.counterparty + " committed. New balance: " + Money.format(newBalance));
+        transfer.lastSent = System.nanoTime();
+        send(COMMIT, id, hold.account, hold.counterparty, hold.amount, participant(transfer, hold));
+    }
+
+    /** Participant: credits the destination and acknowledges, also for a COMMIT seen before. */
+    private void commit(String id, String source, String destination, long amount, String peer) {
+        Ledger.Hold hold = ledger.getHold(incoming(id));
+        if (hold != null) {
+            int slot = ledger.find(destination);
+            long oldBalance = slot < 0 ? 0 : ledger.balance(slot);
+            ledger.commitHold(hold.transfer);
+            journal.appendHoldCommit(hold);
+            slot = ledger.find(destination);
+            stripe.changed(slot, destination, MessageCodec.DEPOSIT, amount, oldBalance, ledger.balance(slot));
+        }
+        undecided.remove(id);
+        send(ACK, id, source, destination, amount, peer);
+    }
+
+    /** Coordinator: repeats its decision for a participant whose hold is still undecided. */
+    private void query(String id, String source, String destination, long amount, String peer) {
+        Ledger.Hold hold = ledger.getHold(id);
+        if (hold == null) {
+            // aborted, or the participant's yes vote never arrived; an acknowledged commit leaves no hold to ask about
+            send(ABORT, id, source, destination, amount, peer);
+        } else if (hold.isCommitted()) {
+            send(COMMIT, id, source, destination, amount, peer);
+        }
+        // otherwise still waiting for the vote, the decision follows
+    }
+
+    private void finish(Pending transfer, boolean committed, String text) {
+        metrics.record("transfer.latency", System.nanoTime() - transfer.started);
+        if (transfer.request != null) {
+            stripe.reply(transfer.request, committed ? ACLMessage.INFORM : ACLMessage.FAILURE, text);
+            transfer.request = null;
+        }
+    }
+
+    /** Applies the step here if it concerns this stripe, or queues it for the peer branch. */
+    private void send(int step, String id, String source, String destination, long amount, String peer) {
+        if (peer.equals(agent.getLocalName()) && stripe.owns(routedBy(step, source, destination))) {
+            apply(step, id, source, destination, amount, peer);
+            return;
+        }
+        Outbox outbox = outboxes.get(peer);
+        if (outbox == null) {
+            outbox = new Outbox();
+            outboxes.put(peer, outbox);
+        }
+        if (outbox.entries == 0) {
+            outbox.writer.begin(MessageCodec.TRANSFER_2PC);
+        }
+        outbox.writer.writeByte(step).writeKey(id).writeKey(source).writeKey(destination).writeLong(amount);
+        outbox.entries++;
+    }
+
+    /** The recorded participant, or for a transfer recovered after a restart the current one. */
+    private String participant(Pending transfer, Ledger.Hold hold) {
+        if (transfer.participant == null) {
+            transfer.participant = destinationOf(hold.counterparty);
+        }
+        return transfer.participant;
+    }
+
+    /** Key of the participant's hold, distinct from the coordinator's when both share a ledger. */
+    private static String incoming(String id) {
+        return id + ">";
+    }
+
+    /**
+     * Branch that takes part for the destination account: its owner in sharding mode,
+     * otherwise its home among the branches, where every branch holds the account.
+     */
+    private String destinationOf(String account) {
+        ShardRing ring = stripe.ring();
+        if (ring == null) {
+            ring = stripe.homes();
+        }
+        String owner = ring == null ? null : ring.primaryName(account);
+        return owner == null ? agent.getLocalName() : owner;
+    }
+
+    /** The branch that coordinates the transfer, the first part of its ID. */
+    static String coordinatorOf(String id) {
+        return id.substring(0, id.indexOf(':'));
+    }
+
+    /** Steps for the participant are routed by the destination account, the others by the source. */
+    static CharSequence routedBy(int step, CharSequence source, CharSequence destination) {
+        return step == PREPARE || step == COMMIT || step == ABORT ? destination : source;
+    }
+
+    private static final class Pending {
+        ACLMessage request;
+        /** Kept so the decision goes to the branch that voted, even if the ring changed since. */
+        String participant;
+        final long started = System.nanoTime();
+        long lastSent;
+
+        Pending(ACLMessage request, String participant) {
+            this.request = request;
+            this.participant = participant;
+        }
+    }
+
+    private static final class Outbox {
+        final MessageCodec.Writer writer = new MessageCodec.Writer();
+        int entries;
+    }
+}
@@ -0,0 +1,143 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class AlertRuleEngineTest {
+
+    private static final long MINUTE = 60_000;
+    // a bucket boundary of every window used here
+    private static final long T0 = 1_000 * 60 * MINUTE;
+
+    private final List<String> alerts = new ArrayList<>();
+    private final NotificationCenter.AlertSink sink = (account, rule, notification) -> alerts.add(account + ": " + rule);
+
+    @Test
+    void largeFiresForEveryLargeTransaction() {
+        AlertRuleEngine engine = new AlertRuleEngine("large >= 100");
+        engine.transaction("alice", MessageCodec.DEPOSIT, 9_999, 0, 9_999, T0, sink);
+        engine.transaction("alice", MessageCodec.DEPOSIT, 10_000, 9_999, 19_999, T0, sink);
+        engine.transaction("alice", MessageCodec.WITHDRAW, 15_000, 19_999, 4_999, T0 + 1, sink);
+
+        assertEquals(List.of("alice: large >= 100", "alice: large >= 100"), alerts);
+    }
+
+    @Test
+    void withdrawalsFireOnceWithinTheWindow() {
+        AlertRuleEngine engine = new AlertRuleEngine("withdrawals >= 3 in 8m");
+        withdraw(engine, "alice", T0);
+        engine.transaction("alice", MessageCodec.DEPOSIT, 100, 0, 100, T0 + MINUTE, sink);
+        withdraw(engine, "alice", T0 + 2 * MINUTE);
+        withdraw(engine, "bob", T0 + 3 * MINUTE);
+        assertTrue(alerts.isEmpty(), "deposits and other accounts do not count");
+
+        withdraw(engine, "alice", T0 + 4 * MINUTE);
+        assertEquals(List.of("alice: withdrawals >= 3 in 8m"), alerts);
+
+        withdraw(engine, "alice", T0 + 5 * MINUTE);
+        withdraw(engine, "alice", T0 + 11 * MINUTE);
+        assertEquals(1, alerts.size(), "quiet until the window has passed since the alert");
+
+        withdraw(engine, "alice", T0 + 12 * MINUTE);
+        assertEquals(2, alerts.size(), "still three withdrawals in the window once the quiet period ended");
+    }
+
+    @Test
+    void withdrawalsOlderThanTheWindowExpire() {
+        AlertRuleEngine engine = new AlertRuleEngine("withdrawals >= 3 in 8m");
+        withdraw(engine, "alice", T0);
+        withdraw(engine, "alice", T0 + 5 * MINUTE);
+        withdraw(engine, "alice", T0 + 10 * MINUTE);
+        withdraw(engine, "alice", T0 + 30 * MINUTE);
+        assertTrue(alerts.isEmpty());
+
+        // the window is exact to one bucket of 8m / 8: the first bucket drops out after 8 minutes
+        withdraw(engine, "bob", T0);
+        withdraw(engine, "bob", T0 + 4 * MINUTE);
+        withdraw(engine, "bob", T0 + 8 * MINUTE - 1);
+        assertEquals(List.of("bob: withdrawals >= 3 in 8m"), alerts);
+        withdraw(engine, "carol", T0);
+        withdraw(engine, "carol", T0 + 4 * MINUTE);
+        withdraw(engine, "carol", T0 + 8 * MINUTE);
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    void withdrawnSumsTheAmounts() {
+        AlertRuleEngine engine = new AlertRuleEngine("withdrawn >= 50 in 10m");
+        engine.transaction("alice", MessageCodec.WITHDRAW, 2_000, 10_000, 8_000, T0, sink);
+        engine.transaction("alice", MessageCodec.WITHDRAW, 2_999, 8_000, 5_001, T0 + MINUTE, sink);
+        assertTrue(alerts.isEmpty());
+        engine.transaction("alice", MessageCodec.WITHDRAW, 1, 5_001, 5_000, T0 + 2 * MINUTE, sink);
+        assertEquals(List.of("alice: withdrawn >= 50 in 10m"), alerts);
+    }
+
+    @Test
+    void dropIsMeasuredFromTheHighestBalanceInTheWindow() {
+        AlertRuleEngine engine = new AlertRuleEngine("drop >= 50% in 60m");
+        engine.balance("alice", 100_000, T0, sink);
+        engine.transaction("alice", MessageCodec.WITHDRAW, 40_000, 100_000, 60_000, T0 + 10 * MINUTE, sink);
+        assertTrue(alerts.isEmpty());
+        engine.balance("alice", 50_000, T0 + 20 * MINUTE, sink);
+        assertEquals(List.of("alice: drop >= 50% in 60m"), alerts);
+
+        // a high balance that left the window is no reference any more
+        engine.balance("bob", 100_000, T0, sink);
+        engine.balance("bob", 10_000, T0 + 2 * 60 * MINUTE, sink);
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    void depositsDoNotTripWindowRules() {
+        AlertRuleEngine engine = new AlertRuleEngine("drop >= 10% in 60m ; large >= 1000");
+        engine.balance("alice", 100_000, T0, sink);
+        // the balance reported with the deposit is below the window's high, but a deposit cannot cause a drop
+        engine.transaction("alice", MessageCodec.DEPOSIT, 100, 50_000, 50_100, T0 + MINUTE, sink);
+        assertTrue(alerts.isEmpty());
+    }
+
+    @Test
+    void nothingIsRenderedForUnwantedAccounts() {
+        AlertRuleEngine engine = new AlertRuleEngine("large >= 1");
+        engine.transaction("alice", MessageCodec.DEPOSIT, 500, 0, 500, T0, new NotificationCenter.AlertSink() {
+            public void alert(String accountId, String rule, String notification) {
+                alerts.add(notification);
+            }
+
+            public boolean wants(String accountId) {
+                return false;
+            }
+        });
+        assertTrue(alerts.isEmpty());
+    }
+
+    @Test
+    void describesTheAlert() {
+        List<String> notifications = new ArrayList<>();
+        AlertRuleEngine engine = new AlertRuleEngine("Withdrawn >= 1 in 1h");
+        engine.transaction("alice", MessageCodec.WITHDRAW, 1_250, 5_000, 3_750, T0,
+                (account, rule, notification) -> notifications.add(notification));
+        assertEquals(List.of("Withdrawal volume alert for account alice: 12.50 withdrawn (rule: Withdrawn >= 1 in 1h)"),
+                notifications);
+    }
+
+    @Test
+    void compilesTheRuleList() {
+        assertEquals(4, new AlertRuleEngine(AlertRuleEngine.DEFAULT_RULES).ruleCount());
+        assertEquals(0, new AlertRuleEngine(" ; ").ruleCount());
+        for (String spec : new String[] { "often >= 1", "large 5", "withdrawals >= 5", "withdrawals >= 5 in 10d",
+                "withdrawals >= 5 per 10m", "withdrawn >= lots in 1m", "drop >= 50% in 0s" }) {
+            assertThrows(IllegalArgumentException.class, () -> new AlertRuleEngine(spec), spec);
+        }
+    }
+
+    private void withdraw(AlertRuleEngine engine, String account, long now) {
+        engine.transaction(account, MessageCodec.WITHDRAW, 100, 1_000_000, 999_900, now, sink);
+    }
+}
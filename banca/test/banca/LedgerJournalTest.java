@@ -0,0 +1,231 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import banca.LedgerJournal.Durability;
+
+class LedgerJournalTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void recoversCommittedRecords() throws IOException {
+        Ledger ledger = branchLedger();
+        LedgerJournal journal = open(ledger);
+        deposit(ledger, journal, "alice", 1000);
+        deposit(ledger, journal, "bob", 250);
+        deposit(ledger, journal, "alice", 500);
+        int alice = ledger.find("alice");
+        ledger.merge(alice, ledger.origin("b2"), 4, 75);
+        journal.append(alice, ledger.origin("b2"));
+        journal.commit();
+
+        Ledger recovered = branchLedger();
+        assertEquals(4, journal(recovered).recover());
+        assertEquals(1575, recovered.balance(recovered.find("alice")));
+        assertEquals(250, recovered.balance(recovered.find("bob")));
+        assertEquals(4, recovered.sequence(recovered.find("alice"), recovered.origin("b2")));
+        assertEquals(2, recovered.sequence(recovered.find("alice"), recovered.localOrigin()));
+    }
+
+    @Test
+    void replayStopsAtATornTail() throws IOException {
+        Ledger ledger = branchLedger();
+        LedgerJournal journal = open(ledger);
+        deposit(ledger, journal, "alice", 1000);
+        deposit(ledger, journal, "bob", 250);
+        deposit(ledger, journal, "alice", 500);
+        journal.commit();
+
+        // the last record was only partly written when the branch stopped
+        File segment = onlyFile("wal-");
+        List<Integer> ends = recordEnds(segment);
+        assertEquals(3, ends.size());
+        zeroFrom(segment, ends.get(2) - 5);
+
+        Ledger recovered = branchLedger();
+        LedgerJournal again = journal(recovered);
+        assertEquals(2, again.recover());
+        assertEquals(1000, recovered.balance(recovered.find("alice")));
+        assertEquals(250, recovered.balance(recovered.find("bob")));
+
+        // new records continue after the replayed ones and survive the next recovery
+        deposit(recovered, again, "bob", 50);
+        again.commit();
+        Ledger third = branchLedger();
+        assertEquals(3, journal(third).recover());
+        assertEquals(300, third.balance(third.find("bob")));
+    }
+
+    @Test
+    void replayStopsAtACorruptRecord() throws IOException {
+        Ledger ledger = branchLedger();
+        LedgerJournal journal = open(ledger);
+        deposit(ledger, journal, "alice", 1000);
+        deposit(ledger, journal, "bob", 250);
+        deposit(ledger, journal, "carol", 10);
+        journal.commit();
+
+        File segment = onlyFile("wal-");
+        List<Integer> ends = recordEnds(segment);
+        flipByte(segment, ends.get(1) - 3);
+
+        Ledger recovered = branchLedger();
+        assertEquals(1, journal(recovered).recover());
+        assertEquals(1000, recovered.balance(recovered.find("alice")));
+        assertTrue(recovered.find("bob") < 0, "the corrupt record is not applied");
+        assertTrue(recovered.find("carol") < 0, "nothing after the corrupt record is applied");
+    }
+
+    @Test
+    void recoversFromSnapshotAndTail() throws IOException {
+        Ledger ledger = branchLedger();
+        LedgerJournal journal = open(ledger);
+        for (int i = 0; i < 100; i++) {
+            deposit(ledger, journal, "acc" + i, 100 + i);
+        }
+        journal.commit();
+        journal.snapshot();
+        deposit(ledger, journal, "acc7", 1000);
+        deposit(ledger, journal, "late", 5);
+        journal.commit();
+
+        assertNotNull(onlyFile("snapshot-"));
+        assertEquals(1, listFiles("wal-").size(), "the snapshot covers the older segment");
+
+        Ledger recovered = branchLedger();
+        assertEquals(2, journal(recovered).recover(), "only the tail after the snapshot is replayed");
+        assertEquals(101, recovered.size());
+        assertEquals(1107, recovered.balance(recovered.find("acc7")));
+        assertEquals(199, recovered.balance(recovered.find("acc99")));
+        assertEquals(5, recovered.balance(recovered.find("late")));
+    }
+
+    @Test
+    void recoversHoldSteps() throws IOException {
+        Ledger ledger = branchLedger();
+        LedgerJournal journal = open(ledger);
+        deposit(ledger, journal, "alice", 1000);
+        int alice = ledger.find("alice");
+        ledger.hold("b1:1", alice, "bob", 300, true);
+        journal.appendHold(ledger.getHold("b1:1"));
+        ledger.hold("b1:2", alice, "carol", 200, true);
+        journal.appendHold(ledger.getHold("b1:2"));
+        ledger.commitHold("b1:1");
+        journal.appendHoldCommit(ledger.getHold("b1:1"));
+        journal.appendRelease(ledger.release("b1:2"));
+        journal.commit();
+
+        Ledger recovered = branchLedger();
+        journal(recovered).recover();
+        int slot = recovered.find("alice");
+        assertEquals(700, recovered.balance(slot));
+        assertEquals(700, recovered.available(slot), "the released hold no longer reserves anything");
+        assertTrue(recovered.getHold("b1:1").isCommitted());
+        assertEquals(null, recovered.getHold("b1:2"));
+    }
+
+    @Test
+    void onlySyncJournalsDeferReplies() throws IOException {
+        Ledger ledger = branchLedger();
+        LedgerJournal off = new LedgerJournal(dir, ledger, Durability.OFF);
+        off.recover();
+        assertFalse(off.defersReplies());
+        LedgerJournal sync = open(ledger);
+        assertTrue(sync.defersReplies());
+        assertFalse(sync.isFailed());
+    }
+
+    private Ledger branchLedger() {
+        Ledger ledger = new Ledger();
+        ledger.setLocalOrigin("b1");
+        return ledger;
+    }
+
+    private LedgerJournal journal(Ledger ledger) {
+        return new LedgerJournal(dir, ledger, Durability.SYNC);
+    }
+
+    /** A journal ready for new records, after recovering what the directory holds. */
+    private LedgerJournal open(Ledger ledger) throws IOException {
+        LedgerJournal journal = journal(ledger);
+        journal.recover();
+        return journal;
+    }
+
+    /** Credits the account the way a branch does: change the ledger, then journal the local column. */
+    private static void deposit(Ledger ledger, LedgerJournal journal, String account, long amount) {
+        int slot = ledger.open(account);
+        if (slot < 0) {
+            slot = -slot - 1;
+        }
+        ledger.credit(slot, amount);
+        journal.append(slot, ledger.localOrigin());
+    }
+
+    private File onlyFile(String prefix) {
+        List<File> files = listFiles(prefix);
+        assertEquals(1, files.size(), prefix + " files");
+        return files.get(0);
+    }
+
+    private List<File> listFiles(String prefix) {
+        List<File> files = new ArrayList<>();
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith(prefix)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /** The end offsets of the records in a segment, read from their length headers. */
+    private static List<Integer> recordEnds(File segment) throws IOException {
+        List<Integer> ends = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            int position = 0;
+            while (true) {
+                header.clear();
+                channel.read(header, position);
+                int payload = header.getInt(0);
+                if (payload == 0) {
+                    return ends;
+                }
+                position += 8 + payload;
+                ends.add(position);
+            }
+        }
+    }
+
+    private static void zeroFrom(File segment, int offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4096), offset);
+        }
+    }
+
+    private static void flipByte(File segment, int offset) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(offset);
+            int value = file.read();
+            file.seek(offset);
+            file.write(value ^ 0xFF);
+        }
+    }
+}
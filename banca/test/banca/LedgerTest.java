@@ -0,0 +1,135 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LedgerTest {
+
+    @Test
+    void mergeTakesOnlyNewerContributions() {
+        Ledger ledger = new Ledger();
+        ledger.setLocalOrigin("b1");
+        int slot = ledger.open("alice");
+        int b2 = ledger.origin("b2");
+
+        assertTrue(ledger.merge(slot, b2, 2, 500));
+        assertEquals(500, ledger.balance(slot));
+        assertFalse(ledger.merge(slot, b2, 2, 500), "a repeated update is stale");
+        assertFalse(ledger.merge(slot, b2, 1, 300), "an older update is stale");
+        assertEquals(500, ledger.balance(slot));
+        assertEquals(2, ledger.sequence(slot, b2));
+
+        assertTrue(ledger.merge(slot, b2, 3, 200));
+        assertEquals(200, ledger.balance(slot), "a contribution replaces the previous one");
+    }
+
+    @Test
+    void localChangesAndMergedColumnsAddUp() {
+        Ledger ledger = new Ledger();
+        ledger.setLocalOrigin("b1");
+        int slot = ledger.open("alice");
+        ledger.credit(slot, 1000);
+        assertTrue(ledger.debit(slot, 250));
+        ledger.merge(slot, ledger.origin("b2"), 1, 400);
+        ledger.merge(slot, ledger.origin("b3"), 5, -100);
+
+        assertEquals(750, ledger.contribution(slot, ledger.localOrigin()));
+        assertEquals(2, ledger.sequence(slot, ledger.localOrigin()));
+        assertEquals(1050, ledger.balance(slot));
+    }
+
+    @Test
+    void mergeOrderDoesNotMatter() {
+        // every update of three origins to one account, applied in many orders and with duplicates
+        List<long[]> updates = new ArrayList<>();
+        for (int origin = 0; origin < 3; origin++) {
+            for (int seq = 1; seq <= 20; seq++) {
+                updates.add(new long[] { origin, seq, origin * 1000 + seq * 7 });
+            }
+        }
+        long expected = 0;
+        for (int origin = 0; origin < 3; origin++) {
+            expected += origin * 1000 + 20 * 7;
+        }
+
+        Random random = new Random(42);
+        for (int run = 0; run < 50; run++) {
+            List<long[]> shuffled = new ArrayList<>(updates);
+            shuffled.addAll(updates.subList(0, random.nextInt(updates.size())));
+            Collections.shuffle(shuffled, random);
+
+            Ledger ledger = new Ledger();
+            ledger.setLocalOrigin("local");
+            int slot = ledger.open("alice");
+            for (long[] update : shuffled) {
+                ledger.merge(slot, ledger.origin("b" + update[0]), update[1], update[2]);
+            }
+            assertEquals(expected, ledger.balance(slot));
+            for (int origin = 0; origin < 3; origin++) {
+                assertEquals(20, ledger.sequence(slot, ledger.origin("b" + origin)));
+            }
+        }
+    }
+
+    @Test
+    void creditRefusesToOverflow() {
+        Ledger ledger = new Ledger();
+        ledger.setLocalOrigin("b1");
+        int slot = ledger.open("alice");
+        ledger.credit(slot, Long.MAX_VALUE - 10);
+
+        assertThrows(ArithmeticException.class, () -> ledger.credit(slot, 11));
+        assertEquals(Long.MAX_VALUE - 10, ledger.balance(slot));
+        assertEquals(1, ledger.sequence(slot, ledger.localOrigin()), "the failed credit is not recorded");
+    }
+
+    @Test
+    void debitNeedsTheAvailableBalance() {
+        Ledger ledger = new Ledger();
+        ledger.setLocalOrigin("b1");
+        int slot = ledger.open("alice");
+        ledger.credit(slot, 100);
+        assertTrue(ledger.hold("t1", slot, "bob", 60, true));
+
+        assertEquals(40, ledger.available(slot));
+        assertFalse(ledger.debit(slot, 50));
+        assertFalse(ledger.hold("t2", slot, "bob", 50, true));
+        assertEquals(100, ledger.balance(slot));
+
+        ledger.release("t1");
+        assertTrue(ledger.debit(slot, 50));
+        assertEquals(50, ledger.balance(slot));
+    }
+
+    @Test
+    void holdsCommitOnceAndReleaseFreesTheAmount() {
+        Ledger ledger = new Ledger();
+        ledger.setLocalOrigin("b1");
+        int alice = ledger.open("alice");
+        int bob = ledger.open("bob");
+        ledger.credit(alice, 100);
+
+        ledger.hold("t1", alice, "bob", 30, true);
+        ledger.hold("t1>", bob, "alice", 30, false);
+        assertTrue(ledger.commitHold("t1"));
+        assertFalse(ledger.commitHold("t1"), "a hold is applied once");
+        assertTrue(ledger.commitHold("t1>"));
+        assertEquals(70, ledger.balance(alice));
+        assertEquals(30, ledger.balance(bob));
+        assertTrue(ledger.getHold("t1").isCommitted(), "the source hold stays until acknowledged");
+        assertEquals(null, ledger.getHold("t1>"), "the destination hold is done once credited");
+
+        ledger.release("t1");
+        assertEquals(70, ledger.available(alice));
+        assertTrue(ledger.holds().isEmpty());
+    }
+}
@@ -0,0 +1,146 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class MessageCodecTest {
+
+    private static final long[] NUMBERS = { 0, 1, -1, 63, -64, 64, 127, 128, 300, -300, Integer.MAX_VALUE,
+            Integer.MIN_VALUE, Money.MAX, -Money.MAX, Long.MAX_VALUE, Long.MIN_VALUE };
+
+    @Test
+    void numbersRoundTrip() {
+        MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.SYNC_DELTA);
+        for (long number : NUMBERS) {
+            writer.writeLong(number);
+        }
+        MessageCodec.Reader reader = new MessageCodec.Reader();
+        assertEquals(MessageCodec.SYNC_DELTA, reader.reset(writer.toBytes()));
+        for (long number : NUMBERS) {
+            assertEquals(number, reader.readLong());
+        }
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    void smallNumbersTakeOneByte() {
+        MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.DEPOSIT);
+        writer.writeLong(-64).writeLong(63);
+        assertEquals(3 + 2, writer.size());
+    }
+
+    @Test
+    void keysAndBytesRoundTrip() {
+        String wide = "kont\u00f6-\u20ac-\ud83d\udcb0";   // beyond one byte per char, and a surrogate pair
+        byte[] blob = "opaque".getBytes(StandardCharsets.UTF_8);
+        MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.TRANSFER);
+        writer.writeKey("acc-1").writeKey("").writeKey(wide).writeKey("xxacc-2yy", 2, 7).writeBytes(blob).writeByte(-3);
+
+        MessageCodec.Reader reader = new MessageCodec.Reader();
+        reader.reset(writer.toBytes());
+        StringBuilder into = new StringBuilder("leftover");
+        assertEquals("acc-1", reader.readKey(into).toString());
+        assertEquals("", reader.readKey());
+        assertEquals(wide, reader.readKey());
+        assertEquals("acc-2", reader.readKey());
+        assertArrayEquals(blob, reader.readBytes());
+        assertEquals(-3, reader.readByte());
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    void writersAreReusableAndGrow() {
+        MessageCodec.Writer writer = new MessageCodec.Writer();
+        writer.begin(MessageCodec.BATCH);
+        for (int i = 0; i < 1000; i++) {
+            writer.writeKey("account-" + i).writeLong(i * 1000L);
+        }
+        writer.begin(MessageCodec.BALANCE).writeKey("alice");
+
+        MessageCodec.Reader reader = new MessageCodec.Reader();
+        assertEquals(MessageCodec.BALANCE, reader.reset(writer.toBytes()));
+        assertEquals("alice", reader.readKey());
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    void payloadsCopyWithoutTheirHeader() {
+        MessageCodec.Writer part = new MessageCodec.Writer().begin(MessageCodec.DEPOSIT).writeKey("bob").writeLong(250);
+        MessageCodec.Writer batch = new MessageCodec.Writer().begin(MessageCodec.BATCH).writeLong(1).writeByte(
+                MessageCodec.DEPOSIT).writePayload(part);
+
+        MessageCodec.Reader reader = new MessageCodec.Reader();
+        reader.reset(batch.toBytes());
+        assertEquals(1, reader.readLong());
+        assertEquals(MessageCodec.DEPOSIT, reader.readByte());
+        assertEquals("bob", reader.readKey());
+        assertEquals(250, reader.readLong());
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    void conversationIdsMatchTypes() {
+        for (byte type = MessageCodec.DEPOSIT; type <= MessageCodec.RATES; type++) {
+            String conversation = MessageCodec.conversationId(type);
+            if (!"ANTI_ENTROPY".equals(conversation)) {
+                assertEquals(type, MessageCodec.typeOf(conversation));
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.conversationId(99));
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.typeOf("NO_SUCH_CONVERSATION"));
+    }
+
+    @Test
+    void textMessagesAreNotBinary() {
+        assertFalse(MessageCodec.isBinary(null));
+        assertFalse(MessageCodec.isBinary(new byte[0]));
+        assertFalse(MessageCodec.isBinary("acc-1;100".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(MessageCodec.isBinary(new byte[] { MessageCodec.MAGIC, MessageCodec.VERSION }));
+        assertTrue(MessageCodec.isBinary(new MessageCodec.Writer().begin(MessageCodec.DEPOSIT).toBytes()));
+
+        MessageCodec.Reader reader = new MessageCodec.Reader();
+        assertThrows(IllegalArgumentException.class, () -> reader.reset("acc-1;100".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(IllegalArgumentException.class, () -> reader.reset(null));
+    }
+
+    @Test
+    void otherVersionsAreRejected() {
+        byte[] content = new MessageCodec.Writer().begin(MessageCodec.DEPOSIT).writeKey("a").writeLong(1).toBytes();
+        content[1] = MessageCodec.VERSION + 1;
+        assertThrows(IllegalArgumentException.class, () -> new MessageCodec.Reader().reset(content));
+    }
+
+    @Test
+    void truncatedMessagesFailWhileReading() {
+        // the handlers turn this exception into a FAILURE reply, so every cut must raise it
+        byte[] content = new MessageCodec.Writer().begin(MessageCodec.TRANSFER).writeKey("source-account")
+                .writeKey("destination").writeLong(-Money.MAX).toBytes();
+        for (int length = 3; length < content.length; length++) {
+            MessageCodec.Reader reader = new MessageCodec.Reader();
+            reader.reset(Arrays.copyOf(content, length));
+            assertThrows(ArrayIndexOutOfBoundsException.class, () -> {
+                reader.readKey();
+                reader.readKey();
+                reader.readLong();
+            }, "cut after " + length + " bytes");
+        }
+    }
+
+    @Test
+    void unterminatedVarintFailsWhileReading() {
+        byte[] content = { MessageCodec.MAGIC, MessageCodec.VERSION, MessageCodec.DEPOSIT, (byte) 0x80, (byte) 0xFF };
+        MessageCodec.Reader reader = new MessageCodec.Reader();
+        reader.reset(content);
+        assertThrows(ArrayIndexOutOfBoundsException.class, reader::readLong);
+        reader.reset(content);
+        assertThrows(ArrayIndexOutOfBoundsException.class, reader::readKey);
+    }
+}
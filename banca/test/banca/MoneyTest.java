@@ -0,0 +1,43 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+class MoneyTest {
+
+    @Test
+    void parsesDecimalAmountsIntoMinorUnits() {
+        assertEquals(1200, Money.parse("12"));
+        assertEquals(-350, Money.parse("-3.5"));
+        assertEquals(10025, Money.parse(" 100.25 "));
+        assertEquals(5, Money.parse(".05"));
+        assertEquals(101, Money.parse("1.005"), "half up on the third decimal");
+        assertEquals(100000, Money.parse("1e3"));
+        assertEquals(250, Money.parse("x;2.5;y", 2, 5));
+    }
+
+    @Test
+    void rejectsWhatIsNotAnAmount() {
+        for (String text : new String[] { "", " ", "-", "abc", "1.2.3", "." }) {
+            assertThrows(NumberFormatException.class, () -> Money.parse(text), text);
+        }
+    }
+
+    @Test
+    void rejectsNonFiniteAndOutOfRangeAmounts() {
+        for (String text : new String[] { "Infinity", "-Infinity", "NaN", "1e30", "99999999999999999" }) {
+            assertThrows(NumberFormatException.class, () -> Money.parse(text), text);
+        }
+        assertEquals(999_999_999_999_999_999L, Money.parse("9999999999999999.99"));
+        assertEquals(Money.MAX, Money.parse("1e16"));
+    }
+
+    @Test
+    void formatsWithTwoDecimals() {
+        assertEquals("0.00", Money.format(0));
+        assertEquals("12.05", Money.format(1205));
+        assertEquals("-3.50", Money.format(-350));
+    }
+}
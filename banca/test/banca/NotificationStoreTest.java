@@ -0,0 +1,113 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class NotificationStoreTest {
+
+    @Test
+    void keepsTheNewestRecordsOldestFirst() {
+        NotificationStore store = new NotificationStore(3);
+        for (int i = 1; i <= 5; i++) {
+            store.add("alice", MessageCodec.DEPOSIT, i * 100, 0, i * 100, i);
+        }
+
+        assertEquals(3, store.count("alice"));
+        assertEquals(3, store.size());
+        assertEquals(List.of("Transaction completed: alice;DEPOSIT;3.00;0.00;3.00",
+                "Transaction completed: alice;DEPOSIT;4.00;0.00;4.00",
+                "Transaction completed: alice;DEPOSIT;5.00;0.00;5.00"), texts(store, "alice"));
+        assertTrue(store.render("alice").get(0).startsWith(new Date(3) + ": "));
+        assertEquals("Transaction completed: alice;DEPOSIT;5.00;0.00;5.00", store.renderLast("alice"));
+    }
+
+    @Test
+    void rendersEveryEventKind() {
+        NotificationStore store = new NotificationStore(10);
+        store.add("bob", MessageCodec.ACCOUNT_OPENED, 0, 0, 0);
+        store.add("bob", NotificationStore.THRESHOLD_SET, Double.doubleToLongBits(50.0), 0, 0);
+        store.add("bob", MessageCodec.WITHDRAW, 1_000, 5_000, 4_000);
+        store.add("bob", NotificationStore.CONVERTED, 900, NotificationStore.packCurrency("USD"), 7);
+        store.add("bob", NotificationStore.LOW_BALANCE, 4_000, Double.doubleToLongBits(50.0), 0);
+        store.add("bob", NotificationStore.ZERO_BALANCE, 0, 0, 0);
+        store.addText("bob", "free text");
+
+        assertEquals(List.of("Account bob opened successfully",
+                "Set low balance threshold for bob: 50.0",
+                "Transaction completed: bob;WITHDRAW;10.00;50.00;40.00",
+                "Converted from 9.00 USD at rates version 7",
+                "Low balance alert for account bob: 40.00 (threshold: 50.0)",
+                "Account bob has zero balance",
+                "free text"), texts(store, "bob"));
+    }
+
+    @Test
+    void recordsOverwriteTextsInPlace() {
+        NotificationStore store = new NotificationStore(2);
+        store.addText("carol", "first");
+        store.addText("carol", "second");
+        store.add("carol", MessageCodec.ACCOUNT_OPENED, 0, 0, 0);
+
+        assertEquals(List.of("second", "Account carol opened successfully"), texts(store, "carol"));
+    }
+
+    @Test
+    void clearKeepsTheOtherAccounts() {
+        NotificationStore store = new NotificationStore(2);
+        for (String account : new String[] { "a", "b", "c" }) {
+            store.addText(account, account + "1");
+            store.addText(account, account + "2");
+            store.addText(account, account + "3");
+        }
+
+        // "a" is in the first slot, the last account moves into it
+        assertEquals(2, store.clear("a"));
+        assertEquals(0, store.clear("a"));
+        assertEquals(2, store.accounts());
+        assertEquals(4, store.size());
+        assertEquals(0, store.count("a"));
+        assertNull(store.renderLast("a"));
+        assertEquals(List.of("b2", "b3"), texts(store, "b"));
+        assertEquals(List.of("c2", "c3"), texts(store, "c"));
+
+        store.addText("c", "c4");
+        store.addText("a", "a4");
+        assertEquals(List.of("c3", "c4"), texts(store, "c"));
+        assertEquals(List.of("a4"), texts(store, "a"));
+    }
+
+    @Test
+    void growsWithTheAccounts() {
+        NotificationStore store = new NotificationStore(4);
+        for (int i = 0; i < 5_000; i++) {
+            store.add("acc" + i, MessageCodec.DEPOSIT, i, 0, i);
+        }
+        assertEquals(5_000, store.accounts());
+        assertEquals("Transaction completed: acc4321;DEPOSIT;43.21;0.00;43.21", store.renderLast("acc4321"));
+        assertTrue(store.render("nobody").isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> new NotificationStore(0));
+    }
+
+    @Test
+    void packsShortCurrencyCodes() {
+        assertEquals(('E' << 16) | ('U' << 8) | 'R', NotificationStore.packCurrency("EUR"));
+        assertEquals(NotificationStore.packCurrency("ABCDEFGH"), NotificationStore.packCurrency("ABCDEFGHIJ"));
+    }
+
+    /** The rendered notifications without their dates. */
+    private static List<String> texts(NotificationStore store, String account) {
+        List<String> texts = new ArrayList<>();
+        for (String line : store.render(account)) {
+            texts.add(line.substring(line.indexOf(": ") + 2));
+        }
+        return texts;
+    }
+}
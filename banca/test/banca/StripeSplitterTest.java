@@ -0,0 +1,161 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class StripeSplitterTest {
+
+    private static final int STRIPES = 4;
+
+    private final StripeSplitter splitter = new StripeSplitter(STRIPES);
+    private final MessageCodec.Reader reader = new MessageCodec.Reader();
+
+    @Test
+    void syncDeltaPartsKeepTheOriginsAndTheEntryOrderOfEachStripe() {
+        MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.SYNC_DELTA);
+        writer.writeLong(2).writeKey("b1").writeKey("b2").writeLong(60);
+        List<List<String>> expected = expectedPerStripe();
+        for (int i = 0; i < 60; i++) {
+            String account = "acc" + (i % 20);   // accounts repeat, their updates must stay in order
+            writer.writeKey(account).writeLong(i).writeLong(2);
+            writer.writeLong(0).writeLong(i + 1).writeLong(i).writeLong(1).writeLong(1).writeLong(-i);
+            expected.get(BranchEngine.stripeOf(account, STRIPES)).add(account + "=" + i);
+        }
+
+        byte[][] parts = splitter.syncDelta(writer.toBytes());
+        for (int s = 0; s < STRIPES; s++) {
+            List<String> entries = new ArrayList<>();
+            if (parts[s] != null) {
+                assertEquals(MessageCodec.SYNC_DELTA, reader.reset(parts[s]));
+                assertEquals(2, reader.readLong());
+                assertEquals("b1", reader.readKey());
+                assertEquals("b2", reader.readKey());
+                long count = reader.readLong();
+                for (long i = 0; i < count; i++) {
+                    String account = reader.readKey();
+                    long balance = reader.readLong();
+                    assertEquals(2, reader.readLong());
+                    assertEquals(0, reader.readLong());
+                    assertEquals(balance + 1, reader.readLong());
+                    assertEquals(balance, reader.readLong());
+                    assertEquals(1, reader.readLong());
+                    assertEquals(1, reader.readLong());
+                    assertEquals(-balance, reader.readLong());
+                    entries.add(account + "=" + balance);
+                }
+                assertFalse(reader.hasRemaining());
+            }
+            assertEquals(expected.get(s), entries, "stripe " + s);
+        }
+    }
+
+    @Test
+    void batchPartsCarryTheOperationIndex() {
+        String[] accounts = { "alice", "bob", "carol", "dave", "erin", "frank" };
+        MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.BATCH).writeLong(accounts.length);
+        List<List<String>> expected = expectedPerStripe();
+        for (int i = 0; i < accounts.length; i++) {
+            if (i % 3 == 0) {
+                writer.writeByte(MessageCodec.OPEN_ACCOUNT).writeKey(accounts[i]);
+                expected.get(BranchEngine.stripeOf(accounts[i], STRIPES)).add(i + " OPEN_ACCOUNT " + accounts[i]);
+            } else {
+                writer.writeByte(MessageCodec.DEPOSIT).writeKey(accounts[i]).writeLong(i * 100);
+                expected.get(BranchEngine.stripeOf(accounts[i], STRIPES)).add(i + " DEPOSIT " + accounts[i] + " " + i * 100);
+            }
+        }
+
+        assertEquals(expected, batchEntries(splitter.batch(writer.toBytes(), null, null)));
+    }
+
+    @Test
+    void textBatchesAreConvertedAndBadLinesLeftOut() {
+        String[] lines = { "OPEN_ACCOUNT;alice", "DEPOSIT;alice;12.5", "DEPOSIT;bob", "NOTHING;bob;1",
+                "WITHDRAW;bob;x", "WITHDRAW;carol;0.01" };
+        List<List<String>> expected = expectedPerStripe();
+        expected.get(BranchEngine.stripeOf("alice", STRIPES)).add("0 OPEN_ACCOUNT alice");
+        expected.get(BranchEngine.stripeOf("alice", STRIPES)).add("1 DEPOSIT alice 1250");
+        expected.get(BranchEngine.stripeOf("carol", STRIPES)).add("5 WITHDRAW carol 1");
+
+        BranchEngine.Batch batch = new BranchEngine.Batch(null, null, lines.length);
+        assertEquals(expected, batchEntries(splitter.batch(null, lines, batch)));
+    }
+
+    @Test
+    void transferStepsGoToTheStripeOfTheirRoutingAccount() {
+        String source = "alice";
+        String destination = "bob";
+        int sourceStripe = BranchEngine.stripeOf(source, STRIPES);
+        int destinationStripe = BranchEngine.stripeOf(destination, STRIPES);
+        MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.TRANSFER_2PC);
+        List<List<String>> expected = expectedPerStripe();
+        for (int step = TransferProtocol.PREPARE; step <= TransferProtocol.QUERY; step++) {
+            writer.writeByte(step).writeKey("b1:x:0:" + step).writeKey(source).writeKey(destination).writeLong(step);
+            boolean participant = step == TransferProtocol.PREPARE || step == TransferProtocol.COMMIT
+                    || step == TransferProtocol.ABORT;
+            expected.get(participant ? destinationStripe : sourceStripe).add(String.valueOf(step));
+        }
+
+        byte[][] parts = splitter.transferSteps(writer.toBytes());
+        for (int s = 0; s < STRIPES; s++) {
+            List<String> steps = new ArrayList<>();
+            if (parts[s] != null) {
+                assertEquals(MessageCodec.TRANSFER_2PC, reader.reset(parts[s]));
+                while (reader.hasRemaining()) {
+                    int step = reader.readByte();
+                    assertEquals("b1:x:0:" + step, reader.readKey());
+                    assertEquals(source, reader.readKey());
+                    assertEquals(destination, reader.readKey());
+                    assertEquals(step, reader.readLong());
+                    steps.add(String.valueOf(step));
+                }
+            }
+            assertEquals(expected.get(s), steps, "stripe " + s);
+        }
+    }
+
+    @Test
+    void stripesWithoutEntriesGetNoPart() {
+        MessageCodec.Writer writer = new MessageCodec.Writer().begin(MessageCodec.BATCH).writeLong(1);
+        writer.writeByte(MessageCodec.OPEN_ACCOUNT).writeKey("alice");
+        byte[][] parts = splitter.batch(writer.toBytes(), null, null);
+        for (int s = 0; s < STRIPES; s++) {
+            if (s != BranchEngine.stripeOf("alice", STRIPES)) {
+                assertNull(parts[s]);
+            }
+        }
+    }
+
+    private List<List<String>> batchEntries(byte[][] parts) {
+        List<List<String>> entries = expectedPerStripe();
+        for (int s = 0; s < STRIPES; s++) {
+            if (parts[s] == null) {
+                continue;
+            }
+            assertEquals(MessageCodec.BATCH, reader.reset(parts[s]));
+            while (reader.hasRemaining()) {
+                long index = reader.readLong();
+                int type = reader.readByte();
+                String entry = index + " " + MessageCodec.conversationId(type) + " " + reader.readKey();
+                if (type != MessageCodec.OPEN_ACCOUNT) {
+                    entry += " " + reader.readLong();
+                }
+                entries.get(s).add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static List<List<String>> expectedPerStripe() {
+        List<List<String>> lists = new ArrayList<>();
+        for (int s = 0; s < STRIPES; s++) {
+            lists.add(new ArrayList<>());
+        }
+        return lists;
+    }
+}
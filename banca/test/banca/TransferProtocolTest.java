@@ -0,0 +1,206 @@
+package banca;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.wrapper.AgentController;
+import jade.wrapper.ContainerController;
+
+/**
+ * Transfers between two branches in one JADE container. The source accounts are opened at
+ * b1, which coordinates, and the destinations are picked so their home is b2, which takes
+ * part; surefire shortens banca.transfer.timeoutMs so timeouts take a second.
+ */
+class TransferProtocolTest {
+
+    private static final long WAIT_MS = 10_000;
+    private static final ShardRing HOMES = new ShardRing(Arrays.asList("b1", "b2"));
+
+    @TempDir
+    static File dataDir;
+
+    private static ContainerController container;
+    private static AgentController participant;
+    private static Client client;
+    private static int accounts;
+
+    @BeforeAll
+    static void startBranches() throws Exception {
+        System.setProperty("banca.dataDir", dataDir.getPath());
+        ProfileImpl profile = new ProfileImpl();
+        profile.setParameter(Profile.GUI, "false");
+        profile.setParameter(Profile.NO_MTP, "true");
+        profile.setParameter(Profile.FILE_DIR, dataDir.getPath() + File.separator);
+        container = Runtime.instance().createMainContainer(profile);
+        container.createNewAgent("b1", BankBranchAgent.class.getName(), null).start();
+        participant = container.createNewAgent("b2", BankBranchAgent.class.getName(), null);
+        participant.start();
+        client = new Client();
+        container.acceptNewAgent("client", client).start();
+    }
+
+    @AfterAll
+    static void stopBranches() throws Exception {
+        if (container != null) {
+            container.kill();
+        }
+    }
+
+    @Test
+    void commitsAcrossBranches() {
+        String source = account("b1", "100");
+        String destination = account("b2", null);
+
+        ACLMessage reply = client.ask("b1", "TRANSFER", source + ";" + destination + ";30");
+        assertEquals(ACLMessage.INFORM, reply.getPerformative(), reply.getContent());
+        assertTrue(reply.getContent().contains("committed. New balance: 70.00"), reply.getContent());
+
+        awaitBalance("b1", source, "70.00");
+        awaitBalance("b2", destination, "30.00");
+        // every branch holds every account, the changes of both sides replicate
+        awaitBalance("b2", source, "70.00");
+        awaitBalance("b1", destination, "30.00");
+    }
+
+    @Test
+    void abortsWhenTheParticipantVotesNo() {
+        String source = account("b1", "100");
+        String missing = account("b2", null) + "-missing";
+        while (!"b2".equals(HOMES.primaryName(missing))) {
+            missing += "x";
+        }
+
+        ACLMessage reply = client.ask("b1", "TRANSFER", source + ";" + missing + ";40");
+        assertEquals(ACLMessage.FAILURE, reply.getPerformative());
+        assertEquals("Account " + missing + " doesn't exist. Open account first.", reply.getContent());
+
+        // the hold was released, so the whole balance can move
+        String destination = account("b2", null);
+        reply = client.ask("b1", "TRANSFER", source + ";" + destination + ";100");
+        assertEquals(ACLMessage.INFORM, reply.getPerformative(), reply.getContent());
+        awaitBalance("b2", destination, "100.00");
+    }
+
+    @Test
+    void refusesMoreThanTheAvailableBalance() {
+        String source = account("b1", "100");
+        String destination = account("b2", null);
+
+        ACLMessage reply = client.ask("b1", "TRANSFER", source + ";" + destination + ";100.01");
+        assertEquals(ACLMessage.FAILURE, reply.getPerformative());
+        assertEquals("Insufficient funds. Available: 100.00", reply.getContent());
+        awaitBalance("b1", source, "100.00");
+        awaitBalance("b2", destination, "0.00");
+    }
+
+    @Test
+    void refusesMalformedRequests() {
+        String source = account("b1", "100");
+        String destination = account("b2", null);
+
+        for (String content : new String[] { source + ";" + destination, source + ";" + destination + ";-5",
+                source + ";" + destination + ";lots", source + ";" + source + ";5", "nobody;" + destination + ";5" }) {
+            ACLMessage reply = client.ask("b1", "TRANSFER", content);
+            assertEquals(ACLMessage.FAILURE, reply.getPerformative(), content);
+        }
+        awaitBalance("b1", source, "100.00");
+    }
+
+    @Test
+    void abortsWhenTheParticipantDoesNotAnswerInTime() throws Exception {
+        String source = account("b1", "100");
+        String destination = account("b2", null);
+
+        participant.suspend();
+        ACLMessage reply;
+        try {
+            reply = client.ask("b1", "TRANSFER", source + ";" + destination + ";25");
+        } finally {
+            participant.activate();
+        }
+        assertEquals(ACLMessage.FAILURE, reply.getPerformative());
+        assertEquals("Transfer timed out, no funds were moved", reply.getContent());
+
+        // the late PREPARE is answered, but the abort wins and nothing is credited
+        reply = client.ask("b1", "TRANSFER", source + ";" + destination + ";100");
+        assertEquals(ACLMessage.INFORM, reply.getPerformative(), reply.getContent());
+        awaitBalance("b2", destination, "100.00");
+        awaitBalance("b1", source, "0.00");
+        Thread.sleep(TransferProtocol.HOLD_TIMEOUT_MS + 2 * TransferProtocol.RETRY_MS);
+        awaitBalance("b2", destination, "100.00");
+    }
+
+    /**
+     * Opens a new account whose home is the given branch, deposits the balance at b1 if
+     * given, and waits until b2 holds the account as well.
+     */
+    private static String account(String home, String balance) {
+        String account;
+        do {
+            account = "acc" + accounts++;
+        } while (!home.equals(HOMES.primaryName(account)));
+
+        ACLMessage reply = client.ask("b1", "OPEN_ACCOUNT", account);
+        assertEquals(ACLMessage.INFORM, reply.getPerformative(), reply.getContent());
+        if (balance != null) {
+            reply = client.ask("b1", "DEPOSIT", account + ";" + balance);
+            assertEquals(ACLMessage.INFORM, reply.getPerformative(), reply.getContent());
+        }
+        awaitBalance("b2", account, Money.format(balance == null ? 0 : Money.parse(balance)));
+        return account;
+    }
+
+    private static void awaitBalance(String branch, String account, String expected) {
+        String content = null;
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            ACLMessage reply = client.ask(branch, "BALANCE", account);
+            content = reply.getContent();
+            if (reply.getPerformative() == ACLMessage.INFORM && content.equals("Balance of " + account + ": " + expected)) {
+                return;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        fail(branch + " still answers \"" + content + "\", expected a balance of " + expected);
+    }
+
+    /** Sends requests from the test thread and waits for their replies. */
+    private static final class Client extends Agent {
+        private int requests;
+
+        ACLMessage ask(String branch, String conversationId, String content) {
+            String replyWith = "test-" + requests++;
+            ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
+            msg.addReceiver(new AID(branch, AID.ISLOCALNAME));
+            msg.setConversationId(conversationId);
+            msg.setContent(content);
+            msg.setReplyWith(replyWith);
+            send(msg);
+            ACLMessage reply = blockingReceive(MessageTemplate.MatchInReplyTo(replyWith), WAIT_MS);
+            assertNotNull(reply, "no reply from " + branch + " to " + conversationId + " " + content);
+            return reply;
+        }
+    }
+}